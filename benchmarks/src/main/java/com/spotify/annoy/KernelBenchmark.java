@@ -0,0 +1,71 @@
+package com.spotify.annoy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar against Vector API distance kernels on a direct buffer. Lives in
+ * the library's package to reach the package-private kernels, and needs
+ * JDK 17 for the vectorized variant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KernelBenchmark {
+
+  @Param({"32", "64", "128", "256", "512"})
+  public int dimension;
+
+  @Param({"scalar", "vectorized"})
+  public String kernel;
+
+  private DistanceKernel k;
+  private ByteBuffer buffer;
+  private float[] q;
+
+  @Setup
+  public void setUp() {
+    k = "scalar".equals(kernel) ? DistanceKernels.scalar() : DistanceKernels.vectorized();
+    if (k == null)
+      throw new IllegalStateException("vectorized kernel not available on this JVM");
+    Random random = new Random(0);
+    buffer = ByteBuffer.allocateDirect(4 * dimension).order(ByteOrder.LITTLE_ENDIAN);
+    q = new float[dimension];
+    for (int i = 0; i < dimension; i++) {
+      buffer.putFloat(4 * i, (float) random.nextGaussian());
+      q[i] = (float) random.nextGaussian();
+    }
+  }
+
+  @Benchmark
+  public float dot() {
+    return k.dot(buffer, 0, q);
+  }
+
+  @Benchmark
+  public float squaredNorm() {
+    return k.squaredNorm(buffer, 0, dimension);
+  }
+
+  @Benchmark
+  public float squaredDistance() {
+    return k.squaredDistance(buffer, 0, q);
+  }
+}
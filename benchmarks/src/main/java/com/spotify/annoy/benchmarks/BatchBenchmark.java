@@ -0,0 +1,60 @@
+package com.spotify.annoy.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A batch query against the same queries run one at a time. A batch should
+ * never lose to its queries run one by one, and wins on angular indexes
+ * without node norms, more so as the dimension grows
+ * ({@code -p indexType=ANGULAR -p dimension=256}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BatchBenchmark {
+
+  @Param({"1", "4", "16", "256", "1024"})
+  public int batchSize;
+
+  @Param({"-1"})
+  public int searchK;
+
+  private float[][] batch;
+
+  @Setup
+  public void setUp(final IndexState index) {
+    batch = Arrays.copyOf(index.queries, batchSize);
+  }
+
+  @Benchmark
+  public List<List<Integer>> batch(final IndexState index) {
+    return index.index.getNearestBatch(batch, 10, searchK);
+  }
+
+  @Benchmark
+  public List<List<Integer>> oneByOne(final IndexState index) {
+    List<List<Integer>> results = new ArrayList<>(batch.length);
+    for (float[] query : batch) {
+      results.add(index.index.getNearest(query, 10, searchK));
+    }
+    return results;
+  }
+}
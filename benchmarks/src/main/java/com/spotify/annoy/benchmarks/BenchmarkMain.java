@@ -0,0 +1,38 @@
+package com.spotify.annoy.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks once per thread count, with the GC profiler
+ * enabled so that every result comes with its allocation rate.
+ *
+ * <p>Accepts all the usual JMH command line options. Thread counts are
+ * given as a comma separated list in the {@code annoy.bench.threads}
+ * system property, e.g. {@code -Dannoy.bench.threads=1,4,16}.
+ */
+public final class BenchmarkMain {
+
+  private BenchmarkMain() {
+  }
+
+  public static void main(final String[] args) throws Exception {
+    CommandLineOptions cli = new CommandLineOptions(args);
+    if (cli.shouldHelp() || cli.shouldList() || cli.shouldListProfilers()
+            || cli.shouldListResultFormats() || cli.shouldListWithParams()) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+    for (String threads : System.getProperty("annoy.bench.threads", "1").split(",")) {
+      Options options = new OptionsBuilder()
+              .parent(cli)
+              .threads(Integer.parseInt(threads.trim()))
+              .addProfiler(GCProfiler.class)
+              .build();
+      new Runner(options).run();
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package com.spotify.annoy.benchmarks;
+
+import com.spotify.annoy.ANNIndex;
+import com.spotify.annoy.IndexType;
+import com.spotify.annoy.LoadMode;
+import com.spotify.annoy.NodeOrder;
+import com.spotify.annoy.Quantization;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A synthetic index shared by all benchmark threads, plus a pool of query
+ * vectors taken from the index items.
+ */
+@State(Scope.Benchmark)
+public class IndexState {
+
+  @Param({"100000"})
+  public int items;
+
+  @Param({"64"})
+  public int dimension;
+
+  @Param({"ANGULAR", "EUCLIDEAN", "DOT"})
+  public IndexType indexType;
+
+  @Param({"10"})
+  public int trees;
+
+  @Param({"MMAP"})
+  public LoadMode loadMode;
+
+  // "none", or a Quantization such as "INT8"
+  @Param({"none"})
+  public String quantization;
+
+  // "none", or a NodeOrder such as "BREADTH_FIRST"
+  @Param({"none"})
+  public String layout;
+
+  public File file;
+  public ANNIndex index;
+  public float[][] queries;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    file = SyntheticIndex.get(items, dimension, indexType, trees);
+    index = new ANNIndex(dimension, file.getPath(), indexType, loadMode);
+    if (!quantization.equals("none"))
+      index.enableQuantization(Quantization.valueOf(quantization));
+    if (!layout.equals("none"))
+      index.enableLayout(NodeOrder.valueOf(layout));
+    Random random = new Random(7);
+    queries = new float[1024][];
+    for (int i = 0; i < queries.length; i++)
+      queries[i] = index.getItemVector(random.nextInt(items));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    index.close();
+  }
+}
@@ -0,0 +1,34 @@
+package com.spotify.annoy.benchmarks;
+
+import com.spotify.annoy.ANNIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to open an index and make it ready for queries.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Threads(1)
+@Fork(1)
+public class LoadBenchmark {
+
+  @Benchmark
+  public int load(final IndexState state) throws IOException {
+    try (ANNIndex index = new ANNIndex(state.dimension, state.file.getPath(),
+            state.indexType, state.loadMode)) {
+      return index.getItemVector(0).length;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package com.spotify.annoy.benchmarks;
+
+import com.spotify.annoy.ANNIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query latency of {@link ANNIndex}. Sample-time mode reports the latency
+ * distribution (p50 ... p99.99) alongside the mean.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QueryBenchmark {
+
+  @Param({"10"})
+  public int nResults;
+
+  @Param({"-1", "1000", "10000"})
+  public int searchK;
+
+  @Benchmark
+  public List<Integer> getNearest(final IndexState index, final QueryState query) {
+    return index.index.getNearest(query.next(index), nResults, searchK);
+  }
+
+  @Benchmark
+  public List<ANNIndex.PQEntry> getNearestPqEntries(final IndexState index,
+                                                    final QueryState query) {
+    return index.index.getNearestPqEntries(query.next(index), nResults, searchK);
+  }
+}
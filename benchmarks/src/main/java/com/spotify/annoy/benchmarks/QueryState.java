@@ -0,0 +1,22 @@
+package com.spotify.annoy.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-thread cursor over the shared query pool, so that concurrent threads
+ * do not all hit the same vector.
+ */
+@State(Scope.Thread)
+public class QueryState {
+
+  private int next = (int) Thread.currentThread().getId() * 97;
+
+  float[] next(final IndexState state) {
+    return state.queries[(next++ & Integer.MAX_VALUE) % state.queries.length];
+  }
+
+  int nextItem(final IndexState state) {
+    return (next++ & Integer.MAX_VALUE) % state.items;
+  }
+}
@@ -0,0 +1,169 @@
+package com.spotify.annoy.benchmarks;
+
+import com.spotify.annoy.IndexType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+/**
+ * Writes random Annoy-format indexes for benchmarking. Items are gaussian
+ * vectors and trees are built by splitting on the hyperplane between two
+ * random items, which is close enough to what annoy builds for the query
+ * path to do representative work.
+ */
+final class SyntheticIndex {
+
+  private final int nItems;
+  private final int dimension;
+  private final IndexType indexType;
+  private final int nodeSize;
+  private final int leafSize;
+  private final float[][] items;
+  private final Random random;
+  private FileChannel channel;
+  private long nNodes;
+
+  private SyntheticIndex(final int nItems, final int dimension,
+                         final IndexType indexType, final long seed) {
+    this.nItems = nItems;
+    this.dimension = dimension;
+    this.indexType = indexType;
+    this.nodeSize = indexType.getkNodeHeaderStyle() + 4 * dimension;
+    this.leafSize = dimension + 2;
+    this.random = new Random(seed);
+    this.items = new float[nItems][];
+    for (int i = 0; i < nItems; i++) {
+      float[] v = new float[dimension];
+      for (int d = 0; d < dimension; d++)
+        v[d] = (float) random.nextGaussian();
+      items[i] = v;
+    }
+  }
+
+  /**
+   * Returns the index file for the given parameters, generating it in the
+   * temp directory the first time it is asked for.
+   */
+  static File get(final int nItems, final int dimension,
+                  final IndexType indexType, final int nTrees) throws IOException {
+    File file = new File(System.getProperty("java.io.tmpdir"), String.format(
+            "annoy-bench-%s-%d-%d-%d.annoy",
+            indexType.toString().toLowerCase(), nItems, dimension, nTrees));
+    if (!file.exists()) {
+      File tmp = new File(file.getPath() + ".tmp");
+      new SyntheticIndex(nItems, dimension, indexType, 42).write(tmp, nTrees);
+      if (!tmp.renameTo(file))
+        throw new IOException("could not rename " + tmp + " to " + file);
+    }
+    return file;
+  }
+
+  private void write(final File file, final int nTrees) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      channel = raf.getChannel();
+      for (int i = 0; i < nItems; i++) {
+        ByteBuffer node = newNode(1);
+        putVector(node, items[i]);
+        writeNode(i, node);
+      }
+      nNodes = nItems;
+
+      long[] roots = new long[nTrees];
+      int[] all = new int[nItems];
+      for (int i = 0; i < nItems; i++)
+        all[i] = i;
+      for (int t = 0; t < nTrees; t++)
+        roots[t] = makeTree(all.clone(), 0, nItems);
+
+      // annoy appends a copy of every root at the end of the file
+      for (long root : roots) {
+        ByteBuffer node = ByteBuffer.allocate(nodeSize);
+        channel.read(node, root * nodeSize);
+        writeNode(nNodes++, node);
+      }
+    }
+  }
+
+  private long makeTree(final int[] indices, final int from, final int to)
+          throws IOException {
+    int n = to - from;
+    if (n == 1)
+      return indices[from];
+    long id = nNodes++;
+    ByteBuffer node = newNode(n);
+    if (n <= leafSize) {
+      for (int i = 0; i < n; i++)
+        node.putInt(indexType.getOffset() + 4 * i, indices[from + i]);
+      writeNode(id, node);
+      return id;
+    }
+
+    float[] p = items[indices[from + random.nextInt(n)]];
+    float[] q = items[indices[from + random.nextInt(n)]];
+    float[] normal = new float[dimension];
+    float bias = 0;
+    double norm = 0;
+    for (int d = 0; d < dimension; d++) {
+      normal[d] = p[d] - q[d];
+      norm += normal[d] * normal[d];
+    }
+    norm = Math.max(Math.sqrt(norm), 1e-12);
+    for (int d = 0; d < dimension; d++) {
+      normal[d] /= norm;
+      bias -= normal[d] * (p[d] + q[d]) / 2;
+    }
+    if (indexType != IndexType.EUCLIDEAN)
+      bias = 0;
+
+    // partition in place: left side first, right side (margin > 0) second
+    int split = from;
+    for (int i = from; i < to; i++) {
+      float margin = bias;
+      float[] v = items[indices[i]];
+      for (int d = 0; d < dimension; d++)
+        margin += normal[d] * v[d];
+      if (margin <= 0) {
+        int tmp = indices[split];
+        indices[split++] = indices[i];
+        indices[i] = tmp;
+      }
+    }
+    if (split == from || split == to)
+      split = from + n / 2;
+
+    long left = makeTree(indices, from, split);
+    long right = makeTree(indices, split, to);
+    node.putInt(indexType.getOffset(), (int) left);
+    node.putInt(indexType.getOffset() + 4, (int) right);
+    if (indexType == IndexType.EUCLIDEAN)
+      node.putFloat(4, bias);
+    putVector(node, normal);
+    writeNode(id, node);
+    return id;
+  }
+
+  private ByteBuffer newNode(final int nDescendants) {
+    ByteBuffer node = ByteBuffer.allocate(nodeSize).order(ByteOrder.LITTLE_ENDIAN);
+    node.putInt(0, nDescendants);
+    return node;
+  }
+
+  private void putVector(final ByteBuffer node, final float[] v) {
+    for (int d = 0; d < dimension; d++)
+      node.putFloat(indexType.getkNodeHeaderStyle() + 4 * d, v[d]);
+  }
+
+  private void writeNode(final long id, final ByteBuffer node) throws IOException {
+    ((Buffer) node).rewind();
+    long position = id * nodeSize;
+    while (node.hasRemaining())
+      position += channel.write(node, position);
+  }
+}
@@ -1,35 +1,98 @@
 package com.spotify.annoy;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Read-only Approximate Nearest Neighbor Index which queries
  * databases created by annoy.
+ *
+ * <p>Once constructed, an index is safe for concurrent queries from any
+ * number of threads: queries only read the mapped file and keep their
+ * mutable state in a {@link SearchContext}, one per thread unless one is
+ * passed in explicitly. A context passed in must not be used by two queries
+ * at the same time. {@link #close()} must not be called while queries are
+ * still running.
  */
 public class ANNIndex implements AnnoyIndex {
 
 
   private final ArrayList<Long> roots;
-  private MappedByteBuffer[] buffers;
+  private ByteBuffer[] buffers;
 
   private final int DIMENSION, MIN_LEAF_SIZE;
   private final IndexType INDEX_TYPE;
+  private final LoadMode LOAD_MODE;
   private final int INDEX_TYPE_OFFSET;
 
   // size of C structs in bytes (initialized in init)
   private final int K_NODE_HEADER_STYLE;
   private final long NODE_SIZE;
+  private final Metric METRIC;
+  // METRIC again where it supports the compact copies, null otherwise
+  private final PlaneMetric PLANE_METRIC;
+  private final QuantizedMetric QUANTIZED_METRIC;
 
   private final int INT_SIZE = 4;
   private final int FLOAT_SIZE = 4;
-  private final int MAX_NODES_IN_BUFFER;
-  private final int BLOCK_SIZE;
+  // The file is mapped in blocks of 2^BLOCK_SHIFT bytes, so locating a
+  // position is a shift and a mask. Each buffer also maps the first
+  // NODE_SIZE bytes of the next block, so a node starting in a block can be
+  // read from that block's buffer even when it straddles the boundary.
+  private static final int MAX_BLOCK_SHIFT = 30;
+  private final int BLOCK_SHIFT;
+  private final long BLOCK_MASK;
   private RandomAccessFile memoryMappedFile;
+  private final String filename;
+  private long numNodes;
+  private volatile NodeNorms norms;
+  private volatile ItemTombstones tombstones;
+  private volatile QuantizedNodes quantized;
+  private volatile NodeLayout layout;
+  private volatile ItemKeys keys;
+  private volatile QueryListener queryListener;
+  private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+  private volatile boolean searchPlanning;
+
+  // bound on the split nodes shared per batch, see batchMargins()
+  private static final int MAX_BATCH_NODES = 1 << 14;
+
+  private static final DistanceKernel KERNEL = DistanceKernels.get();
+
+  // warmup touches one byte per page, reporting progress every chunk
+  private static final int PAGE_SIZE = 4096;
+  private static final long WARMUP_CHUNK = 16 << 20;
+  // residency is sampled on windows of this size, see residentFraction()
+  private static final long RESIDENCY_WINDOW = 2 << 20;
+  private volatile int warmupSink;
+  // copying load modes read the file in chunks of this size
+  private static final int READ_CHUNK = 8 << 20;
+  // quantized queries re-rank RERANK_FACTOR * nResults candidates exactly
+  private static final int RERANK_FACTOR = 4;
+  // stoppable queries check whether to stop every STOP_CHECK_MASK + 1 nodes
+  private static final int STOP_CHECK_MASK = 63;
+  // exact scans score blocks of SCAN_BLOCK items against every query
+  private static final int SCAN_BLOCK = 256;
+  // planned queries scan when that scores at most SCAN_FACTOR * searchK
+  // items, estimating filter selectivity on SELECTIVITY_SAMPLE items
+  private static final int SCAN_FACTOR = 4;
+  private static final int SELECTIVITY_SAMPLE = 256;
+
+  private final ThreadLocal<SearchContext> searchContexts =
+          ThreadLocal.withInitial(SearchContext::new);
 
 
   /**
@@ -58,22 +121,54 @@ public class ANNIndex implements AnnoyIndex {
     this(dimension, filename, IndexType.ANGULAR);
   }
 
+  /**
+   * Construct and load an Annoy index of a specific type, choosing how the
+   * file is brought into memory.
+   *
+   * @param dimension dimensionality of tree, e.g. 40
+   * @param filename  filename of tree
+   * @param indexType type of index
+   * @param loadMode  memory-map the file, or copy it into memory
+   * @throws IOException if file can't be loaded
+   */
+  public ANNIndex(final int dimension,
+                  final String filename,
+                  IndexType indexType,
+                  LoadMode loadMode) throws IOException {
+    this(dimension, filename, indexType, 0, loadMode);
+  }
+
   ANNIndex(final int dimension,
                   final String filename,
                   IndexType indexType,
                   final int blockSize) throws IOException {
+    this(dimension, filename, indexType, blockSize, LoadMode.MMAP);
+  }
+
+  ANNIndex(final int dimension,
+                  final String filename,
+                  IndexType indexType,
+                  final int blockSize,
+                  LoadMode loadMode) throws IOException {
     DIMENSION = dimension;
     INDEX_TYPE = indexType;
+    LOAD_MODE = loadMode;
     INDEX_TYPE_OFFSET = INDEX_TYPE.getOffset();
     K_NODE_HEADER_STYLE = INDEX_TYPE.getkNodeHeaderStyle();
     // we can store up to MIN_LEAF_SIZE children in leaf nodes (we put
     // them where the separating plane normally goes)
-    this.MIN_LEAF_SIZE = DIMENSION + 2;
-    this.NODE_SIZE = K_NODE_HEADER_STYLE + FLOAT_SIZE * DIMENSION;
-    this.MAX_NODES_IN_BUFFER = (int) (blockSize == 0 ?
-            Integer.MAX_VALUE / NODE_SIZE : blockSize * NODE_SIZE);
-    BLOCK_SIZE = (int) (this.MAX_NODES_IN_BUFFER * NODE_SIZE);
+    this.MIN_LEAF_SIZE = INDEX_TYPE.getLeafSize(DIMENSION);
+    this.NODE_SIZE = K_NODE_HEADER_STYLE + INDEX_TYPE.getVectorSize(DIMENSION);
+    this.METRIC = metric(INDEX_TYPE);
+    this.PLANE_METRIC = (METRIC instanceof PlaneMetric) ? (PlaneMetric) METRIC : null;
+    this.QUANTIZED_METRIC = (METRIC instanceof QuantizedMetric) ? (QuantizedMetric) METRIC : null;
+    // blockSize is in nodes and only set by tests, to exercise multi-block
+    // files without multi-GB fixtures
+    this.BLOCK_SHIFT = (blockSize == 0) ? MAX_BLOCK_SHIFT
+            : Math.min(MAX_BLOCK_SHIFT, 64 - Long.numberOfLeadingZeros(blockSize * NODE_SIZE - 1));
+    this.BLOCK_MASK = (1L << BLOCK_SHIFT) - 1;
     roots = new ArrayList<>();
+    this.filename = filename;
     load(filename);
   }
 
@@ -84,62 +179,78 @@ public class ANNIndex implements AnnoyIndex {
       throw new IOException("Index is a 0-byte file?");
     }
 
-    int numNodes = (int) (fileSize / NODE_SIZE);
-    int buffIndex =  (numNodes - 1) / MAX_NODES_IN_BUFFER;
-    int rest = (int) (fileSize % BLOCK_SIZE);
-    int blockSize = (rest > 0 ? rest : BLOCK_SIZE);
-    // Two valid relations between dimension and file size:
-    // 1) rest % NODE_SIZE == 0 makes sure either everything fits into buffer or rest is a multiple of NODE_SIZE;
-    // 2) (file_size - rest) % NODE_SIZE == 0 makes sure everything else is a multiple of NODE_SIZE.
-    if (rest % NODE_SIZE != 0 || (fileSize - rest) % NODE_SIZE != 0) {
+    if (fileSize % NODE_SIZE != 0) {
       throw new RuntimeException("ANNIndex initiated with wrong dimension size");
     }
-    long position = fileSize - blockSize;
-    buffers = new MappedByteBuffer[buffIndex + 1];
-    boolean process = true;
-    int m = -1;
-    long index = fileSize;
-    while (position >= 0) {
-      MappedByteBuffer annBuf = memoryMappedFile.getChannel().map(
-              FileChannel.MapMode.READ_ONLY, position, blockSize);
+    numNodes = fileSize / NODE_SIZE;
+
+    FileChannel channel = memoryMappedFile.getChannel();
+    int nBlocks = (int) (((fileSize - 1) >>> BLOCK_SHIFT) + 1);
+    buffers = new ByteBuffer[nBlocks];
+    for (int b = 0; b < nBlocks; b++) {
+      long position = (long) b << BLOCK_SHIFT;
+      int size = (int) Math.min(fileSize - position, (1L << BLOCK_SHIFT) + NODE_SIZE);
+      ByteBuffer annBuf = (LOAD_MODE == LoadMode.MMAP)
+              ? channel.map(FileChannel.MapMode.READ_ONLY, position, size)
+              : readBlock(channel, position, size);
       annBuf.order(ByteOrder.LITTLE_ENDIAN);
+      buffers[b] = annBuf;
+    }
+    if (LOAD_MODE != LoadMode.MMAP) {
+      // everything is in memory, the file is not needed anymore
+      memoryMappedFile.close();
+    }
 
-      buffers[buffIndex--] = annBuf;
+    // the roots are the trailing nodes sharing the last node's n_descendants
+    int m = -1;
+    for (long index = fileSize - NODE_SIZE; index >= 0; index -= NODE_SIZE) {
+      int k = getIntInAnnBuf(index);  // node[i].n_descendants
+      if (m == -1 || k == m) {
+        roots.add(index);
+        m = k;
+      } else {
+        break;
+      }
+    }
+  }
 
-      for (int i = blockSize - (int) NODE_SIZE; process && i >= 0; i -= NODE_SIZE) {
-        index -= NODE_SIZE;
-        int k = annBuf.getInt(i);  // node[i].n_descendants
-        if (m == -1 || k == m) {
-          roots.add(index);
-          m = k;
-        } else {
-          process = false;
-        }
+  private ByteBuffer readBlock(final FileChannel channel,
+                               final long position,
+                               final int size) throws IOException {
+    ByteBuffer block = (LOAD_MODE == LoadMode.DIRECT)
+            ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    // Buffer casts keep the bytecode linkable on Java 8
+    Buffer view = block;
+    for (int done = 0; done < size; ) {
+      view.limit(Math.min(size, done + READ_CHUNK));
+      view.position(done);
+      int n = channel.read(block, position + done);
+      if (n < 0) {
+        throw new EOFException("Index file shrank while loading");
       }
-      blockSize = BLOCK_SIZE;
-      position -= blockSize;
+      done += n;
     }
+    view.clear();
+    return block;
+  }
+
+  private ByteBuffer bufferAt(final long pos) {
+    return buffers[(int) (pos >>> BLOCK_SHIFT)];
   }
 
   private float getFloatInAnnBuf(long pos) {
-    int b = (int) (pos / BLOCK_SIZE);
-    int f = (int) (pos % BLOCK_SIZE);
-    return buffers[b].getFloat(f);
+    return bufferAt(pos).getFloat((int) (pos & BLOCK_MASK));
   }
 
   private int getIntInAnnBuf(long pos) {
-    int b = (int) (pos / BLOCK_SIZE);
-    int i = (int) (pos % BLOCK_SIZE);
-    return buffers[b].getInt(i);
+    return bufferAt(pos).getInt((int) (pos & BLOCK_MASK));
   }
 
   @Override
   public void getNodeVector(final long nodeOffset, float[] v) {
-    MappedByteBuffer nodeBuf = buffers[(int) (nodeOffset / BLOCK_SIZE)];
-    int offset = (int) ((nodeOffset % BLOCK_SIZE) + K_NODE_HEADER_STYLE);
-    for (int i = 0; i < DIMENSION; i++) {
-      v[i] = nodeBuf.getFloat(offset + i * FLOAT_SIZE);
-    }
+    ByteBuffer nodeBuf = bufferAt(nodeOffset);
+    int offset = (int) (nodeOffset & BLOCK_MASK) + K_NODE_HEADER_STYLE;
+    METRIC.read(nodeBuf, offset, v);
   }
 
   @Override
@@ -147,7 +258,7 @@ public class ANNIndex implements AnnoyIndex {
     getNodeVector(itemIndex * NODE_SIZE, v);
   }
 
-  private float getNodeBias(final long nodeOffset) { // euclidean-only
+  private float getNodeBias(final long nodeOffset) { // euclidean and manhattan
     return getFloatInAnnBuf(nodeOffset + 4);
   }
 
@@ -165,25 +276,32 @@ public class ANNIndex implements AnnoyIndex {
     return v;
   }
 
-  private static float norm(final float[] u) {
-    float n = 0;
-    for (float x : u)
-      n += x * x;
-    return (float) Math.sqrt(n);
+  static float norm(final float[] u) {
+    return (float) Math.sqrt(KERNEL.squaredNorm(u));
   }
 
   private static float euclideanDistance(final float[] u, final float[] v) {
-    float[] diff = new float[u.length];
-    for (int i = 0; i < u.length; i++)
-      diff[i] = u[i] - v[i];
-    return norm(diff);
+    return (float) Math.sqrt(KERNEL.squaredDistance(u, v));
+  }
+
+  private static float manhattanDistance(final ByteBuffer buffer, final int offset,
+                                         final float[] q) {
+    float d = 0;
+    for (int i = 0; i < q.length; i++)
+      d += Math.abs(buffer.getFloat(offset + i * 4) - q[i]);
+    return d;
+  }
+
+  private static int hammingDistance(final ByteBuffer buffer, final int offset,
+                                     final long[] y, final int words) {
+    int d = 0;
+    for (int i = 0; i < words; i++)
+      d += Long.bitCount(buffer.getLong(offset + i * 8) ^ y[i]);
+    return d;
   }
 
   public static float dot(final float[] u, final float[] v) {
-    double d = 0;
-    for (int i = 0; i < u.length; i++)
-      d += u[i] * v[i];
-    return (float) d;
+    return KERNEL.dot(u, v);
   }
 
   public static float cosineMargin(final float[] u, final float[] v) {
@@ -197,156 +315,2162 @@ public class ANNIndex implements AnnoyIndex {
   public static float euclideanMargin(final float[] u,
                                       final float[] v,
                                       final float bias) {
-    float d = bias;
-    for (int i = 0; i < u.length; i++)
-      d += u[i] * v[i];
-    return d;
+    return bias + dot(u, v);
+  }
+
+  private static float dotMargin(final float dot, final float norm) {
+    return dot + norm * norm;
+  }
+
+  // The kernels below read the node's vector straight out of the mapped
+  // buffer instead of copying it into a float[] first.
+
+  private float dotWithNode(final long nodeOffset, final float[] q) {
+    ByteBuffer nodeBuf = bufferAt(nodeOffset);
+    int offset = (int) (nodeOffset & BLOCK_MASK) + K_NODE_HEADER_STYLE;
+    return KERNEL.dot(nodeBuf, offset, q);
+  }
+
+  private float cosineMarginToNode(final long nodeOffset,
+                                   final float[] q,
+                                   final float qNorm) {
+    return dotWithNode(nodeOffset, q) / (nodeNorm(nodeOffset) * qNorm);
+  }
+
+  private float nodeNorm(final long nodeOffset) {
+    NodeNorms nodeNorms = norms;
+    return (nodeNorms != null) ? nodeNorms.get(nodeOffset / NODE_SIZE) : normOfNode(nodeOffset);
+  }
+
+  private float itemNorm(final int item) {
+    NodeLayout nodeLayout = layout;
+    return (nodeLayout != null) ? nodeLayout.itemNorm(nodeLayout.itemSlot(item))
+                                : nodeNorm(item * NODE_SIZE);
+  }
+
+  private float normOfNode(final long nodeOffset) {
+    ByteBuffer nodeBuf = bufferAt(nodeOffset);
+    int offset = (int) (nodeOffset & BLOCK_MASK) + K_NODE_HEADER_STYLE;
+    return (float) Math.sqrt(KERNEL.squaredNorm(nodeBuf, offset, DIMENSION));
+  }
+
+  private boolean isZeroNode(final long nodeOffset) {
+    ByteBuffer nodeBuf = bufferAt(nodeOffset);
+    int offset = (int) (nodeOffset & BLOCK_MASK) + K_NODE_HEADER_STYLE;
+    for (int i = 0; i < DIMENSION; i++)
+      if (nodeBuf.getFloat(offset + i * FLOAT_SIZE) != 0)
+        return false;
+    return true;
+  }
+
+  private Metric metric(final IndexType indexType) {
+    switch (indexType) {
+      case ANGULAR:
+        return new AngularMetric();
+      case DOT:
+        return new DotMetric();
+      case EUCLIDEAN:
+        return new EuclideanMetric();
+      case MANHATTAN:
+        return new ManhattanMetric();
+      case HAMMING:
+        return new HammingMetric();
+      default:
+        throw new IllegalArgumentException("unknown index type " + indexType);
+    }
   }
 
   /**
-   * Closes this stream and releases any system resources associated
-   * with it. If the stream is already closed then invoking this
-   * method has no effect.
-   *
-   * <p> As noted in {@link AutoCloseable#close()}, cases where the
-   * close may fail require careful attention. It is strongly advised
-   * to relinquish the underlying resources and to internally
-   * <em>mark</em> the {@code Closeable} as closed, prior to throwing
-   * the {@code IOException}.
-   *
-   * @throws IOException if an I/O error occurs
+   * What a query computes differently per index type, picked once when the
+   * index is loaded: the traversal and ranking loops make one call where
+   * they would otherwise test the type at every node, and a new type only
+   * adds a subclass.
    */
-  @Override
-  public void close() throws IOException {
-    memoryMappedFile.close();
+  private abstract class Metric {
+
+    /**
+     * @return priority of the roots in the traversal queue
+     */
+    float rootPriority() {
+      return 1e30f;
+    }
+
+    /**
+     * Derive what the other methods need from the query, before traversing
+     * or ranking for it.
+     */
+    void prepare(final float[] queryVector, final SearchContext ctx) {
+    }
+
+    /**
+     * @return margin of the query to the split of a node, positive towards
+     *         its second child
+     */
+    abstract float splitMargin(long nodeOffset, float[] queryVector, float queryNorm,
+                               SearchContext ctx);
+
+    /**
+     * @return priority in the traversal queue of a child of a split node
+     */
+    float childPriority(final float priority, final float margin, final int side) {
+      return (side == 0) ? -margin : margin;
+    }
+
+    /**
+     * @return margin of the item whose vector is at offset in buffer,
+     *         larger for nearer items
+     */
+    abstract float itemMargin(ByteBuffer buffer, int offset, int item,
+                              float[] queryVector, float queryNorm, SearchContext ctx);
+
+    /**
+     * Keep an item among the best k in a heap built by {@link #rank}.
+     */
+    void offer(final NodeHeap best, final int k, final ByteBuffer buffer, final int offset,
+               final int item, final float[] queryVector, final float queryNorm,
+               final SearchContext ctx) {
+      ANNIndex.offer(best, k, itemMargin(buffer, offset, item, queryVector, queryNorm, ctx), item);
+    }
+
+    /**
+     * @return whether an item is left out of the candidates
+     */
+    boolean isSkipped(final long nodeOffset) {
+      return isZeroNode(nodeOffset);
+    }
+
+    void read(final ByteBuffer buffer, final int offset, final float[] v) {
+      for (int i = 0; i < DIMENSION; i++)
+        v[i] = buffer.getFloat(offset + i * FLOAT_SIZE);
+    }
   }
 
-  public class PQEntry implements Comparable<PQEntry> {
+  /**
+   * Metrics splitting on planes, whose margins follow from a dot product
+   * with the plane and one float kept with it. The quantized and laid out
+   * copies, and the margins shared by batch queries, only need those.
+   */
+  private abstract class PlaneMetric extends Metric {
 
-    PQEntry(final float margin, final long nodeOffset) {
-      this.margin = margin;
-      this.nodeOffset = nodeOffset;
+    /**
+     * @return the float kept with a split plane by the quantized and laid
+     *         out copies
+     */
+    abstract float splitExtra(long nodeOffset);
+
+    /**
+     * @return whether {@link #splitExtra(long)} takes a pass over the node,
+     *         rather than reading a field of it
+     */
+    boolean computesSplitExtra() {
+      return false;
     }
 
-    private final float margin;
-    private final long  nodeOffset;
+    /**
+     * @return split margin from the dot product of the query with a split
+     *         plane and the plane's extra float
+     */
+    abstract float planeMargin(float d, float extra, float queryNorm);
+  }
 
-    public float getMargin() {
-      return margin;
+  /**
+   * Metrics whose item margins expand into a dot product, so that items
+   * can be scored on their quantized codes.
+   */
+  private interface QuantizedMetric {
+
+    /**
+     * @return item margin from the quantized dot product of the query with
+     *         an item and the item's extra float
+     */
+    float quantizedMargin(float d, float extra, float queryNorm);
+  }
+
+  private final class AngularMetric extends PlaneMetric implements QuantizedMetric {
+
+    @Override
+    float splitMargin(final long nodeOffset, final float[] queryVector, final float queryNorm,
+                      final SearchContext ctx) {
+      return cosineMarginToNode(nodeOffset, queryVector, queryNorm);
     }
 
-    public long getNodeOffset() {
-      return nodeOffset;
+    @Override
+    float itemMargin(final ByteBuffer buffer, final int offset, final int item,
+                     final float[] queryVector, final float queryNorm, final SearchContext ctx) {
+      return KERNEL.dot(buffer, offset, queryVector) / (itemNorm(item) * queryNorm);
+    }
+
+    @Override
+    float splitExtra(final long nodeOffset) {
+      return nodeNorm(nodeOffset);
     }
 
+    @Override
+    boolean computesSplitExtra() {
+      return norms == null;
+    }
 
     @Override
-    public int compareTo(final PQEntry o) {
-      return Float.compare(o.margin, margin);
+    float planeMargin(final float d, final float extra, final float queryNorm) {
+      return d / (extra * queryNorm);
     }
 
+    @Override
+    public float quantizedMargin(final float d, final float extra, final float queryNorm) {
+      return d / (extra * queryNorm);
+    }
   }
 
-  private static boolean isZeroVec(float[] v) {
-    for (int i = 0; i < v.length; i++)
-      if (v[i] != 0)
-        return false;
-    return true;
+  private final class DotMetric extends PlaneMetric implements QuantizedMetric {
+
+    @Override
+    float splitMargin(final long nodeOffset, final float[] queryVector, final float queryNorm,
+                      final SearchContext ctx) {
+      return dotMargin(dotWithNode(nodeOffset, queryVector), getDotFactor(nodeOffset));
+    }
+
+    @Override
+    float itemMargin(final ByteBuffer buffer, final int offset, final int item,
+                     final float[] queryVector, final float queryNorm, final SearchContext ctx) {
+      return KERNEL.dot(buffer, offset, queryVector);
+    }
+
+    @Override
+    float splitExtra(final long nodeOffset) {
+      return getDotFactor(nodeOffset);
+    }
+
+    @Override
+    float planeMargin(final float d, final float extra, final float queryNorm) {
+      return dotMargin(d, extra);
+    }
+
+    @Override
+    public float quantizedMargin(final float d, final float extra, final float queryNorm) {
+      return d;
+    }
   }
 
-  @Override
-  public final List<Integer> getNearest(final float[] queryVector,
-                                        final int nResults) {
-    return getNearest(queryVector, nResults, -1);
+  /**
+   * Annoy's Minkowski nodes, split by a plane with a bias.
+   */
+  private abstract class MinkowskiMetric extends PlaneMetric {
+
+    @Override
+    float splitMargin(final long nodeOffset, final float[] queryVector, final float queryNorm,
+                      final SearchContext ctx) {
+      return dotWithNode(nodeOffset, queryVector) + getNodeBias(nodeOffset);
+    }
+
+    @Override
+    float splitExtra(final long nodeOffset) {
+      return getNodeBias(nodeOffset);
+    }
+
+    @Override
+    float planeMargin(final float d, final float extra, final float queryNorm) {
+      return d + extra;
+    }
   }
 
-  public final List<Integer> getNearest(final float[] queryVector,
-                                        final int nResults, int searchK) {
+  private final class EuclideanMetric extends MinkowskiMetric implements QuantizedMetric {
 
-    List<PQEntry> resultingPQEntries = getNearestPqEntries(queryVector, nResults, searchK);
+    @Override
+    float itemMargin(final ByteBuffer buffer, final int offset, final int item,
+                     final float[] queryVector, final float queryNorm, final SearchContext ctx) {
+      return -(float) Math.sqrt(KERNEL.squaredDistance(buffer, offset, queryVector));
+    }
 
-    ArrayList<Integer> result = new ArrayList<>(nResults);
-    for (PQEntry pqEntry: resultingPQEntries) {
-      result.add((int) pqEntry.nodeOffset);
+    @Override
+    void offer(final NodeHeap best, final int k, final ByteBuffer buffer, final int offset,
+               final int item, final float[] queryVector, final float queryNorm,
+               final SearchContext ctx) {
+      // distances beyond the k-th best can't make it, stop summing them early
+      float worst = best.topPriority();
+      float limit = (best.size() < k) ? Float.POSITIVE_INFINITY : worst * worst;
+      float squaredDistance = KERNEL.squaredDistance(buffer, offset, queryVector, limit);
+      if (squaredDistance <= limit)
+        ANNIndex.offer(best, k, -(float) Math.sqrt(squaredDistance), item);
+    }
+
+    @Override
+    public float quantizedMargin(final float d, final float extra, final float queryNorm) {
+      return 2 * d - queryNorm * queryNorm - extra;
     }
-    return result;
   }
 
-   @Override
-   public final List<PQEntry> getNearestPqEntries( final float[] queryVector, final int nResults ) {
-      return getNearestPqEntries(queryVector, nResults, -1);
-   }
-  
-  public List<PQEntry> getNearestPqEntries(final float[] queryVector, final int nResults, int searchK ) {
-    if (queryVector.length != DIMENSION) {
-      throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
-              DIMENSION, queryVector.length));
+  private final class ManhattanMetric extends MinkowskiMetric {
+
+    @Override
+    float itemMargin(final ByteBuffer buffer, final int offset, final int item,
+                     final float[] queryVector, final float queryNorm, final SearchContext ctx) {
+      return -manhattanDistance(buffer, offset, queryVector);
     }
+  }
 
-    PriorityQueue<PQEntry> pq = new PriorityQueue<>(
-            roots.size() * FLOAT_SIZE);
-    final float kMaxPriority = 1e30f;
+  /**
+   * Bit vectors packed into 64-bit words, split on a single bit whose index
+   * is the first word of the split node. As in annoy, a child's priority is
+   * its parent's minus one if the query's bit sends it the other way, so
+   * nodes are visited by the number of splits the query disagrees with.
+   */
+  private final class HammingMetric extends Metric {
 
-    for (long r : roots) {
-      pq.add(new PQEntry(kMaxPriority, r));
+    private final int words = (DIMENSION + 63) / 64;
+
+    @Override
+    float rootPriority() {
+      // exact counts, which 1e30 minus one wouldn't be
+      return 0;
     }
 
-    if (searchK == -1) {
-      searchK = roots.size() * nResults;
+    @Override
+    void prepare(final float[] queryVector, final SearchContext ctx) {
+      // annoy's _pack: bit j of word i is component 64 * i + j
+      long[] packed = ctx.packedQuery(words);
+      Arrays.fill(packed, 0, words, 0L);
+      for (int z = 0; z < DIMENSION; z++) {
+        if (queryVector[z] > 0.5f)
+          packed[z >>> 6] |= 1L << (z & 63);
+      }
     }
 
-    Set<Integer> nearestNeighbors = new HashSet<Integer>();
-    while (nearestNeighbors.size() < searchK && !pq.isEmpty()) {
-      PQEntry top = pq.poll();
-      long topNodeOffset = top.nodeOffset;
-      int nDescendants = getIntInAnnBuf(topNodeOffset);
-      float[] v = getNodeVector(topNodeOffset);
-      if (nDescendants == 1) {  // n_descendants
-        // FIXME: does this ever happen?
-        if (isZeroVec(v))
-          continue;
-        nearestNeighbors.add((int) (topNodeOffset / NODE_SIZE));
-      } else if (nDescendants <= MIN_LEAF_SIZE) {
-        for (int i = 0; i < nDescendants; i++) {
-          int j = getIntInAnnBuf(topNodeOffset +
-                  INDEX_TYPE_OFFSET +
-                  i * INT_SIZE);
-          if (isZeroVec(getNodeVector(j * NODE_SIZE)))
-            continue;
-          nearestNeighbors.add(j);
+    @Override
+    float splitMargin(final long nodeOffset, final float[] queryVector, final float queryNorm,
+                      final SearchContext ctx) {
+      long bit = bufferAt(nodeOffset).getLong((int) (nodeOffset & BLOCK_MASK) + K_NODE_HEADER_STYLE);
+      long word = ctx.packedQuery(words)[(int) (bit >>> 6)];
+      return (word >>> (63 - (bit & 63))) & 1;
+    }
+
+    @Override
+    float childPriority(final float priority, final float margin, final int side) {
+      return (margin != side) ? priority - 1 : priority;
+    }
+
+    @Override
+    float itemMargin(final ByteBuffer buffer, final int offset, final int item,
+                     final float[] queryVector, final float queryNorm, final SearchContext ctx) {
+      return -hammingDistance(buffer, offset, ctx.packedQuery(words), words);
+    }
+
+    @Override
+    boolean isSkipped(final long nodeOffset) {
+      // an all-zero hash is an item like any other
+      return false;
+    }
+
+    @Override
+    void read(final ByteBuffer buffer, final int offset, final float[] v) {
+      for (int z = 0; z < DIMENSION; z++)
+        v[z] = (buffer.getLong(offset + (z >>> 6) * 8) >>> (z & 63)) & 1;
+    }
+  }
+
+  /**
+   * Pull the whole index into the page cache on a background daemon thread,
+   * so that the first queries after a load don't stall on page faults.
+   *
+   * @return handle to follow or cancel the warmup
+   */
+  public Warmup warmup() {
+    return warmup(ANNIndex::runOnDaemonThread);
+  }
+
+  /**
+   * Pull the whole index into the page cache, touching every page in file
+   * order on the given executor.
+   *
+   * @param executor executor to run the warmup on
+   * @return handle to follow or cancel the warmup
+   */
+  public Warmup warmup(final Executor executor) {
+    final long fileSize = numNodes * NODE_SIZE;
+    final Warmup warmup = new Warmup(fileSize);
+    executor.execute(() -> {
+      try {
+        int sink = 0;
+        for (long chunk = 0; chunk < fileSize && !warmup.isDone(); chunk += WARMUP_CHUNK) {
+          long end = Math.min(fileSize, chunk + WARMUP_CHUNK);
+          for (long pos = chunk; pos < end; pos += PAGE_SIZE) {
+            sink += bufferAt(pos).get((int) (pos & BLOCK_MASK));
+          }
+          warmup.advance(end - chunk);
         }
-      } else {
-        float margin = (INDEX_TYPE == IndexType.ANGULAR) ? cosineMargin(v, queryVector)
-                     : (INDEX_TYPE == IndexType.DOT) ? dotMargin(v, queryVector, getDotFactor(topNodeOffset))
-                     : euclideanMargin(v, queryVector, getNodeBias(topNodeOffset));
-        long childrenMemOffset = topNodeOffset + INDEX_TYPE_OFFSET;
-        long lChild = NODE_SIZE * getIntInAnnBuf(childrenMemOffset);
-        long rChild = NODE_SIZE * getIntInAnnBuf(childrenMemOffset + 4);
-        pq.add(new PQEntry(-margin, lChild));
-        pq.add(new PQEntry(margin, rChild));
+        warmupSink = sink;
+        warmup.complete();
+      } catch (RuntimeException e) {
+        warmup.fail(e);
       }
-    }
+    });
+    return warmup;
+  }
+
+  /**
+   * Pull the nodes of the top levels of every tree into the page cache on a
+   * background daemon thread. These nodes are visited by nearly every query,
+   * so warming them is a cheap way to cut cold-start latency on indexes much
+   * larger than memory.
+   *
+   * @param depth number of levels below the roots to warm
+   * @return handle to follow or cancel the warmup
+   */
+  public Warmup warmupUpperLevels(final int depth) {
+    return warmupUpperLevels(depth, ANNIndex::runOnDaemonThread);
+  }
+
+  /**
+   * Pull the nodes of the top levels of every tree into the page cache on
+   * the given executor, see {@link #warmupUpperLevels(int)}.
+   *
+   * @param depth    number of levels below the roots to warm
+   * @param executor executor to run the warmup on
+   * @return handle to follow or cancel the warmup
+   */
+  public Warmup warmupUpperLevels(final int depth, final Executor executor) {
+    final long maxNodes = roots.size() * ((1L << Math.min(depth + 1, 40)) - 1);
+    final Warmup warmup = new Warmup(maxNodes);
+    executor.execute(() -> {
+      try {
+        float sink = 0;
+        ArrayDeque<Long> level = new ArrayDeque<>(roots);
+        for (int d = 0; d <= depth && !level.isEmpty() && !warmup.isDone(); d++) {
+          ArrayDeque<Long> next = new ArrayDeque<>();
+          for (long node : level) {
+            sink += getFloatInAnnBuf(node + NODE_SIZE - FLOAT_SIZE);
+            for (long pos = node; pos < node + NODE_SIZE; pos += PAGE_SIZE) {
+              sink += getIntInAnnBuf(pos);
+            }
+            if (getIntInAnnBuf(node) > MIN_LEAF_SIZE) {
+              long childrenMemOffset = node + INDEX_TYPE_OFFSET;
+              next.add(NODE_SIZE * getIntInAnnBuf(childrenMemOffset));
+              next.add(NODE_SIZE * getIntInAnnBuf(childrenMemOffset + INT_SIZE));
+            }
+          }
+          warmup.advance(level.size());
+          level = next;
+        }
+        warmupSink = (int) sink;
+        warmup.complete();
+      } catch (RuntimeException e) {
+        warmup.fail(e);
+      }
+    });
+    return warmup;
+  }
 
-    ArrayList<PQEntry> sortedNNs = new ArrayList<PQEntry>();
-    for (int nn : nearestNeighbors) {
-      float[] v = getItemVector(nn);
-      if (!isZeroVec(v)) {
-        float margin = (INDEX_TYPE == IndexType.ANGULAR) ? cosineMargin(v, queryVector)
-                     : (INDEX_TYPE == IndexType.DOT) ? dot(v, queryVector)
-                     : -euclideanDistance(v, queryVector);
-        sortedNNs.add(new PQEntry(margin, nn));
+  /**
+   * Estimate how much of the index is resident in the page cache. The file
+   * is sampled in 2 MB windows with {@link MappedByteBuffer#isLoaded()}, and
+   * a window only counts when all of its pages are resident, so this is a
+   * lower bound meant for readiness checks rather than an exact figure.
+   * Indexes copied into memory (see {@link LoadMode}) are always resident.
+   *
+   * @return share of the index resident in memory, between 0 and 1
+   * @throws IOException if the index file can't be mapped
+   */
+  public double residentFraction() throws IOException {
+    if (LOAD_MODE != LoadMode.MMAP) {
+      return 1.0;
+    }
+    final long fileSize = numNodes * NODE_SIZE;
+    FileChannel channel = memoryMappedFile.getChannel();
+    long resident = 0;
+    for (long pos = 0; pos < fileSize; pos += RESIDENCY_WINDOW) {
+      long size = Math.min(RESIDENCY_WINDOW, fileSize - pos);
+      // unmapped at once, so that polling a large index doesn't pile up
+      // mappings until they are collected
+      MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+      if (window.isLoaded()) {
+        resident += size;
       }
+      DirectBuffers.free(window);
+    }
+    return (double) resident / fileSize;
+  }
+
+  private static void runOnDaemonThread(final Runnable task) {
+    Thread thread = new Thread(task, "annoy-warmup");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Use precomputed node norms for angular queries, so that the cosine of a
+   * split plane or candidate costs a single dot product. The norms are mapped
+   * from {@code <filename>.norms} if that file exists, and computed in memory
+   * otherwise (see {@link #saveNorms(String)}). Has no effect on other index
+   * types.
+   *
+   * @throws IOException if the sidecar file exists but can't be loaded
+   */
+  public void enableNorms() throws IOException {
+    File sidecar = new File(filename + ".norms");
+    if (sidecar.exists()) {
+      enableNorms(sidecar.getPath());
+    } else if (INDEX_TYPE == IndexType.ANGULAR && norms == null) {
+      norms = computeNorms();
     }
-    Collections.sort(sortedNNs);
+  }
 
-    return sortedNNs.subList(0, nResults);
+  /**
+   * Use precomputed node norms mapped from the given file.
+   *
+   * @param normsFilename file written by {@link #saveNorms(String)}
+   * @throws IOException if the file can't be loaded or doesn't match the index
+   */
+  public void enableNorms(final String normsFilename) throws IOException {
+    if (INDEX_TYPE == IndexType.ANGULAR) {
+      norms = NodeNorms.map(new File(normsFilename), numNodes, fingerprint());
+    }
+  }
+
+  /**
+   * Write the norm of every node to a file which {@link #enableNorms()} can
+   * map on later loads, by convention {@code <filename>.norms}.
+   *
+   * @param normsFilename file to write
+   * @throws IOException if the file can't be written
+   */
+  public void saveNorms(final String normsFilename) throws IOException {
+    NodeNorms nodeNorms = norms;
+    (nodeNorms != null ? nodeNorms : computeNorms())
+            .write(new File(normsFilename), fingerprint());
+  }
+
+  private NodeNorms computeNorms() {
+    NodeNorms nodeNorms = NodeNorms.allocate(numNodes);
+    for (long node = 0; node < numNodes; node++) {
+      long nodeOffset = node * NODE_SIZE;
+      int nDescendants = getIntInAnnBuf(nodeOffset);
+      if (nDescendants == 1 || nDescendants > MIN_LEAF_SIZE) {
+        nodeNorms.put(node, normOfNode(nodeOffset));
+      }
+    }
+    return nodeNorms;
+  }
+
+  /**
+   * Leave deleted and unset items out of the candidates with a bit test,
+   * rather than by reading the vector of every item the traversal reaches to
+   * see whether it is zero, so that candidate vectors are only read once,
+   * when they are ranked. The bits are mapped from
+   * {@code <filename>.tombstones} if that file exists, and computed in
+   * memory otherwise, which reads every item once (see
+   * {@link #saveTombstones(String)}).
+   *
+   * @throws IOException if the sidecar file exists but can't be loaded
+   */
+  public void enableTombstones() throws IOException {
+    File sidecar = new File(filename + ".tombstones");
+    if (sidecar.exists()) {
+      enableTombstones(sidecar.getPath());
+    } else if (tombstones == null) {
+      tombstones = computeTombstones();
+    }
+  }
+
+  /**
+   * Use item tombstones mapped from the given file.
+   *
+   * @param tombstonesFilename file written by {@link #saveTombstones(String)}
+   * @throws IOException if the file can't be loaded or doesn't match the index
+   */
+  public void enableTombstones(final String tombstonesFilename) throws IOException {
+    tombstones = ItemTombstones.map(new File(tombstonesFilename), getItemCount(), fingerprint());
+  }
+
+  /**
+   * Write the tombstones of the items to a file which
+   * {@link #enableTombstones()} can map on later loads, by convention
+   * {@code <filename>.tombstones}.
+   *
+   * @param tombstonesFilename file to write
+   * @throws IOException if the file can't be written
+   */
+  public void saveTombstones(final String tombstonesFilename) throws IOException {
+    ItemTombstones itemTombstones = tombstones;
+    (itemTombstones != null ? itemTombstones : computeTombstones())
+            .write(new File(tombstonesFilename), fingerprint());
+  }
+
+  private ItemTombstones computeTombstones() {
+    int nItems = getItemCount();
+    ItemTombstones itemTombstones = ItemTombstones.allocate(nItems);
+    for (int item = 0; item < nItems; item++) {
+      if (METRIC.isSkipped(item * NODE_SIZE))
+        itemTombstones.add(item);
+    }
+    return itemTombstones;
+  }
+
+  /**
+   * Traverse the trees and score candidates on compact int8 or fp16 copies
+   * of the node vectors, and only re-rank the best candidates against the
+   * float vectors of the index. The copies are mapped from
+   * {@code <filename>.int8} or {@code <filename>.fp16} if that file exists,
+   * and computed in memory otherwise (see
+   * {@link #saveQuantized(Quantization, String)}).
+   *
+   * @param quantization encoding of the node vectors
+   * @throws IOException if the sidecar file exists but can't be loaded
+   */
+  public void enableQuantization(final Quantization quantization) throws IOException {
+    File sidecar = new File(filename + "." + quantization.getSuffix());
+    if (sidecar.exists()) {
+      enableQuantization(sidecar.getPath());
+    } else {
+      QuantizedNodes nodes = quantized;
+      if (nodes == null || nodes.quantization() != quantization)
+        quantized = computeQuantized(quantization);
+    }
+  }
+
+  /**
+   * Use quantized node vectors mapped from the given file.
+   *
+   * @param quantizedFilename file written by {@link #saveQuantized(Quantization, String)}
+   * @throws IOException if the file can't be loaded or doesn't match the index
+   */
+  public void enableQuantization(final String quantizedFilename) throws IOException {
+    checkQuantizable();
+    quantized = QuantizedNodes.map(new File(quantizedFilename), INDEX_TYPE,
+            DIMENSION, numNodes, BLOCK_SHIFT, fingerprint());
+  }
+
+  /**
+   * Write quantized node vectors to a file which
+   * {@link #enableQuantization(Quantization)} can map on later loads, by
+   * convention {@code <filename>.int8} or {@code <filename>.fp16}.
+   *
+   * @param quantization    encoding of the node vectors
+   * @param quantizedFilename file to write
+   * @throws IOException if the file can't be written
+   */
+  public void saveQuantized(final Quantization quantization,
+                            final String quantizedFilename) throws IOException {
+    QuantizedNodes nodes = quantized;
+    if (nodes == null || nodes.quantization() != quantization)
+      nodes = computeQuantized(quantization);
+    nodes.write(new File(quantizedFilename), fingerprint());
+  }
+
+  private void checkQuantizable() {
+    // quantized items are ranked on expansions of the dot product
+    if (PLANE_METRIC == null || QUANTIZED_METRIC == null) {
+      throw new UnsupportedOperationException("Quantization isn't supported on "
+              + INDEX_TYPE + " indexes");
+    }
+  }
+
+  private QuantizedNodes computeQuantized(final Quantization quantization) {
+    checkQuantizable();
+    // int8 codes are scaled to the per-dimension range of items and splits
+    float[][] itemRange = {new float[DIMENSION], new float[DIMENSION]};
+    float[][] splitRange = {new float[DIMENSION], new float[DIMENSION]};
+    for (float[][] range : new float[][][] {itemRange, splitRange}) {
+      Arrays.fill(range[0], Float.POSITIVE_INFINITY);
+      Arrays.fill(range[1], Float.NEGATIVE_INFINITY);
+    }
+    float[] v = new float[DIMENSION];
+    for (long node = 0; node < numNodes; node++) {
+      long nodeOffset = node * NODE_SIZE;
+      int nDescendants = getIntInAnnBuf(nodeOffset);
+      if (nDescendants == 1 || nDescendants > MIN_LEAF_SIZE) {
+        float[][] range = (nDescendants == 1) ? itemRange : splitRange;
+        getNodeVector(nodeOffset, v);
+        for (int z = 0; z < DIMENSION; z++) {
+          range[0][z] = Math.min(range[0][z], v[z]);
+          range[1][z] = Math.max(range[1][z], v[z]);
+        }
+      }
+    }
+
+    QuantizedNodes nodes = QuantizedNodes.allocate(quantization, INDEX_TYPE, DIMENSION,
+            numNodes, BLOCK_SHIFT, itemRange, splitRange);
+    for (long node = 0; node < numNodes; node++) {
+      long nodeOffset = node * NODE_SIZE;
+      int nDescendants = getIntInAnnBuf(nodeOffset);
+      if (nDescendants == 1) {
+        if (isZeroNode(nodeOffset)) {
+          nodes.put(node, 0, 0, 0, 0, null);
+          continue;
+        }
+        getNodeVector(nodeOffset, v);
+        float extra = (INDEX_TYPE == IndexType.ANGULAR) ? norm(v)
+                    : (INDEX_TYPE == IndexType.EUCLIDEAN) ? KERNEL.squaredNorm(v) : 0;
+        nodes.put(node, 1, 0, 0, extra, v);
+      } else if (nDescendants > MIN_LEAF_SIZE) {
+        getNodeVector(nodeOffset, v);
+        long childrenMemOffset = nodeOffset + INDEX_TYPE_OFFSET;
+        float extra = (INDEX_TYPE == IndexType.ANGULAR) ? norm(v)
+                    : (INDEX_TYPE == IndexType.EUCLIDEAN) ? getNodeBias(nodeOffset)
+                    : getDotFactor(nodeOffset);
+        nodes.put(node, nDescendants, getIntInAnnBuf(childrenMemOffset),
+                getIntInAnnBuf(childrenMemOffset + INT_SIZE), extra, v);
+      } else {
+        nodes.put(node, nDescendants, 0, 0, 0, null);
+      }
+    }
+    return nodes;
+  }
+
+  /**
+   * Traverse the trees and score candidates on a copy of the index laid out
+   * for locality: the split planes of all trees packed into a small region
+   * in the given order, and the item vectors in a separate region in the
+   * order of the leaves of the first tree. Upper tree levels then share a
+   * few pages instead of being scattered over the whole file, which counts
+   * most on cold or network-backed storage. The copy is mapped from
+   * {@code <filename>.bfs} or {@code <filename>.veb} if that file exists,
+   * and computed in memory otherwise (see
+   * {@link #saveLayout(NodeOrder, String)}). Quantized traversal, if
+   * enabled, takes precedence; its re-ranking still reads the item region.
+   *
+   * @param order order of the split planes
+   * @throws IOException if the sidecar file exists but can't be loaded
+   */
+  public void enableLayout(final NodeOrder order) throws IOException {
+    File sidecar = new File(filename + "." + order.getSuffix());
+    if (sidecar.exists()) {
+      enableLayout(sidecar.getPath());
+    } else {
+      NodeLayout nodeLayout = layout;
+      if (nodeLayout == null || nodeLayout.order() != order)
+        layout = computeLayout(order);
+    }
+  }
+
+  /**
+   * Use a laid out copy of the index mapped from the given file.
+   *
+   * @param layoutFilename file written by {@link #saveLayout(NodeOrder, String)}
+   * @throws IOException if the file can't be loaded or doesn't match the index
+   */
+  public void enableLayout(final String layoutFilename) throws IOException {
+    checkLayoutable();
+    layout = NodeLayout.map(new File(layoutFilename), INDEX_TYPE, DIMENSION,
+            numNodes, roots.size(), BLOCK_SHIFT, fingerprint());
+  }
+
+  /**
+   * Write a laid out copy of the index to a file which
+   * {@link #enableLayout(NodeOrder)} can map on later loads, by convention
+   * {@code <filename>.bfs} or {@code <filename>.veb}.
+   *
+   * @param order          order of the split planes
+   * @param layoutFilename file to write
+   * @throws IOException if the file can't be written
+   */
+  public void saveLayout(final NodeOrder order,
+                         final String layoutFilename) throws IOException {
+    NodeLayout nodeLayout = layout;
+    if (nodeLayout == null || nodeLayout.order() != order)
+      nodeLayout = computeLayout(order);
+    nodeLayout.write(new File(layoutFilename), fingerprint());
+  }
+
+  private void checkLayoutable() {
+    if (PLANE_METRIC == null) {
+      throw new UnsupportedOperationException("Layouts aren't supported on "
+              + INDEX_TYPE + " indexes");
+    }
+  }
+
+  private NodeLayout computeLayout(final NodeOrder order) {
+    checkLayoutable();
+    if (numNodes > Integer.MAX_VALUE) {
+      throw new IllegalStateException("too many nodes for a layout: " + numNodes);
+    }
+    // one int per node: subtree heights while ordering, then split slots
+    int[] scratch = new int[(int) numNodes];
+    int[] splits = (order == NodeOrder.BREADTH_FIRST) ? breadthFirstSplits()
+                                                      : vanEmdeBoasSplits(scratch);
+    int nSplits = splits.length;
+    int[] slotOf = scratch;
+    for (int slot = 0; slot < nSplits; slot++)
+      slotOf[splits[slot]] = slot;
+
+    // items in the order the leaves of the first tree list them
+    int nItems = getItemCount();
+    int[] itemSlots = new int[nItems];
+    Arrays.fill(itemSlots, -2);
+    int[] itemOrder = new int[nItems];
+    int nStored = 0;
+    IntList stack = new IntList();
+    if (nItems > 0)
+      stack.add((int) (roots.get(0) / NODE_SIZE));
+    while (stack.size > 0) {
+      int node = stack.values[--stack.size];
+      long nodeOffset = node * NODE_SIZE;
+      int nDescendants = getIntInAnnBuf(nodeOffset);
+      if (node < nItems) {
+        nStored = assignItemSlot(node, itemSlots, itemOrder, nStored);
+      } else if (nDescendants > MIN_LEAF_SIZE) {
+        // right first, so that the left subtree comes out first
+        stack.add(getIntInAnnBuf(nodeOffset + INDEX_TYPE_OFFSET + INT_SIZE));
+        stack.add(getIntInAnnBuf(nodeOffset + INDEX_TYPE_OFFSET));
+      } else {
+        for (int i = 0; i < nDescendants; i++)
+          nStored = assignItemSlot(getIntInAnnBuf(nodeOffset + INDEX_TYPE_OFFSET + i * INT_SIZE),
+                  itemSlots, itemOrder, nStored);
+      }
+    }
+    for (int item = 0; item < nItems; item++)
+      nStored = assignItemSlot(item, itemSlots, itemOrder, nStored);
+
+    NodeLayout nodeLayout = NodeLayout.allocate(order, INDEX_TYPE, DIMENSION, numNodes,
+            roots.size(), nSplits, nItems, nStored, BLOCK_SHIFT);
+    for (int r = 0; r < roots.size(); r++)
+      nodeLayout.setRoot(r, layoutRef((int) (roots.get(r) / NODE_SIZE), slotOf));
+    for (int item = 0; item < nItems; item++)
+      nodeLayout.setItemSlot(item, itemSlots[item]);
+    float[] v = new float[DIMENSION];
+    for (int slot = 0; slot < nSplits; slot++) {
+      long nodeOffset = splits[slot] * NODE_SIZE;
+      long childrenMemOffset = nodeOffset + INDEX_TYPE_OFFSET;
+      getNodeVector(nodeOffset, v);
+      nodeLayout.putSplit(slot, splits[slot],
+              layoutRef(getIntInAnnBuf(childrenMemOffset), slotOf),
+              layoutRef(getIntInAnnBuf(childrenMemOffset + INT_SIZE), slotOf),
+              PLANE_METRIC.splitExtra(nodeOffset), v);
+    }
+    for (int slot = 0; slot < nStored; slot++) {
+      long nodeOffset = itemOrder[slot] * NODE_SIZE;
+      getNodeVector(nodeOffset, v);
+      nodeLayout.putItem(slot, normOfNode(nodeOffset), v);
+    }
+    return nodeLayout;
+  }
+
+  private boolean isSplitNode(final int node) {
+    return getIntInAnnBuf(node * NODE_SIZE) > MIN_LEAF_SIZE;
+  }
+
+  /**
+   * @return the split slot of a node, or its complement if it isn't a split
+   */
+  private int layoutRef(final int node, final int[] slotOf) {
+    return isSplitNode(node) ? slotOf[node] : ~node;
+  }
+
+  private int assignItemSlot(final int item, final int[] itemSlots,
+                             final int[] itemOrder, final int nStored) {
+    if (itemSlots[item] != -2)
+      return nStored;
+    if (isZeroNode(item * NODE_SIZE)) {
+      itemSlots[item] = -1;
+      return nStored;
+    }
+    itemSlots[item] = nStored;
+    itemOrder[nStored] = item;
+    return nStored + 1;
+  }
+
+  /**
+   * @return the split nodes level by level across all trees
+   */
+  private int[] breadthFirstSplits() {
+    IntList queue = new IntList();
+    for (long root : roots) {
+      if (isSplitNode((int) (root / NODE_SIZE)))
+        queue.add((int) (root / NODE_SIZE));
+    }
+    for (int head = 0; head < queue.size; head++) {
+      long childrenMemOffset = queue.values[head] * NODE_SIZE + INDEX_TYPE_OFFSET;
+      for (int side = 0; side < 2; side++) {
+        int child = getIntInAnnBuf(childrenMemOffset + side * INT_SIZE);
+        if (isSplitNode(child))
+          queue.add(child);
+      }
+    }
+    return queue.toArray();
+  }
+
+  /**
+   * @return the split nodes tree by tree, each in van Emde Boas order
+   */
+  private int[] vanEmdeBoasSplits(final int[] height) {
+    IntList out = new IntList();
+    for (long root : roots) {
+      int node = (int) (root / NODE_SIZE);
+      if (isSplitNode(node))
+        vanEmdeBoas(node, splitHeight(node, height), height, out);
+    }
+    return out.toArray();
+  }
+
+  /**
+   * @return number of split levels in the subtree of a split node, also
+   *         stored in {@code height} for every split node of the subtree
+   */
+  private int splitHeight(final int node, final int[] height) {
+    long childrenMemOffset = node * NODE_SIZE + INDEX_TYPE_OFFSET;
+    int h = 0;
+    for (int side = 0; side < 2; side++) {
+      int child = getIntInAnnBuf(childrenMemOffset + side * INT_SIZE);
+      if (isSplitNode(child))
+        h = Math.max(h, splitHeight(child, height));
+    }
+    height[node] = h + 1;
+    return h + 1;
+  }
+
+  /**
+   * Append the split nodes within {@code h} levels of a split node in van
+   * Emde Boas order: the top half of the levels, then each subtree hanging
+   * below it.
+   */
+  private void vanEmdeBoas(final int node, final int h, final int[] height, final IntList out) {
+    if (h == 1) {
+      out.add(node);
+      return;
+    }
+    int topHeight = h / 2;
+    vanEmdeBoas(node, topHeight, height, out);
+    IntList bottoms = new IntList();
+    splitsAtDepth(node, topHeight, bottoms);
+    for (int b = 0; b < bottoms.size; b++) {
+      int bottom = bottoms.values[b];
+      vanEmdeBoas(bottom, Math.min(h - topHeight, height[bottom]), height, out);
+    }
+  }
+
+  /**
+   * Append the split nodes {@code depth} levels below a split node, from
+   * left to right.
+   */
+  private void splitsAtDepth(final int node, final int depth, final IntList out) {
+    if (depth == 0) {
+      out.add(node);
+      return;
+    }
+    long childrenMemOffset = node * NODE_SIZE + INDEX_TYPE_OFFSET;
+    for (int side = 0; side < 2; side++) {
+      int child = getIntInAnnBuf(childrenMemOffset + side * INT_SIZE);
+      if (isSplitNode(child))
+        splitsAtDepth(child, depth - 1, out);
+    }
+  }
+
+  private static final class IntList {
+    int[] values = new int[16];
+    int size;
+
+    void add(final int value) {
+      if (size == values.length)
+        values = Arrays.copyOf(values, 2 * size);
+      values[size++] = value;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+
+  /**
+   * Map the external keys of the items from {@code <filename>.keys}, see
+   * {@link ItemKeys#write(String, List)}. The keys stay off-heap and are
+   * looked up in place, so they cost no heap and no load time.
+   *
+   * @throws IOException if the file can't be loaded or doesn't match the index
+   */
+  public void enableKeys() throws IOException {
+    enableKeys(filename + ".keys");
+  }
+
+  /**
+   * Map the external keys of the items from the given file.
+   *
+   * @param keysFilename file written by {@link ItemKeys#write(String, List)}
+   * @throws IOException if the file can't be loaded or doesn't match the index
+   */
+  public void enableKeys(final String keysFilename) throws IOException {
+    keys = ItemKeys.map(new File(keysFilename), getItemCount(), BLOCK_SHIFT);
+  }
+
+  private ItemKeys keys() {
+    ItemKeys itemKeys = keys;
+    if (itemKeys == null) {
+      throw new IllegalStateException("No item keys, see enableKeys()");
+    }
+    return itemKeys;
+  }
+
+  /**
+   * @param itemIndex item to look up
+   * @return external key of the item
+   * @throws IllegalStateException if keys aren't enabled
+   */
+  public String getKey(final int itemIndex) {
+    return keys().getKey(itemIndex);
+  }
+
+  /**
+   * @param key external key to look up
+   * @return item with the key, or -1 if there is none
+   * @throws IllegalStateException if keys aren't enabled
+   */
+  public int getItemIndex(final String key) {
+    return keys().getItem(key);
+  }
+
+  /**
+   * @param key external key of an item
+   * @return the item's vector
+   * @throws IllegalArgumentException if no item has the key
+   * @throws IllegalStateException    if keys aren't enabled
+   */
+  public float[] getItemVector(final String key) {
+    return getItemVector(itemOf(key));
+  }
+
+  private int itemOf(final String key) {
+    int item = keys().getItem(key);
+    if (item < 0) {
+      throw new IllegalArgumentException("No item with key " + key);
+    }
+    return item;
+  }
+
+  /**
+   * Same as {@link #getNearest(float[], int, int)}, returning external keys.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of candidates to collect, or -1 for
+   *                    {@code nResults * number of trees}
+   * @return keys of the nearest items, nearest first
+   * @throws IllegalStateException if keys aren't enabled
+   */
+  public List<String> getNearestKeys(final float[] queryVector,
+                                     final int nResults,
+                                     final int searchK) {
+    ItemKeys itemKeys = keys();
+    List<PQEntry> entries = getNearestPqEntries(queryVector, nResults, searchK);
+    List<String> result = new ArrayList<>(entries.size());
+    for (PQEntry entry : entries)
+      result.add(itemKeys.getKey((int) entry.nodeOffset));
+    return result;
+  }
+
+  public List<String> getNearestKeys(final float[] queryVector, final int nResults) {
+    return getNearestKeys(queryVector, nResults, -1);
+  }
+
+  /**
+   * Find the nearest items of the item with the given key, itself
+   * included.
+   *
+   * @param key      external key of an item
+   * @param nResults number of items to return
+   * @return keys of the nearest items, nearest first
+   * @throws IllegalArgumentException if no item has the key
+   * @throws IllegalStateException    if keys aren't enabled
+   */
+  public List<String> getNearestKeys(final String key, final int nResults) {
+    return getNearestKeys(getItemVector(itemOf(key)), nResults, -1);
+  }
+
+  /**
+   * Closes this stream and releases any system resources associated
+   * with it. If the stream is already closed then invoking this
+   * method has no effect.
+   *
+   * <p> As noted in {@link AutoCloseable#close()}, cases where the
+   * close may fail require careful attention. It is strongly advised
+   * to relinquish the underlying resources and to internally
+   * <em>mark</em> the {@code Closeable} as closed, prior to throwing
+   * the {@code IOException}.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      memoryMappedFile.close();
+    } finally {
+      for (Runnable listener : closeListeners)
+        listener.run();
+    }
+  }
+
+  /**
+   * Call a listener whenever the index is closed or released, e.g. to drop
+   * what was derived from it, see {@link CachingAnnoyIndex}. Listeners run
+   * on the closing thread, once per call to {@link #close()}.
+   *
+   * @param listener listener to call
+   */
+  public void addCloseListener(final Runnable listener) {
+    closeListeners.add(listener);
+  }
+
+  /**
+   * @param listener listener to stop calling on close
+   */
+  public void removeCloseListener(final Runnable listener) {
+    closeListeners.remove(listener);
+  }
+
+  /**
+   * Close the index and unmap or free its buffers right away, rather than
+   * when they are garbage collected. Unlike after {@link #close()}, the
+   * index can't be queried anymore: the caller must make sure no query is
+   * running or will run, see {@link IndexHolder}.
+   *
+   * @throws IOException if the file can't be closed
+   */
+  void release() throws IOException {
+    close();
+    ByteBuffer[] released = buffers;
+    if (released == null)
+      return;
+    NodeNorms nodeNorms = norms;
+    ItemTombstones itemTombstones = tombstones;
+    QuantizedNodes quantizedNodes = quantized;
+    NodeLayout nodeLayout = layout;
+    ItemKeys itemKeys = keys;
+    // late readers fail on null rather than on freed memory
+    buffers = null;
+    norms = null;
+    tombstones = null;
+    quantized = null;
+    layout = null;
+    keys = null;
+    for (ByteBuffer buffer : released)
+      DirectBuffers.free(buffer);
+    if (nodeNorms != null)
+      nodeNorms.free();
+    if (itemTombstones != null)
+      itemTombstones.free();
+    if (quantizedNodes != null)
+      quantizedNodes.free();
+    if (nodeLayout != null)
+      nodeLayout.free();
+    if (itemKeys != null)
+      itemKeys.free();
+  }
+
+  public class PQEntry implements Comparable<PQEntry> {
+
+    PQEntry(final float margin, final long nodeOffset) {
+      this.margin = margin;
+      this.nodeOffset = nodeOffset;
+    }
+
+    private final float margin;
+    private final long  nodeOffset;
+
+    public float getMargin() {
+      return margin;
+    }
+
+    public long getNodeOffset() {
+      return nodeOffset;
+    }
+
+
+    @Override
+    public int compareTo(final PQEntry o) {
+      return Float.compare(o.margin, margin);
+    }
+
+  }
+
+  @Override
+  public final List<Integer> getNearest(final float[] queryVector,
+                                        final int nResults) {
+    return getNearest(queryVector, nResults, -1);
+  }
+
+  public final List<Integer> getNearest(final float[] queryVector,
+                                        final int nResults, int searchK) {
+
+    List<PQEntry> resultingPQEntries = getNearestPqEntries(queryVector, nResults, searchK);
+
+    ArrayList<Integer> result = new ArrayList<>(nResults);
+    for (PQEntry pqEntry: resultingPQEntries) {
+      result.add((int) pqEntry.nodeOffset);
+    }
+    return result;
+  }
+
+   @Override
+   public final List<PQEntry> getNearestPqEntries( final float[] queryVector, final int nResults ) {
+      return getNearestPqEntries(queryVector, nResults, -1);
+   }
+
+  public List<PQEntry> getNearestPqEntries(final float[] queryVector, final int nResults, int searchK ) {
+    return getNearestPqEntries(queryVector, nResults, searchK, searchContexts.get());
+  }
+
+  /**
+   * Look up the nearest items accepted by a filter, e.g.
+   * {@code allowed::get} or {@code item -> !seen.get(item)} for
+   * {@link BitSet} allow and deny lists.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of candidates to collect, or -1 for
+   *                    {@code nResults * number of trees}
+   * @param filter      items to consider
+   * @return list of items in descending nearness to query point
+   * @see #getNearestPqEntries(float[], int, int, IntPredicate, SearchContext)
+   */
+  public final List<Integer> getNearest(final float[] queryVector,
+                                        final int nResults,
+                                        final int searchK,
+                                        final IntPredicate filter) {
+    List<PQEntry> resultingPQEntries = getNearestPqEntries(queryVector, nResults, searchK, filter);
+
+    ArrayList<Integer> result = new ArrayList<>(nResults);
+    for (PQEntry pqEntry: resultingPQEntries) {
+      result.add((int) pqEntry.nodeOffset);
+    }
+    return result;
+  }
+
+  public List<PQEntry> getNearestPqEntries(final float[] queryVector,
+                                           final int nResults,
+                                           final int searchK,
+                                           final IntPredicate filter) {
+    return getNearestPqEntries(queryVector, nResults, searchK, filter, searchContexts.get());
+  }
+
+  /**
+   * Look up nearest PqEntries among the items accepted by a filter. The
+   * filter is applied as items are collected from the trees, so rejected
+   * items don't count towards searchK: traversal goes on until searchK
+   * accepted candidates are found or the trees are exhausted, and the
+   * result holds nResults items whenever that many are accepted. Items are
+   * rejected without computing their distance, but with very selective
+   * filters the traversal may visit most of the forest, at which point
+   * scoring the accepted items directly is cheaper, see
+   * {@link #getExactNearestPqEntries(float[], int, IntPredicate)} and
+   * {@link #setSearchPlanning(boolean)}.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of accepted candidates to collect, or -1 for
+   *                    {@code nResults * number of trees}
+   * @param filter      items to consider, called from the querying thread
+   * @param ctx         scratch state, must not be used concurrently
+   * @return list of PqEntries in descending nearness to query point
+   */
+  public List<PQEntry> getNearestPqEntries(final float[] queryVector,
+                                           final int nResults,
+                                           final int searchK,
+                                           final IntPredicate filter,
+                                           final SearchContext ctx) {
+    ctx.filter = filter;
+    try {
+      return getNearestPqEntries(queryVector, nResults, searchK, ctx);
+    } finally {
+      ctx.filter = null;
+    }
+  }
+
+  /**
+   * Create a new search context for use with
+   * {@link #getNearestPqEntries(float[], int, int, SearchContext)}.
+   *
+   * @return an empty search context
+   */
+  public SearchContext newSearchContext() {
+    return new SearchContext();
+  }
+
+  /**
+   * Look up nearest PqEntries in the tree, using the given context for all
+   * intermediate state. Once the context has warmed up, the only allocations
+   * are the returned list and its entries.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of candidates to collect, or -1 for
+   *                    {@code nResults * number of trees}
+   * @param ctx         scratch state, must not be used concurrently
+   * @return list of PqEntries in descending nearness to query point
+   */
+  public List<PQEntry> getNearestPqEntries(final float[] queryVector,
+                                           final int nResults,
+                                           int searchK,
+                                           final SearchContext ctx) {
+    if (queryVector.length != DIMENSION) {
+      throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
+              DIMENSION, queryVector.length));
+    }
+
+    if (searchK == -1) {
+      searchK = roots.size() * nResults;
+    }
+
+    ctx.reset();
+    if (searchPlanning && prefersScan(searchK, ctx.filter)) {
+      return scan(queryVector, nResults, ctx);
+    }
+    QueryListener listener = queryListener;
+    if (listener == null && !ctx.isStatsEnabled()) {
+      final float queryNorm = norm(queryVector);
+      collectCandidates(queryVector, queryNorm, 0, roots.size(), searchK, ctx);
+      return rank(queryVector, queryNorm, ctx.candidates, nResults, ctx);
+    }
+
+    QueryStats stats = ctx.stats;
+    stats.reset();
+    stats.searchK = searchK;
+    ctx.recording = stats;
+    try {
+      long start = System.nanoTime();
+      final float queryNorm = norm(queryVector);
+      collectCandidates(queryVector, queryNorm, 0, roots.size(), searchK, ctx);
+      long traversed = System.nanoTime();
+      List<PQEntry> result = rank(queryVector, queryNorm, ctx.candidates, nResults, ctx);
+      stats.candidates = ctx.candidates.size();
+      stats.traversalNanos = traversed - start;
+      stats.rankNanos = System.nanoTime() - traversed;
+      if (listener != null)
+        listener.onQuery(stats);
+      return result;
+    } finally {
+      ctx.recording = null;
+    }
+  }
+
+  /**
+   * Let {@code getNearest} and {@code getNearestPqEntries} answer a query
+   * with an exact scan (see {@link #getExactNearestPqEntries}) instead of a
+   * tree search whenever the scan would score no more than a few times
+   * searchK items: on small indexes, with a large searchK, or with a
+   * selective filter, whose selectivity is estimated by testing it on a
+   * sample of the items. Planned queries then return exact results, and
+   * filters must accept being called on items outside the results.
+   *
+   * @param enabled whether to plan queries, off by default
+   */
+  public void setSearchPlanning(final boolean enabled) {
+    this.searchPlanning = enabled;
+  }
+
+  /**
+   * Whether scanning the items accepted by a filter scores at most
+   * {@code SCAN_FACTOR * searchK} items. Tree searches score searchK
+   * candidates, but reach them by random accesses to split nodes and leaves
+   * shared across trees, and test the filter on every item reached; a scan
+   * reads the items in order.
+   */
+  boolean prefersScan(final int searchK, final IntPredicate filter) {
+    int nItems = getItemCount();
+    double selectivity = 1;
+    if (filter != null && nItems > 0) {
+      int nSamples = Math.min(SELECTIVITY_SAMPLE, nItems);
+      int accepted = 0;
+      for (int i = 0; i < nSamples; i++) {
+        if (filter.test((int) ((long) nItems * i / nSamples)))
+          accepted++;
+      }
+      selectivity = Math.max(accepted, 0.5) / nSamples;
+    }
+    return selectivity * nItems <= (double) SCAN_FACTOR * searchK;
+  }
+
+  /**
+   * Look up the exact nearest items by scoring every item against the
+   * query, rather than the candidates of a tree search. This is exact, and
+   * faster than a tree search on small indexes, or when a filter accepts
+   * few items. See {@link ParallelSearcher#getExactNearestPqEntries} to
+   * split the scan over threads.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @return list of PqEntries in descending nearness to query point
+   */
+  public List<PQEntry> getExactNearestPqEntries(final float[] queryVector, final int nResults) {
+    return getExactNearestPqEntries(queryVector, nResults, null, searchContexts.get());
+  }
+
+  /**
+   * Look up the exact nearest items accepted by a filter.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param filter      items to consider, or null for all
+   * @return list of PqEntries in descending nearness to query point
+   * @see #getExactNearestPqEntries(float[], int)
+   */
+  public List<PQEntry> getExactNearestPqEntries(final float[] queryVector,
+                                                final int nResults,
+                                                final IntPredicate filter) {
+    return getExactNearestPqEntries(queryVector, nResults, filter, searchContexts.get());
+  }
+
+  /**
+   * Look up the exact nearest items accepted by a filter, using the given
+   * context for all intermediate state.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param filter      items to consider, or null for all, called from the
+   *                    querying thread
+   * @param ctx         scratch state, must not be used concurrently
+   * @return list of PqEntries in descending nearness to query point
+   * @see #getExactNearestPqEntries(float[], int)
+   */
+  public List<PQEntry> getExactNearestPqEntries(final float[] queryVector,
+                                                final int nResults,
+                                                final IntPredicate filter,
+                                                final SearchContext ctx) {
+    if (queryVector.length != DIMENSION) {
+      throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
+              DIMENSION, queryVector.length));
+    }
+    ctx.reset();
+    ctx.filter = filter;
+    try {
+      return scan(queryVector, nResults, ctx);
+    } finally {
+      ctx.filter = null;
+    }
+  }
+
+  private List<PQEntry> scan(final float[] queryVector, final int nResults, final SearchContext ctx) {
+    NodeHeap best = ctx.ranked;
+    best.clear();
+    if (nResults <= 0)
+      return new ArrayList<>();
+    QueryListener listener = queryListener;
+    if (listener == null && !ctx.isStatsEnabled()) {
+      scanNearest(queryVector, norm(queryVector), best, nResults, 0, getItemCount(), ctx);
+      return drain(best);
+    }
+
+    // a scan has no traversal: all of its time goes to ranking
+    QueryStats stats = ctx.stats;
+    stats.reset();
+    long start = System.nanoTime();
+    long scored = scanNearest(queryVector, norm(queryVector), best, nResults,
+            0, getItemCount(), ctx);
+    List<PQEntry> result = drain(best);
+    stats.candidates = (int) scored;
+    stats.rankNanos = System.nanoTime() - start;
+    if (listener != null)
+      listener.onQuery(stats);
+    return result;
+  }
+
+  /**
+   * Report the {@link QueryStats} of every query from now on. Queries only
+   * pay for the counting and timing while a listener is set.
+   *
+   * @param listener listener to call after each query, or null to stop
+   */
+  public void setQueryListener(final QueryListener listener) {
+    this.queryListener = listener;
+  }
+
+  /**
+   * Iterate over the nearest items lazily, see
+   * {@link #iterateNearest(float[], int, IntPredicate)}. Each result costs
+   * the number of trees in candidates, as {@link #getNearest(float[], int)}.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @return iterator over PqEntries in approximately descending nearness
+   */
+  public Iterator<PQEntry> iterateNearest(final float[] queryVector) {
+    return iterateNearest(queryVector, roots.size(), null);
+  }
+
+  /**
+   * Iterate over the nearest items lazily. The traversal queue and the
+   * candidates collected so far are kept between calls to {@code next()}:
+   * before returning result n (counting from 1) the traversal is expanded
+   * to {@code n * searchKPerResult} candidates, and the best candidate not
+   * returned yet is returned. Fetching more results therefore only costs
+   * the extra traversal, rather than a new query with a larger searchK.
+   *
+   * <p>Results come in descending nearness among the candidates collected
+   * when they are returned, so a candidate found later can be nearer than
+   * one already returned. The first n results hold the same items as
+   * {@code getNearest(queryVector, n, n * searchKPerResult)} up to such
+   * inversions. The iterator ends once every item has been returned.
+   *
+   * <p>The iterator keeps every candidate it collected until it is
+   * discarded, and must not be used from several threads at once.
+   *
+   * @param queryVector      find nearest neighbors for this query point
+   * @param searchKPerResult number of candidates to collect per result
+   * @param filter           items to return, or null for all of them;
+   *                         rejected items don't count as candidates
+   * @return iterator over PqEntries in approximately descending nearness
+   */
+  public Iterator<PQEntry> iterateNearest(final float[] queryVector,
+                                          final int searchKPerResult,
+                                          final IntPredicate filter) {
+    if (queryVector.length != DIMENSION) {
+      throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
+              DIMENSION, queryVector.length));
+    }
+    if (searchKPerResult <= 0) {
+      throw new IllegalArgumentException("searchKPerResult must be positive, but was "
+              + searchKPerResult);
+    }
+    return new NearestIterator(queryVector, searchKPerResult, filter);
+  }
+
+  /**
+   * Stream the nearest items lazily, see {@link #iterateNearest(float[])}.
+   * Short-circuiting operations such as {@code limit} stop the traversal.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @return sequential stream of PqEntries in approximately descending nearness
+   */
+  public Stream<PQEntry> streamNearest(final float[] queryVector) {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterateNearest(queryVector),
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+  }
+
+  /**
+   * The state of a lazy query: its own context, whose traversal queue
+   * {@link #collectCandidates} resumes when called with no roots, and a
+   * heap of the scored candidates not returned yet.
+   */
+  private final class NearestIterator implements Iterator<PQEntry> {
+
+    private final float[] queryVector;
+    private final float queryNorm;
+    private final int searchKPerResult;
+    private final SearchContext ctx = new SearchContext();
+    private int scored;
+    private long returned;
+
+    NearestIterator(final float[] queryVector, final int searchKPerResult,
+                    final IntPredicate filter) {
+      this.queryVector = queryVector.clone();
+      this.queryNorm = norm(queryVector);
+      this.searchKPerResult = searchKPerResult;
+      ctx.filter = filter;
+      // push the roots only
+      collectCandidates(this.queryVector, queryNorm, 0, roots.size(), 0, ctx);
+    }
+
+    @Override
+    public boolean hasNext() {
+      long target = Math.min((returned + 1) * searchKPerResult, Integer.MAX_VALUE);
+      IntHashSet candidates = ctx.candidates;
+      if (candidates.size() < target && !ctx.queue.isEmpty()) {
+        collectCandidates(queryVector, queryNorm, 0, 0, (int) target, ctx);
+        // pending candidates, best on top
+        for (; scored < candidates.size(); scored++) {
+          int item = candidates.get(scored);
+          ctx.ranked.push(exactMargin(item, queryVector, queryNorm, ctx), item);
+        }
+      }
+      return !ctx.ranked.isEmpty();
+    }
+
+    @Override
+    public PQEntry next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      returned++;
+      float margin = ctx.ranked.topPriority();
+      return new PQEntry(margin, ctx.ranked.pop());
+    }
+  }
+
+  /**
+   * Traverse the trees of roots [fromRoot, toRoot) best-first until searchK
+   * candidates are in {@code ctx.candidates} or the trees are exhausted.
+   * Calling again with no roots and a larger searchK resumes the traversal
+   * where it stopped.
+   */
+  void collectCandidates(final float[] queryVector,
+                         final float queryNorm,
+                         final int fromRoot,
+                         final int toRoot,
+                         final int searchK,
+                         final SearchContext ctx) {
+    QuantizedNodes quantizedNodes = quantized;
+    if (quantizedNodes != null) {
+      collectQuantizedCandidates(quantizedNodes, queryVector, queryNorm,
+              fromRoot, toRoot, searchK, ctx);
+      return;
+    }
+    NodeLayout nodeLayout = layout;
+    if (nodeLayout != null) {
+      collectLayoutCandidates(nodeLayout, queryVector, queryNorm,
+              fromRoot, toRoot, searchK, ctx);
+      return;
+    }
+    final Metric metric = METRIC;
+    metric.prepare(queryVector, ctx);
+    final ItemTombstones dead = tombstones;
+    NodeHeap pq = ctx.queue;
+    final float kMaxPriority = metric.rootPriority();
+
+    for (int r = fromRoot; r < toRoot; r++) {
+      pq.push(kMaxPriority, roots.get(r));
+    }
+
+    IntHashSet nearestNeighbors = ctx.candidates;
+    IntPredicate filter = ctx.filter;
+    // counted in locals, they only reach the stats when recording
+    long splitNodes = 0, leaves = 0, items = 0, duplicates = 0, filtered = 0;
+    // asynchronous queries may stop early, see AsyncSearcher
+    final boolean stoppable = ctx.stoppable;
+    int steps = 0;
+    while (nearestNeighbors.size() < searchK && !pq.isEmpty()) {
+      if (stoppable && (++steps & STOP_CHECK_MASK) == 0 && ctx.shouldStop())
+        break;
+      float priority = pq.topPriority();
+      long topNodeOffset = pq.pop();
+      int nDescendants = getIntInAnnBuf(topNodeOffset);
+      if (nDescendants == 1) {  // n_descendants
+        items++;
+        int item = (int) (topNodeOffset / NODE_SIZE);
+        if (nearestNeighbors.contains(item)) {
+          duplicates++;
+          continue;
+        }
+        if (filter != null && !filter.test(item)) {
+          filtered++;
+          continue;
+        }
+        // FIXME: does this ever happen?
+        if ((dead != null) ? dead.contains(item) : metric.isSkipped(topNodeOffset))
+          continue;
+        nearestNeighbors.add(item);
+      } else if (nDescendants <= MIN_LEAF_SIZE) {
+        leaves++;
+        items += nDescendants;
+        for (int i = 0; i < nDescendants; i++) {
+          int j = getIntInAnnBuf(topNodeOffset +
+                  INDEX_TYPE_OFFSET +
+                  i * INT_SIZE);
+          // items of several trees are only checked once
+          if (nearestNeighbors.contains(j)) {
+            duplicates++;
+            continue;
+          }
+          if (filter != null && !filter.test(j)) {
+            filtered++;
+            continue;
+          }
+          // zero vectors are deleted or unset items
+          if ((dead != null) ? dead.contains(j) : metric.isSkipped(j * NODE_SIZE))
+            continue;
+          nearestNeighbors.add(j);
+        }
+      } else {
+        splitNodes++;
+        float margin = splitMargin(topNodeOffset, queryVector, queryNorm, ctx);
+        long childrenMemOffset = topNodeOffset + INDEX_TYPE_OFFSET;
+        long lChild = NODE_SIZE * getIntInAnnBuf(childrenMemOffset);
+        long rChild = NODE_SIZE * getIntInAnnBuf(childrenMemOffset + 4);
+        pq.push(metric.childPriority(priority, margin, 0), lChild);
+        pq.push(metric.childPriority(priority, margin, 1), rChild);
+      }
+    }
+    record(ctx, splitNodes, leaves, items, duplicates, filtered);
+  }
+
+  private static void record(final SearchContext ctx, final long splitNodes,
+                             final long leaves, final long items,
+                             final long duplicates, final long filtered) {
+    QueryStats stats = ctx.recording;
+    if (stats != null) {
+      stats.splitNodes += splitNodes;
+      stats.leaves += leaves;
+      stats.items += items;
+      stats.duplicates += duplicates;
+      stats.filtered += filtered;
+    }
+  }
+
+  /**
+   * Same traversal as {@link #collectCandidates}, reading split planes and
+   * items from the quantized nodes. Heap entries are node ids rather than
+   * offsets.
+   */
+  private void collectQuantizedCandidates(final QuantizedNodes quantizedNodes,
+                                          final float[] queryVector,
+                                          final float queryNorm,
+                                          final int fromRoot,
+                                          final int toRoot,
+                                          final int searchK,
+                                          final SearchContext ctx) {
+    float[] prepared = ctx.quantizedQuery(quantizedNodes.preparedSize());
+    quantizedNodes.prepare(queryVector, prepared);
+    NodeHeap pq = ctx.queue;
+    final float kMaxPriority = 1e30f;
+
+    for (int r = fromRoot; r < toRoot; r++) {
+      pq.push(kMaxPriority, roots.get(r) / NODE_SIZE);
+    }
+
+    IntHashSet nearestNeighbors = ctx.candidates;
+    IntPredicate filter = ctx.filter;
+    long splitNodes = 0, leaves = 0, items = 0, duplicates = 0, filtered = 0;
+    final boolean stoppable = ctx.stoppable;
+    int steps = 0;
+    while (nearestNeighbors.size() < searchK && !pq.isEmpty()) {
+      if (stoppable && (++steps & STOP_CHECK_MASK) == 0 && ctx.shouldStop())
+        break;
+      long node = pq.pop();
+      int nDescendants = quantizedNodes.nDescendants(node);
+      if (nDescendants == 1) {
+        items++;
+        if (filter != null && !filter.test((int) node))
+          filtered++;
+        else if (!nearestNeighbors.add((int) node))
+          duplicates++;
+      } else if (nDescendants <= MIN_LEAF_SIZE) {
+        leaves++;
+        items += nDescendants;
+        // child lists are only kept in the index
+        for (int i = 0; i < nDescendants; i++) {
+          int j = getIntInAnnBuf(node * NODE_SIZE + INDEX_TYPE_OFFSET + i * INT_SIZE);
+          if (filter != null && !filter.test(j)) {
+            filtered++;
+            continue;
+          }
+          if (quantizedNodes.nDescendants(j) == 0)
+            continue;
+          if (!nearestNeighbors.add(j))
+            duplicates++;
+        }
+      } else {
+        splitNodes++;
+        float d = quantizedNodes.dot(node, false, queryVector, prepared);
+        float margin = PLANE_METRIC.planeMargin(d, quantizedNodes.extra(node), queryNorm);
+        pq.push(-margin, quantizedNodes.child(node, 0));
+        pq.push(margin, quantizedNodes.child(node, 1));
+      }
+    }
+    record(ctx, splitNodes, leaves, items, duplicates, filtered);
+  }
+
+  /**
+   * Same traversal as {@link #collectCandidates}, reading split planes from
+   * the laid out copy and only leaf child lists from the index. Heap entries
+   * are layout references rather than offsets.
+   */
+  private void collectLayoutCandidates(final NodeLayout nodeLayout,
+                                       final float[] queryVector,
+                                       final float queryNorm,
+                                       final int fromRoot,
+                                       final int toRoot,
+                                       final int searchK,
+                                       final SearchContext ctx) {
+    NodeHeap pq = ctx.queue;
+    final float kMaxPriority = 1e30f;
+
+    for (int r = fromRoot; r < toRoot; r++) {
+      pq.push(kMaxPriority, nodeLayout.root(r));
+    }
+
+    int nItems = nodeLayout.itemCount();
+    IntHashSet nearestNeighbors = ctx.candidates;
+    IntPredicate filter = ctx.filter;
+    long splitNodes = 0, leaves = 0, items = 0, duplicates = 0, filtered = 0;
+    final boolean stoppable = ctx.stoppable;
+    int steps = 0;
+    while (nearestNeighbors.size() < searchK && !pq.isEmpty()) {
+      if (stoppable && (++steps & STOP_CHECK_MASK) == 0 && ctx.shouldStop())
+        break;
+      long ref = pq.pop();
+      if (ref >= 0) {
+        splitNodes++;
+        int slot = (int) ref;
+        float d = KERNEL.dot(nodeLayout.splitBlock(slot), nodeLayout.splitOffset(slot), queryVector);
+        float margin = PLANE_METRIC.planeMargin(d, nodeLayout.splitExtra(slot), queryNorm);
+        pq.push(-margin, nodeLayout.child(slot, 0));
+        pq.push(margin, nodeLayout.child(slot, 1));
+        continue;
+      }
+      int node = (int) ~ref;
+      if (node < nItems) {
+        items++;
+        if (filter != null && !filter.test(node))
+          filtered++;
+        else if (nodeLayout.itemSlot(node) >= 0 && !nearestNeighbors.add(node))
+          duplicates++;
+        continue;
+      }
+      // child lists are only kept in the index
+      long nodeOffset = node * NODE_SIZE;
+      int nDescendants = getIntInAnnBuf(nodeOffset);
+      leaves++;
+      items += nDescendants;
+      for (int i = 0; i < nDescendants; i++) {
+        int j = getIntInAnnBuf(nodeOffset + INDEX_TYPE_OFFSET + i * INT_SIZE);
+        if (filter != null && !filter.test(j)) {
+          filtered++;
+          continue;
+        }
+        if (nodeLayout.itemSlot(j) < 0)
+          continue;
+        if (!nearestNeighbors.add(j))
+          duplicates++;
+      }
+    }
+    record(ctx, splitNodes, leaves, items, duplicates, filtered);
+  }
+
+  /**
+   * Score every candidate against the query and return the best nResults.
+   * Only the best nResults seen so far are kept, in a heap whose top is the
+   * worst of them; euclidean distances are abandoned as soon as they exceed
+   * that worst one. With quantization enabled, candidates are scored on
+   * their codes and only the best {@code RERANK_FACTOR * nResults} are
+   * scored exactly.
+   */
+  List<PQEntry> rank(final float[] queryVector,
+                     final float queryNorm,
+                     final IntHashSet nearestNeighbors,
+                     final int nResults,
+                     final SearchContext ctx) {
+    // a max-heap on -margin, so its top is the worst entry kept
+    NodeHeap best = ctx.ranked;
+    best.clear();
+    if (nResults <= 0)
+      return new ArrayList<>();
+    METRIC.prepare(queryVector, ctx);
+    QuantizedNodes quantizedNodes = quantized;
+    if (quantizedNodes != null) {
+      float[] prepared = ctx.quantizedQuery(quantizedNodes.preparedSize());
+      quantizedNodes.prepare(queryVector, prepared);
+      int pool = (int) Math.min((long) RERANK_FACTOR * nResults, Integer.MAX_VALUE);
+      for (int i = 0; i < nearestNeighbors.size(); i++) {
+        int nn = nearestNeighbors.get(i);
+        float d = quantizedNodes.dot(nn, true, queryVector, prepared);
+        offer(best, pool, QUANTIZED_METRIC.quantizedMargin(d, quantizedNodes.extra(nn), queryNorm), nn);
+      }
+      int nRerank = best.size();
+      int[] rerank = ctx.rerank(nRerank);
+      for (int i = 0; i < nRerank; i++)
+        rerank[i] = (int) best.pop();
+      for (int i = 0; i < nRerank; i++)
+        offerExact(best, nResults, rerank[i], queryVector, queryNorm, ctx);
+    } else {
+      for (int i = 0; i < nearestNeighbors.size(); i++)
+        offerExact(best, nResults, nearestNeighbors.get(i), queryVector, queryNorm, ctx);
+    }
+
+    return drain(best);
+  }
+
+  /**
+   * Empty a heap built by {@link #rank} into a list of PqEntries in
+   * descending nearness.
+   */
+  List<PQEntry> drain(final NodeHeap best) {
+    // worst first out of the heap
+    int n = best.size();
+    ArrayList<PQEntry> result = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      float margin = -best.topPriority();
+      result.add(new PQEntry(margin, best.pop()));
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  /**
+   * Score items fromItem to toItem exactly against each query, leaving out
+   * the items queries leave out, and keep the best k of each query in its
+   * heap as built by {@link #rank}. Items are scanned in blocks, each block
+   * being scored against all queries while it is in cache. Stoppable
+   * queries check whether to stop between blocks.
+   *
+   * @return number of items scored per query
+   */
+  long scanNearest(final float[][] queryVectors,
+                   final float[] queryNorms,
+                   final NodeHeap[] best,
+                   final int k,
+                   final int fromItem,
+                   final int toItem,
+                   final SearchContext ctx) {
+    final ItemTombstones dead = tombstones;
+    final IntPredicate filter = ctx.filter;
+    final boolean[] skipped = ctx.scanSkipped(SCAN_BLOCK);
+    long scored = 0;
+    for (int start = fromItem; start < toItem; start += SCAN_BLOCK) {
+      if (ctx.stoppable && ctx.shouldStop())
+        break;
+      int n = Math.min(SCAN_BLOCK, toItem - start);
+      for (int i = 0; i < n; i++) {
+        int item = start + i;
+        skipped[i] = ((dead != null) ? dead.contains(item) : METRIC.isSkipped(item * NODE_SIZE))
+                || (filter != null && !filter.test(item));
+        scored += skipped[i] ? 0 : 1;
+      }
+      for (int q = 0; q < queryVectors.length; q++) {
+        METRIC.prepare(queryVectors[q], ctx);
+        for (int i = 0; i < n; i++) {
+          if (!skipped[i])
+            offerExact(best[q], k, start + i, queryVectors[q], queryNorms[q], ctx);
+        }
+      }
+    }
+    return scored;
+  }
+
+  /**
+   * Scan for a single query through the context's one-query arrays, so
+   * that planned and exact queries don't allocate beyond their results.
+   */
+  long scanNearest(final float[] queryVector,
+                   final float queryNorm,
+                   final NodeHeap best,
+                   final int k,
+                   final int fromItem,
+                   final int toItem,
+                   final SearchContext ctx) {
+    ctx.scanQuery[0] = queryVector;
+    ctx.scanNorm[0] = queryNorm;
+    ctx.scanBest[0] = best;
+    try {
+      return scanNearest(ctx.scanQuery, ctx.scanNorm, ctx.scanBest, k, fromItem, toItem, ctx);
+    } finally {
+      ctx.scanQuery[0] = null;
+      ctx.scanBest[0] = null;
+    }
+  }
+
+  /**
+   * Keep an entry among the best k in a heap built by {@link #rank}.
+   */
+  private static void offer(final NodeHeap best, final int k,
+                            final float margin, final long node) {
+    if (best.size() < k) {
+      best.push(-margin, node);
+    } else if (-margin < best.topPriority()) {
+      best.replaceTop(-margin, node);
+    }
+  }
+
+  private void offerExact(final NodeHeap best, final int k, final int item,
+                          final float[] queryVector, final float queryNorm,
+                          final SearchContext ctx) {
+    NodeLayout nodeLayout = layout;
+    if (nodeLayout != null) {
+      int slot = nodeLayout.itemSlot(item);
+      METRIC.offer(best, k, nodeLayout.itemBlock(slot), nodeLayout.itemOffset(slot), item,
+              queryVector, queryNorm, ctx);
+    } else {
+      long nnOffset = item * NODE_SIZE;
+      METRIC.offer(best, k, bufferAt(nnOffset), (int) (nnOffset & BLOCK_MASK) + K_NODE_HEADER_STYLE,
+              item, queryVector, queryNorm, ctx);
+    }
+  }
+
+  private float exactMargin(final int item, final float[] queryVector, final float queryNorm,
+                            final SearchContext ctx) {
+    NodeLayout nodeLayout = layout;
+    if (nodeLayout != null) {
+      int slot = nodeLayout.itemSlot(item);
+      return METRIC.itemMargin(nodeLayout.itemBlock(slot), nodeLayout.itemOffset(slot), item,
+              queryVector, queryNorm, ctx);
+    }
+    long nnOffset = item * NODE_SIZE;
+    return METRIC.itemMargin(bufferAt(nnOffset), (int) (nnOffset & BLOCK_MASK) + K_NODE_HEADER_STYLE,
+            item, queryVector, queryNorm, ctx);
+  }
+
+  SearchContext searchContext() {
+    return searchContexts.get();
+  }
+
+  int getRootCount() {
+    return roots.size();
+  }
+
+  int getDimension() {
+    return DIMENSION;
+  }
+
+  IndexType getIndexType() {
+    return INDEX_TYPE;
+  }
+
+  // the roots' n_descendants
+  int getItemCount() {
+    return roots.isEmpty() ? 0 : getIntInAnnBuf(roots.get(0));
+  }
+
+  /**
+   * Identify the index file in the headers of its sidecars: a 64-bit FNV-1a
+   * hash of the file size, the first node and the roots. Sidecars of
+   * another index, or of an earlier build of this one, then fail to load
+   * rather than silently answer for the wrong nodes.
+   */
+  long fingerprint() {
+    long hash = 0xcbf29ce484222325L;
+    long fileSize = numNodes * NODE_SIZE;
+    for (int i = 0; i < 8; i++)
+      hash = (hash ^ ((fileSize >>> (8 * i)) & 0xff)) * 0x100000001b3L;
+    hash = hashNode(hash, 0);
+    for (long root : roots)
+      hash = hashNode(hash, root);
+    return hash;
+  }
+
+  private long hashNode(long hash, final long nodeOffset) {
+    // blocks overlap by a node, so a node lies in the block it starts in
+    ByteBuffer buffer = bufferAt(nodeOffset);
+    int offset = (int) (nodeOffset & BLOCK_MASK);
+    for (int i = 0; i < NODE_SIZE; i++)
+      hash = (hash ^ (buffer.get(offset + i) & 0xff)) * 0x100000001b3L;
+    return hash;
+  }
+
+  private float splitMargin(final long nodeOffset,
+                            final float[] queryVector,
+                            final float queryNorm,
+                            final SearchContext ctx) {
+    BatchMargins batchMargins = ctx.batchMargins;
+    if (batchMargins != null) {
+      int slot = batchMargins.slot((int) (nodeOffset / NODE_SIZE));
+      if (slot >= 0)
+        return batchMargin(batchMargins, slot, nodeOffset, queryVector, queryNorm);
+    }
+    return METRIC.splitMargin(nodeOffset, queryVector, queryNorm, ctx);
+  }
+
+  /**
+   * @return the margin of a shared node for a query of the batch, computing
+   *         the node's extra float on the first visit of the batch
+   */
+  private float batchMargin(final BatchMargins batchMargins, final int slot, final long nodeOffset,
+                            final float[] queryVector, final float queryNorm) {
+    float extra = batchMargins.extra(slot);
+    if (Float.isNaN(extra)) {
+      extra = PLANE_METRIC.splitExtra(nodeOffset);
+      batchMargins.fill(slot, extra);
+    }
+    return PLANE_METRIC.planeMargin(dotWithNode(nodeOffset, queryVector), extra, queryNorm);
+  }
+
+  @Override
+  public final List<List<Integer>> getNearestBatch(final float[][] queryVectors,
+                                                   final int nResults) {
+    return getNearestBatch(queryVectors, nResults, -1);
+  }
+
+  @Override
+  public final List<List<Integer>> getNearestBatch(final float[] queryMatrix,
+                                                   final int nQueries,
+                                                   final int nResults) {
+    return getNearestBatch(rows(queryMatrix, nQueries), nResults, -1);
+  }
+
+  public final List<List<Integer>> getNearestBatch(final float[][] queryVectors,
+                                                   final int nResults,
+                                                   final int searchK) {
+    List<List<PQEntry>> batch = getNearestPqEntriesBatch(queryVectors, nResults, searchK);
+    List<List<Integer>> results = new ArrayList<>(batch.size());
+    for (List<PQEntry> entries : batch) {
+      List<Integer> result = new ArrayList<>(entries.size());
+      for (PQEntry pqEntry : entries) {
+        result.add((int) pqEntry.nodeOffset);
+      }
+      results.add(result);
+    }
+    return results;
+  }
+
+  /**
+   * Look up nearest PqEntries for a batch of query vectors. The upper levels
+   * of every tree are visited by many queries, so for angular indexes
+   * without {@link #enableNorms() node norms} the first query to reach one
+   * of their split nodes keeps the node's norm for the rest of the batch,
+   * instead of it being computed again by every query. Only the levels where
+   * several queries still meet are shared, about log2 of the batch size
+   * minus 3.
+   *
+   * @param queryVectors query points, each of size dimension
+   * @param nResults     number of items to return per query
+   * @param searchK      number of candidates to collect per query, or -1 for
+   *                     {@code nResults * number of trees}
+   * @return one list of PqEntries per query, in query order
+   */
+  public List<List<PQEntry>> getNearestPqEntriesBatch(final float[][] queryVectors,
+                                                      final int nResults,
+                                                      final int searchK) {
+    for (float[] queryVector : queryVectors) {
+      if (queryVector.length != DIMENSION) {
+        throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
+                DIMENSION, queryVector.length));
+      }
+    }
+    List<List<PQEntry>> results = new ArrayList<>(queryVectors.length);
+    if (queryVectors.length == 0)
+      return results;
+
+    SearchContext ctx = searchContexts.get();
+    // only split planes whose extra float costs a pass over the node are
+    // worth sharing, and a single query has nothing to share
+    ctx.batchMargins = (PLANE_METRIC != null && PLANE_METRIC.computesSplitExtra()
+            && queryVectors.length > 1) ? batchMargins(queryVectors.length) : null;
+    try {
+      for (int q = 0; q < queryVectors.length; q++) {
+        results.add(getNearestPqEntries(queryVectors[q], nResults, searchK, ctx));
+      }
+    } finally {
+      ctx.batchMargins = null;
+    }
+    return results;
+  }
+
+  private float[][] rows(final float[] queryMatrix, final int nQueries) {
+    if (nQueries < 0 || queryMatrix.length != nQueries * DIMENSION) {
+      throw new RuntimeException(String.format(
+              "queryMatrix must be of size %d * %d, but was %d",
+              nQueries, DIMENSION, queryMatrix.length));
+    }
+    float[][] queryVectors = new float[nQueries][];
+    for (int q = 0; q < nQueries; q++) {
+      queryVectors[q] = Arrays.copyOfRange(queryMatrix, q * DIMENSION, (q + 1) * DIMENSION);
+    }
+    return queryVectors;
+  }
+
+  private BatchMargins batchMargins(final int nQueries) {
+    // a node at depth d is on the way of about nQueries / 2^d queries; below
+    // the levels where 8 or more meet, probing the table costs more than it
+    // saves
+    final int maxDepth = Math.max(0, 31 - Integer.numberOfLeadingZeros(nQueries) - 3);
+
+    // breadth-first from the roots, split nodes only
+    long[] nodes = new long[Math.min(MAX_BATCH_NODES, roots.size() << Math.min(maxDepth + 1, 20))];
+    int n = 0;
+    for (int r = 0; r < roots.size() && n < nodes.length; r++) {
+      if (getIntInAnnBuf(roots.get(r)) > MIN_LEAF_SIZE)
+        nodes[n++] = roots.get(r);
+    }
+    for (int depth = 0, head = 0; depth < maxDepth; depth++) {
+      int levelEnd = n;
+      for (; head < levelEnd && n < nodes.length; head++) {
+        long childrenMemOffset = nodes[head] + INDEX_TYPE_OFFSET;
+        for (int side = 0; side < 2 && n < nodes.length; side++) {
+          long child = NODE_SIZE * getIntInAnnBuf(childrenMemOffset + side * INT_SIZE);
+          if (getIntInAnnBuf(child) > MIN_LEAF_SIZE)
+            nodes[n++] = child;
+        }
+      }
+    }
+    return new BatchMargins(Arrays.copyOf(nodes, n), NODE_SIZE);
   }
 
   /**
    * a test query program.
    *
-   * @param args tree filename, dimension, indextype ("angular" or
-   *             "euclidean" and query item id.
+   * @param args tree filename, dimension, indextype ("angular", "dot",
+   *             "euclidean", "manhattan" or "hamming") and query item id.
    * @throws IOException if unable to load index
    */
   public static void main(final String[] args) throws IOException {
@@ -360,6 +2484,10 @@ public class ANNIndex implements AnnoyIndex {
       indexType = IndexType.DOT;
     else if (args[2].toLowerCase().equals("euclidean"))
       indexType = IndexType.EUCLIDEAN;
+    else if (args[2].toLowerCase().equals("manhattan"))
+      indexType = IndexType.MANHATTAN;
+    else if (args[2].toLowerCase().equals("hamming"))
+      indexType = IndexType.HAMMING;
     else throw new RuntimeException("wrong index type specified");
     int queryItem = Integer.parseInt(args[3]);  // 3
 
@@ -373,13 +2501,16 @@ public class ANNIndex implements AnnoyIndex {
     }
     System.out.printf("\n");
 
-    List<Integer> nearestNeighbors = annIndex.getNearest(u, 10);
-    for (int nn : nearestNeighbors) {
+    List<PQEntry> nearestNeighbors = annIndex.getNearestPqEntries(u, 10);
+    for (PQEntry entry : nearestNeighbors) {
+      int nn = (int) entry.getNodeOffset();
       float[] v = annIndex.getItemVector(nn);
+      // manhattan and hamming margins are negated distances
       System.out.printf("%d %d %f\n",
               queryItem, nn,
-              (indexType == IndexType.ANGULAR) ?
-                      cosineMargin(u, v) : euclideanDistance(u, v));
+              (indexType == IndexType.ANGULAR) ? cosineMargin(u, v)
+              : (indexType == IndexType.MANHATTAN || indexType == IndexType.HAMMING)
+                      ? -entry.getMargin() : euclideanDistance(u, v));
     }
   }
 
@@ -1,6 +1,8 @@
 package com.spotify.annoy;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -47,4 +49,38 @@ public interface AnnoyIndex extends Closeable{
    * @return             list of PqEntries in descending nearness to query point, containing margin and node offset
    */
   List<ANNIndex.PQEntry> getNearestPqEntries(float[] queryVector, int nResults);
+
+  /**
+   * Look up nearest neighbors for a batch of query points.
+   * @param queryVectors  find nearest neighbors for each of these query points
+   * @param nResults      number of items to return per query
+   * @return              one list of items per query, in query order
+   */
+  default List<List<Integer>> getNearestBatch(float[][] queryVectors, int nResults) {
+    List<List<Integer>> results = new ArrayList<>(queryVectors.length);
+    for (float[] queryVector : queryVectors) {
+      results.add(getNearest(queryVector, nResults));
+    }
+    return results;
+  }
+
+  /**
+   * Look up nearest neighbors for a batch of query points stored row by row
+   * in a single array.
+   * @param queryMatrix  nQueries query points, concatenated
+   * @param nQueries     number of query points in queryMatrix
+   * @param nResults     number of items to return per query
+   * @return             one list of items per query, in query order
+   */
+  default List<List<Integer>> getNearestBatch(float[] queryMatrix, int nQueries, int nResults) {
+    if (nQueries <= 0 || queryMatrix.length % nQueries != 0) {
+      throw new IllegalArgumentException("queryMatrix length must be a multiple of nQueries");
+    }
+    int dimension = queryMatrix.length / nQueries;
+    float[][] queryVectors = new float[nQueries][];
+    for (int q = 0; q < nQueries; q++) {
+      queryVectors[q] = Arrays.copyOfRange(queryMatrix, q * dimension, (q + 1) * dimension);
+    }
+    return getNearestBatch(queryVectors, nResults);
+  }
 }
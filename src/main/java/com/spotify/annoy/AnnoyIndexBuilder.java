@@ -0,0 +1,501 @@
+package com.spotify.annoy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds Annoy index files in the layout written by the C++ library, so
+ * they load both in {@link ANNIndex} and in annoy itself: one node per item
+ * in item order, then the nodes of every tree, then a copy of every root.
+ *
+ * <p>Items are written to the output file as they are added, and read back
+ * through a memory map while the trees are built. The heap only holds what
+ * the trees being built need: per thread, an array of item ids and the
+ * tree's own split and leaf nodes, which are appended to the file as each
+ * tree finishes.
+ *
+ * <p>Trees are built like annoy builds them: each split is the hyperplane
+ * between two means found by a short k-means over sampled items, retried
+ * when it is too unbalanced and replaced by a random split as a last
+ * resort. A builder is used from one thread; {@link #build(int, int)} runs
+ * its own workers.
+ */
+public class AnnoyIndexBuilder implements Closeable {
+
+  private final int DIMENSION, LEAF_SIZE;
+  private final IndexType INDEX_TYPE;
+  private final int INDEX_TYPE_OFFSET;
+  private final int K_NODE_HEADER_STYLE;
+  private final int NODE_SIZE;
+
+  private final int INT_SIZE = 4;
+  private final int FLOAT_SIZE = 4;
+  // as in annoy: k-means steps per split, and tries before a random split
+  private static final int TWO_MEANS_STEPS = 200;
+  private static final int SPLIT_ATTEMPTS = 3;
+  // items are mapped back in blocks of at most this many bytes
+  private static final int MAX_BLOCK_BYTES = 1 << 30;
+  // contiguous items are written in chunks of about this size
+  private static final int WRITE_CHUNK = 1 << 20;
+
+  private final RandomAccessFile file;
+  private final BitSet added = new BitSet();
+  private int nItems;
+  private long seed = System.nanoTime();
+  private boolean built;
+
+  private final byte[] pending;
+  private final ByteBuffer pendingBuffer;
+  private int pendingStart, pendingCount;
+
+  private ByteBuffer[] itemBlocks;
+  private int itemsPerBlock;
+  private long nNodes;
+
+
+  /**
+   * Start building an index into a new file, replacing any existing one.
+   *
+   * @param dimension dimensionality of the items, e.g. 40
+   * @param filename  filename of the index to write
+   * @param indexType type of index: angular, euclidean or dot
+   * @throws IOException if the file can't be created
+   */
+  public AnnoyIndexBuilder(final int dimension,
+                           final String filename,
+                           final IndexType indexType) throws IOException {
+    if (indexType == IndexType.MANHATTAN || indexType == IndexType.HAMMING) {
+      throw new UnsupportedOperationException("Can't build " + indexType + " indexes");
+    }
+    DIMENSION = dimension;
+    INDEX_TYPE = indexType;
+    INDEX_TYPE_OFFSET = INDEX_TYPE.getOffset();
+    K_NODE_HEADER_STYLE = INDEX_TYPE.getkNodeHeaderStyle();
+    LEAF_SIZE = INDEX_TYPE.getLeafSize(DIMENSION);
+    NODE_SIZE = K_NODE_HEADER_STYLE + FLOAT_SIZE * DIMENSION;
+    pending = new byte[Math.max(1, WRITE_CHUNK / NODE_SIZE) * NODE_SIZE];
+    pendingBuffer = ByteBuffer.wrap(pending).order(ByteOrder.LITTLE_ENDIAN);
+    file = new RandomAccessFile(filename, "rw");
+    file.setLength(0);
+  }
+
+  /**
+   * Fix the seed of the random splits, to build the same trees every time
+   * (node ids still depend on the order in which trees finish when more
+   * than one thread builds them).
+   */
+  public AnnoyIndexBuilder setSeed(final long seed) {
+    this.seed = seed;
+    return this;
+  }
+
+  /**
+   * Add an item. Ids need not be contiguous: like in annoy, the index has
+   * room for every id up to the largest one added, and ids never added are
+   * left out of the trees.
+   *
+   * @param item   id of the item, from 0
+   * @param vector the item's vector
+   * @throws IOException if the item can't be written
+   */
+  public void addItem(final int item, final float[] vector) throws IOException {
+    if (built)
+      throw new IllegalStateException("Can't add items to an index that has been built");
+    if (item < 0)
+      throw new IllegalArgumentException("Item ids must be non-negative, got " + item);
+    if (vector.length != DIMENSION) {
+      throw new RuntimeException(String.format(
+              "Tried to add vector with dimension %d to an index of dimension %d",
+              vector.length, DIMENSION));
+    }
+    if (pendingCount > 0 && (item != pendingStart + pendingCount
+            || (pendingCount + 1) * NODE_SIZE > pending.length))
+      flushPending();
+    if (pendingCount == 0)
+      pendingStart = item;
+
+    int offset = pendingCount++ * NODE_SIZE;
+    Arrays.fill(pending, offset, offset + NODE_SIZE, (byte) 0);
+    pendingBuffer.putInt(offset, 1);
+    for (int z = 0; z < DIMENSION; z++)
+      pendingBuffer.putFloat(offset + K_NODE_HEADER_STYLE + FLOAT_SIZE * z, vector[z]);
+    added.set(item);
+    nItems = Math.max(nItems, item + 1);
+  }
+
+  private void flushPending() throws IOException {
+    file.seek((long) pendingStart * NODE_SIZE);
+    file.write(pending, 0, pendingCount * NODE_SIZE);
+    pendingCount = 0;
+  }
+
+  /**
+   * Build the trees on one thread per core.
+   *
+   * @param nTrees number of trees, or -1 to keep adding trees until the
+   *               index holds about twice as many nodes as items, like annoy
+   * @throws IOException if the trees can't be written
+   */
+  public void build(final int nTrees) throws IOException {
+    build(nTrees, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Build the trees and finish the file, after which it can be loaded with
+   * {@link ANNIndex}.
+   *
+   * @param nTrees   number of trees, or -1 to keep adding trees until the
+   *                 index holds about twice as many nodes as items, like annoy
+   * @param nThreads number of trees built at the same time
+   * @throws IOException if the trees can't be written
+   */
+  public void build(final int nTrees, final int nThreads) throws IOException {
+    if (built)
+      throw new IllegalStateException("Index has already been built");
+    if (nThreads < 1)
+      throw new IllegalArgumentException("nThreads must be positive, got " + nThreads);
+    if (pendingCount > 0)
+      flushPending();
+    built = true;
+
+    int[] ids = new int[added.cardinality()];
+    for (int i = 0, item = added.nextSetBit(0); item >= 0; item = added.nextSetBit(item + 1))
+      ids[i++] = item;
+    mapItems();
+    if (INDEX_TYPE == IndexType.DOT)
+      setDotFactors(ids);
+    nNodes = nItems;
+
+    List<Integer> roots = new ArrayList<>();
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    try {
+      if (nTrees >= 0) {
+        buildTrees(pool, ids, 0, nTrees, roots);
+      } else {
+        while (nNodes < 2L * nItems)
+          buildTrees(pool, ids, roots.size(), nThreads, roots);
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    // annoy appends a copy of every root, so loaders find them at the end
+    byte[] node = new byte[NODE_SIZE];
+    for (int root : roots) {
+      file.seek((long) root * NODE_SIZE);
+      file.readFully(node);
+      file.seek(nNodes++ * NODE_SIZE);
+      file.write(node);
+    }
+    itemBlocks = null;
+  }
+
+  private void buildTrees(final ExecutorService pool, final int[] ids,
+                          final int firstTree, final int nTrees,
+                          final List<Integer> roots) throws IOException {
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < nTrees; t++) {
+      final long treeSeed = seed + (firstTree + t) * 0x9E3779B97F4A7C15L;
+      futures.add(pool.submit(() -> new TreeBuilder(treeSeed).build(ids.clone())));
+    }
+    try {
+      for (Future<Integer> future : futures)
+        roots.add(future.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while building trees");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new RuntimeException(cause);
+    } finally {
+      for (Future<Integer> future : futures)
+        future.cancel(true);
+    }
+  }
+
+  private void mapItems() throws IOException {
+    itemsPerBlock = Math.max(1, MAX_BLOCK_BYTES / NODE_SIZE);
+    int nBlocks = (int) ((nItems + (long) itemsPerBlock - 1) / itemsPerBlock);
+    itemBlocks = new ByteBuffer[nBlocks];
+    FileChannel channel = file.getChannel();
+    for (int b = 0; b < nBlocks; b++) {
+      long start = (long) b * itemsPerBlock;
+      long count = Math.min(itemsPerBlock, nItems - start);
+      itemBlocks[b] = channel.map(FileChannel.MapMode.READ_WRITE,
+              start * NODE_SIZE, count * NODE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  private ByteBuffer itemBlock(final int item) {
+    return itemBlocks[item / itemsPerBlock];
+  }
+
+  private int itemOffset(final int item) {
+    return (item % itemsPerBlock) * NODE_SIZE;
+  }
+
+  /**
+   * Reads an item's vector into v; DOT indexes also get the item's dot
+   * factor as an extra last component.
+   */
+  private void readItem(final int item, final float[] v) {
+    ByteBuffer block = itemBlock(item);
+    int offset = itemOffset(item);
+    for (int z = 0; z < DIMENSION; z++)
+      v[z] = block.getFloat(offset + K_NODE_HEADER_STYLE + FLOAT_SIZE * z);
+    if (v.length > DIMENSION)
+      v[DIMENSION] = block.getFloat(offset + 12);
+  }
+
+  /**
+   * Annoy's reduction of inner products to angles: every item gets an
+   * extra component sqrt(maxNorm^2 - norm^2), so all items have the same
+   * norm.
+   */
+  private void setDotFactors(final int[] ids) {
+    float[] v = new float[DIMENSION];
+    float maxNorm = 0;
+    for (int item : ids) {
+      readItem(item, v);
+      maxNorm = Math.max(maxNorm, (float) Math.sqrt(ANNIndex.dot(v, v)));
+    }
+    for (int item : ids) {
+      readItem(item, v);
+      float squaredNormDiff = maxNorm * maxNorm - ANNIndex.dot(v, v);
+      float dotFactor = squaredNormDiff < 0 ? 0 : (float) Math.sqrt(squaredNormDiff);
+      itemBlock(item).putFloat(itemOffset(item) + 12, dotFactor);
+    }
+  }
+
+  /**
+   * Appends a finished tree to the file, turning its local node references
+   * into node ids, and returns the id of its root.
+   */
+  private synchronized int append(final byte[] nodes, final int count,
+                                  final int root) throws IOException {
+    long base = nNodes;
+    if (base + count > Integer.MAX_VALUE)
+      throw new IOException("Index has too many nodes for annoy's 32-bit node ids");
+    ByteBuffer buffer = ByteBuffer.wrap(nodes).order(ByteOrder.LITTLE_ENDIAN);
+    for (int node = 0; node < count; node++) {
+      int offset = node * NODE_SIZE;
+      if (buffer.getInt(offset) <= LEAF_SIZE)
+        continue;
+      for (int side = 0; side < 2; side++) {
+        int child = buffer.getInt(offset + INDEX_TYPE_OFFSET + INT_SIZE * side);
+        if (child < 0)
+          buffer.putInt(offset + INDEX_TYPE_OFFSET + INT_SIZE * side, (int) (base + ~child));
+      }
+    }
+    file.seek(base * NODE_SIZE);
+    file.write(nodes, 0, count * NODE_SIZE);
+    nNodes += count;
+    return (int) (base + ~root);
+  }
+
+  @Override
+  public void close() throws IOException {
+    itemBlocks = null;
+    file.close();
+  }
+
+  /**
+   * Builds one tree in memory. Nodes are numbered locally in the order they
+   * are finished, children before parents like annoy does, and referenced
+   * as ~local so they can't be mistaken for item ids until appended.
+   */
+  private final class TreeBuilder {
+
+    private final SplittableRandom random;
+    private final int width = INDEX_TYPE == IndexType.DOT ? DIMENSION + 1 : DIMENSION;
+    private final float[] p = new float[width];
+    private final float[] q = new float[width];
+    private final float[] v = new float[width];
+    private final float[] normal = new float[width];
+    private float bias;
+    private byte[] nodes = new byte[64 * NODE_SIZE];
+    private ByteBuffer buffer = ByteBuffer.wrap(nodes).order(ByteOrder.LITTLE_ENDIAN);
+    private int count;
+
+    TreeBuilder(final long seed) {
+      this.random = new SplittableRandom(seed);
+    }
+
+    int build(final int[] ids) throws IOException {
+      int root = makeTree(ids, 0, ids.length, true);
+      return append(nodes, count, root);
+    }
+
+    private int makeTree(final int[] ids, final int from, final int to,
+                         final boolean isRoot) {
+      int n = to - from;
+      if (n == 1 && !isRoot)
+        return ids[from];
+      int nDescendants = isRoot ? nItems : n;
+
+      if (n <= LEAF_SIZE && (!isRoot || nItems <= LEAF_SIZE || n == 1)) {
+        int offset = newNode(nDescendants);
+        for (int i = 0; i < n; i++)
+          buffer.putInt(offset + INDEX_TYPE_OFFSET + INT_SIZE * i, ids[from + i]);
+        return ~(offset / NODE_SIZE);
+      }
+
+      int split = from;
+      for (int attempt = 0; attempt < SPLIT_ATTEMPTS; attempt++) {
+        createSplit(ids, from, to);
+        split = partition(ids, from, to);
+        if (imbalance(split - from, to - split) < 0.95)
+          break;
+      }
+      // no usable hyperplane, so split at random as a last resort
+      while (imbalance(split - from, to - split) > 0.99) {
+        Arrays.fill(normal, 0);
+        bias = 0;
+        split = partition(ids, from, to);
+      }
+
+      float[] splitNormal = normal.clone();
+      float splitBias = bias;
+      int left = makeTree(ids, from, split, false);
+      int right = makeTree(ids, split, to, false);
+
+      int offset = newNode(nDescendants);
+      buffer.putInt(offset + INDEX_TYPE_OFFSET, left);
+      buffer.putInt(offset + INDEX_TYPE_OFFSET + INT_SIZE, right);
+      for (int z = 0; z < DIMENSION; z++)
+        buffer.putFloat(offset + K_NODE_HEADER_STYLE + FLOAT_SIZE * z, splitNormal[z]);
+      if (INDEX_TYPE == IndexType.EUCLIDEAN)
+        buffer.putFloat(offset + 4, splitBias);
+      if (INDEX_TYPE == IndexType.DOT)
+        buffer.putFloat(offset + 12, splitNormal[DIMENSION]);
+      return ~(offset / NODE_SIZE);
+    }
+
+    private int newNode(final int nDescendants) {
+      if ((count + 1) * NODE_SIZE > nodes.length) {
+        long grown = Math.min(2L * nodes.length, Integer.MAX_VALUE / NODE_SIZE * NODE_SIZE);
+        if (grown <= nodes.length)
+          throw new IllegalStateException("Tree too large to build in memory");
+        nodes = Arrays.copyOf(nodes, (int) grown);
+        buffer = ByteBuffer.wrap(nodes).order(ByteOrder.LITTLE_ENDIAN);
+      }
+      int offset = count++ * NODE_SIZE;
+      buffer.putInt(offset, nDescendants);
+      return offset;
+    }
+
+    /**
+     * Annoy's two_means: start from two random items and move each mean
+     * towards the sampled items closest to it. Sets normal and bias to the
+     * hyperplane halfway between the two means.
+     */
+    private void createSplit(final int[] ids, final int from, final int to) {
+      int n = to - from;
+      int i = random.nextInt(n);
+      int j = random.nextInt(n - 1);
+      j += (j >= i) ? 1 : 0;
+      readItem(ids[from + i], p);
+      readItem(ids[from + j], q);
+      boolean cosine = INDEX_TYPE != IndexType.EUCLIDEAN;
+      if (cosine) {
+        normalize(p);
+        normalize(q);
+      }
+
+      int ic = 1, jc = 1;
+      for (int step = 0; step < TWO_MEANS_STEPS; step++) {
+        readItem(ids[from + random.nextInt(n)], v);
+        float di = ic * distance(p, v, cosine);
+        float dj = jc * distance(q, v, cosine);
+        float norm = cosine ? (float) Math.sqrt(ANNIndex.dot(v, v)) : 1;
+        if (!(norm > 0))
+          continue;
+        if (di < dj) {
+          for (int z = 0; z < width; z++)
+            p[z] = (p[z] * ic + v[z] / norm) / (ic + 1);
+          ic++;
+        } else if (dj < di) {
+          for (int z = 0; z < width; z++)
+            q[z] = (q[z] * jc + v[z] / norm) / (jc + 1);
+          jc++;
+        }
+      }
+
+      for (int z = 0; z < width; z++)
+        normal[z] = p[z] - q[z];
+      normalize(normal);
+      bias = 0;
+      if (INDEX_TYPE == IndexType.EUCLIDEAN) {
+        for (int z = 0; z < width; z++)
+          bias -= normal[z] * (p[z] + q[z]) / 2;
+      }
+    }
+
+    /**
+     * Moves the items on the negative side of the split to the front and
+     * returns where the positive side starts. The margin is the one
+     * {@link ANNIndex} computes at query time, ties go to a random side.
+     */
+    private int partition(final int[] ids, final int from, final int to) {
+      float offset = bias;
+      if (INDEX_TYPE == IndexType.DOT)
+        offset = normal[DIMENSION] * normal[DIMENSION];
+      int split = from;
+      for (int i = from; i < to; i++) {
+        readItem(ids[i], v);
+        float margin = offset;
+        for (int z = 0; z < DIMENSION; z++)
+          margin += normal[z] * v[z];
+        boolean right = margin != 0 ? margin > 0 : random.nextBoolean();
+        if (!right) {
+          int tmp = ids[split];
+          ids[split++] = ids[i];
+          ids[i] = tmp;
+        }
+      }
+      return split;
+    }
+
+    private float distance(final float[] x, final float[] y, final boolean cosine) {
+      if (!cosine) {
+        float d = 0;
+        for (int z = 0; z < width; z++)
+          d += (x[z] - y[z]) * (x[z] - y[z]);
+        return d;
+      }
+      float pp = ANNIndex.dot(x, x), qq = ANNIndex.dot(y, y), pq = ANNIndex.dot(x, y);
+      float ppqq = pp * qq;
+      return ppqq > 0 ? (float) (2.0 - 2.0 * pq / Math.sqrt(ppqq)) : 2.0f;
+    }
+
+    private void normalize(final float[] x) {
+      float norm = (float) Math.sqrt(ANNIndex.dot(x, x));
+      if (norm > 0) {
+        for (int z = 0; z < width; z++)
+          x[z] /= norm;
+      }
+    }
+  }
+
+  private static float imbalance(final int left, final int right) {
+    return (float) Math.max(left, right) / (left + right);
+  }
+}
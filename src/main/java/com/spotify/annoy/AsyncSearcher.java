@@ -0,0 +1,258 @@
+package com.spotify.annoy;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+/**
+ * Runs the queries of an {@link ANNIndex} on a bounded pool of its own and
+ * returns their results as {@link CompletableFuture}s, so that callers on
+ * event loops never block on a traversal.
+ *
+ * <p>Load is shed rather than queued without bound:
+ * <ul>
+ *   <li>a query submitted while {@code maxQueued} queries wait for a thread
+ *   fails at once with a {@link RejectedExecutionException};</li>
+ *   <li>a query whose deadline passes while it waits fails with a
+ *   {@link TimeoutException} without being run;</li>
+ *   <li>a query whose deadline passes during its traversal stops there and
+ *   returns the best of the candidates collected so far;</li>
+ *   <li>cancelling the returned future drops a waiting query, and stops a
+ *   running one at its next check.</li>
+ * </ul>
+ * A running query checks its deadline and cancellation every 64 nodes.
+ *
+ * <p>A searcher is thread-safe. Close it before closing the index; closing
+ * it cancels the queries still waiting.
+ */
+public final class AsyncSearcher implements Closeable {
+
+  private final ANNIndex index;
+  private final ThreadPoolExecutor pool;
+
+  /**
+   * @param index     index to query
+   * @param nThreads  number of threads to run queries on
+   * @param maxQueued number of queries that may wait for a thread
+   */
+  public AsyncSearcher(final ANNIndex index, final int nThreads, final int maxQueued) {
+    if (nThreads < 1 || maxQueued < 1) {
+      throw new IllegalArgumentException("nThreads and maxQueued must be positive");
+    }
+    this.index = index;
+    this.pool = new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(maxQueued), daemonThreads());
+  }
+
+  /**
+   * Create a searcher with one thread per core, letting 16 queries per
+   * thread wait.
+   *
+   * @param index index to query
+   */
+  public AsyncSearcher(final ANNIndex index) {
+    this(index, Runtime.getRuntime().availableProcessors(),
+            16 * Runtime.getRuntime().availableProcessors());
+  }
+
+  private static ThreadFactory daemonThreads() {
+    final AtomicInteger count = new AtomicInteger();
+    return task -> {
+      Thread thread = new Thread(task, "annoy-async-" + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Look up the nearest items without a deadline.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @return future list of items in descending nearness to query point
+   */
+  public CompletableFuture<List<Integer>> getNearestAsync(final float[] queryVector,
+                                                          final int nResults) {
+    return items(submit(queryVector, nResults, -1, null, false, 0));
+  }
+
+  /**
+   * Look up the nearest items within a deadline.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of candidates to collect, or -1 for
+   *                    {@code nResults * number of trees}
+   * @param timeout     time from now after which the traversal stops
+   * @param unit        unit of timeout
+   * @return future list of items in descending nearness to query point
+   */
+  public CompletableFuture<List<Integer>> getNearestAsync(final float[] queryVector,
+                                                          final int nResults,
+                                                          final int searchK,
+                                                          final long timeout,
+                                                          final TimeUnit unit) {
+    return items(getNearestPqEntriesAsync(queryVector, nResults, searchK, null, timeout, unit));
+  }
+
+  /**
+   * Look up nearest PqEntries within a deadline.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of candidates to collect, or -1 for
+   *                    {@code nResults * number of trees}
+   * @param timeout     time from now after which the traversal stops
+   * @param unit        unit of timeout
+   * @return future list of PqEntries in descending nearness to query point
+   */
+  public CompletableFuture<List<ANNIndex.PQEntry>> getNearestPqEntriesAsync(final float[] queryVector,
+                                                                            final int nResults,
+                                                                            final int searchK,
+                                                                            final long timeout,
+                                                                            final TimeUnit unit) {
+    return getNearestPqEntriesAsync(queryVector, nResults, searchK, null, timeout, unit);
+  }
+
+  /**
+   * Look up nearest PqEntries among the items accepted by a filter, within
+   * a deadline, see
+   * {@link ANNIndex#getNearestPqEntries(float[], int, int, IntPredicate, SearchContext)}.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of accepted candidates to collect, or -1 for
+   *                    {@code nResults * number of trees}
+   * @param filter      items to consider, or null for all, called from a
+   *                    thread of the searcher
+   * @param timeout     time from now after which the traversal stops
+   * @param unit        unit of timeout
+   * @return future list of PqEntries in descending nearness to query point
+   */
+  public CompletableFuture<List<ANNIndex.PQEntry>> getNearestPqEntriesAsync(final float[] queryVector,
+                                                                            final int nResults,
+                                                                            final int searchK,
+                                                                            final IntPredicate filter,
+                                                                            final long timeout,
+                                                                            final TimeUnit unit) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("timeout must not be negative");
+    }
+    return submit(queryVector, nResults, searchK, filter, true,
+            System.nanoTime() + unit.toNanos(timeout));
+  }
+
+  /**
+   * @return number of queries waiting for a thread
+   */
+  public int getQueued() {
+    return pool.getQueue().size();
+  }
+
+  private CompletableFuture<List<ANNIndex.PQEntry>> submit(final float[] queryVector,
+                                                          final int nResults,
+                                                          final int searchK,
+                                                          final IntPredicate filter,
+                                                          final boolean hasDeadline,
+                                                          final long deadline) {
+    // the caller may reuse its array once this returns
+    Query query = new Query(queryVector.clone(), nResults, searchK, filter, hasDeadline, deadline);
+    try {
+      pool.execute(query);
+    } catch (RejectedExecutionException e) {
+      query.future.completeExceptionally(e);
+    }
+    return query.future;
+  }
+
+  private static CompletableFuture<List<Integer>> items(
+          final CompletableFuture<List<ANNIndex.PQEntry>> future) {
+    CompletableFuture<List<Integer>> items = future.thenApply(entries -> {
+      List<Integer> result = new ArrayList<>(entries.size());
+      for (ANNIndex.PQEntry entry : entries) {
+        result.add((int) entry.getNodeOffset());
+      }
+      return result;
+    });
+    // cancelling the returned future must reach the query
+    items.whenComplete((result, e) -> {
+      if (items.isCancelled()) {
+        future.cancel(false);
+      }
+    });
+    return items;
+  }
+
+  /**
+   * Stop accepting queries and cancel the ones still waiting. Running
+   * queries finish on their own.
+   */
+  @Override
+  public void close() {
+    for (Runnable task : pool.shutdownNow()) {
+      ((Query) task).future.cancel(false);
+    }
+  }
+
+  private final class Query implements Runnable {
+
+    final CompletableFuture<List<ANNIndex.PQEntry>> future = new CompletableFuture<>();
+    private final float[] queryVector;
+    private final int nResults;
+    private final int searchK;
+    private final IntPredicate filter;
+    private final boolean hasDeadline;
+    private final long deadline;
+
+    Query(final float[] queryVector,
+          final int nResults,
+          final int searchK,
+          final IntPredicate filter,
+          final boolean hasDeadline,
+          final long deadline) {
+      this.queryVector = queryVector;
+      this.nResults = nResults;
+      this.searchK = searchK;
+      this.filter = filter;
+      this.hasDeadline = hasDeadline;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void run() {
+      if (future.isDone()) {
+        return;
+      }
+      if (hasDeadline && System.nanoTime() - deadline >= 0) {
+        future.completeExceptionally(new TimeoutException("deadline passed before the query ran"));
+        return;
+      }
+      SearchContext ctx = index.searchContext();
+      ctx.stoppable = true;
+      ctx.hasDeadline = hasDeadline;
+      ctx.deadline = deadline;
+      ctx.future = future;
+      try {
+        future.complete(index.getNearestPqEntries(queryVector, nResults, searchK, filter, ctx));
+      } catch (Throwable e) {
+        // callers waiting on the future must not hang, whatever failed
+        future.completeExceptionally(e);
+        if (e instanceof Error)
+          throw (Error) e;
+      } finally {
+        ctx.stoppable = false;
+        ctx.hasDeadline = false;
+        ctx.future = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.spotify.annoy;
+
+import java.util.Arrays;
+
+/**
+ * Extra floats of the split planes of the upper tree levels, shared by the
+ * queries of a batch. The extra of a node is only computed when a query of
+ * the batch first reaches it, so that it costs a pass over the node once per
+ * batch instead of once per query, and nodes no query reaches cost nothing.
+ * The margin itself is still computed by each query that visits the node.
+ *
+ * <p>Nodes are found through an open-addressing table of node ids, so that
+ * the many split nodes below the shared levels cost a probe or two to rule
+ * out.
+ */
+final class BatchMargins {
+
+  private final int[] keys;
+  private final int[] slots;
+  private final int mask;
+  private final float[] extras;
+
+  /**
+   * @param nodes    offsets of the split nodes to share
+   * @param nodeSize size of a node, in bytes
+   */
+  BatchMargins(final long[] nodes, final long nodeSize) {
+    // at most half full
+    int capacity = Integer.highestOneBit(Math.max(1, nodes.length)) * 4;
+    this.keys = new int[capacity];
+    this.slots = new int[capacity];
+    this.mask = capacity - 1;
+    this.extras = new float[nodes.length];
+    Arrays.fill(extras, Float.NaN);
+    Arrays.fill(keys, -1);
+    for (int slot = 0; slot < nodes.length; slot++) {
+      int node = (int) (nodes[slot] / nodeSize);
+      int i = mix(node) & mask;
+      while (keys[i] != -1)
+        i = (i + 1) & mask;
+      keys[i] = node;
+      slots[i] = slot;
+    }
+  }
+
+  private static int mix(final int key) {
+    int h = key * 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @param node node id
+   * @return the slot of the node, or -1 if it is not shared
+   */
+  int slot(final int node) {
+    for (int i = mix(node) & mask; ; i = (i + 1) & mask) {
+      int key = keys[i];
+      if (key == node)
+        return slots[i];
+      if (key == -1)
+        return -1;
+    }
+  }
+
+  /**
+   * @return the extra float of the node's split plane, or NaN until
+   *         {@link #fill(int, float)}
+   */
+  float extra(final int slot) {
+    return extras[slot];
+  }
+
+  void fill(final int slot, final float extra) {
+    extras[slot] = extra;
+  }
+}
@@ -0,0 +1,363 @@
+package com.spotify.annoy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An {@link AnnoyIndex} which remembers the results of
+ * {@link #getNearest(float[], int)} and {@link #getNearestByItem(int, int, int)}
+ * for repeated queries, keyed by the query vector or the item id along with
+ * the number of results and searchK. searchK reaches {@link ANNIndex},
+ * {@link ShardedAnnoyIndex} and caching delegates; other delegates are
+ * queried with their default, and their results cached as such.
+ *
+ * <p>The cache holds at most {@code maxEntries} result lists and evicts the
+ * least recently used ones. It is split into segments, each with its own
+ * lock, so concurrent queries rarely contend; eviction is LRU within a
+ * segment. Other methods, including {@link #getNearestPqEntries}, go
+ * straight to the index.
+ *
+ * <p>Cached result lists are shared between callers and unmodifiable.
+ * {@link #swap(AnnoyIndex)} and {@link #close()} drop every cached result,
+ * and results of queries still running against the previous index are not
+ * cached. So does closing or releasing an {@link ANNIndex} delegate
+ * directly, e.g. through an {@link IndexHolder}.
+ */
+public class CachingAnnoyIndex implements AnnoyIndex {
+
+  private static final int MAX_SEGMENTS = 16;
+
+  private final int maxEntries;
+  private volatile Generation generation;
+  private final Runnable onIndexClosed = this::dropClosed;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * @param index      index to query
+   * @param maxEntries most result lists to keep
+   */
+  public CachingAnnoyIndex(final AnnoyIndex index, final int maxEntries) {
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be positive, got " + maxEntries);
+    }
+    this.maxEntries = maxEntries;
+    this.generation = new Generation(index);
+    watch(index);
+  }
+
+  /**
+   * Look up the nearest neighbors of an item of the index.
+   *
+   * @param itemIndex item id
+   * @param nResults  number of items to return
+   * @param searchK   number of candidates to collect, or -1 for
+   *                  {@code nResults * number of trees}
+   * @return list of items in descending nearness to the item
+   */
+  public List<Integer> getNearestByItem(final int itemIndex,
+                                        final int nResults,
+                                        final int searchK) {
+    Generation g = open();
+    int k = supportsSearchK(g.index) ? searchK : -1;
+    ItemKey key = new ItemKey(itemIndex, nResults, k);
+    List<Integer> result = g.get(key);
+    if (result == null) {
+      result = search(g.index, g.index.getItemVector(itemIndex), nResults, k);
+      g.put(key, result);
+    }
+    return result;
+  }
+
+  @Override
+  public List<Integer> getNearest(final float[] queryVector, final int nResults) {
+    return getNearest(queryVector, nResults, -1);
+  }
+
+  /**
+   * Look up nearest neighbors in the tree.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of candidates to collect, or -1 for
+   *                    {@code nResults * number of trees}
+   * @return list of items in descending nearness to query point
+   */
+  public List<Integer> getNearest(final float[] queryVector,
+                                  final int nResults,
+                                  final int searchK) {
+    Generation g = open();
+    int k = supportsSearchK(g.index) ? searchK : -1;
+    VectorKey key = new VectorKey(queryVector, nResults, k);
+    List<Integer> result = g.get(key);
+    if (result == null) {
+      result = search(g.index, queryVector, nResults, k);
+      // the key keeps its own copy, callers may reuse their query arrays
+      g.put(new VectorKey(queryVector.clone(), nResults, k), result);
+    }
+    return result;
+  }
+
+  private static boolean supportsSearchK(final AnnoyIndex index) {
+    return index instanceof ANNIndex || index instanceof ShardedAnnoyIndex
+            || index instanceof CachingAnnoyIndex;
+  }
+
+  private static List<Integer> search(final AnnoyIndex index,
+                                      final float[] queryVector,
+                                      final int nResults,
+                                      final int searchK) {
+    List<Integer> result;
+    if (index instanceof ANNIndex) {
+      result = ((ANNIndex) index).getNearest(queryVector, nResults, searchK);
+    } else if (index instanceof ShardedAnnoyIndex) {
+      result = ((ShardedAnnoyIndex) index).getNearest(queryVector, nResults, searchK);
+    } else if (index instanceof CachingAnnoyIndex) {
+      result = ((CachingAnnoyIndex) index).getNearest(queryVector, nResults, searchK);
+    } else {
+      result = index.getNearest(queryVector, nResults);
+    }
+    return Collections.unmodifiableList(new ArrayList<>(result));
+  }
+
+  @Override
+  public List<ANNIndex.PQEntry> getNearestPqEntries(final float[] queryVector,
+                                                    final int nResults) {
+    return open().index.getNearestPqEntries(queryVector, nResults);
+  }
+
+  @Override
+  @Deprecated
+  public void getNodeVector(final long nodeOffset, final float[] v) {
+    open().index.getNodeVector(nodeOffset, v);
+  }
+
+  @Override
+  @Deprecated
+  public void getItemVector(final int itemIndex, final float[] v) {
+    open().index.getItemVector(itemIndex, v);
+  }
+
+  @Override
+  public float[] getItemVector(final int itemIndex) {
+    return open().index.getItemVector(itemIndex);
+  }
+
+  /**
+   * Serve queries from another index from now on, dropping every cached
+   * result. Queries already running finish on the previous index, which the
+   * caller closes once they are done.
+   *
+   * @param index index to query
+   * @return the previous index
+   */
+  public synchronized AnnoyIndex swap(final AnnoyIndex index) {
+    AnnoyIndex previous = open().index;
+    unwatch(previous);
+    generation = new Generation(index);
+    watch(index);
+    return previous;
+  }
+
+  /**
+   * Drop every cached result.
+   */
+  public synchronized void invalidateAll() {
+    generation = new Generation(open().index);
+  }
+
+  /**
+   * Drop every cached result and close the index.
+   *
+   * @throws IOException if the index can't be closed
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    Generation g = generation;
+    if (g.index == null)
+      return;
+    generation = new Generation(null);
+    unwatch(g.index);
+    g.index.close();
+  }
+
+  private void watch(final AnnoyIndex index) {
+    if (index instanceof ANNIndex)
+      ((ANNIndex) index).addCloseListener(onIndexClosed);
+  }
+
+  private void unwatch(final AnnoyIndex index) {
+    if (index instanceof ANNIndex)
+      ((ANNIndex) index).removeCloseListener(onIndexClosed);
+  }
+
+  // the delegate was closed or released behind the cache's back
+  private synchronized void dropClosed() {
+    Generation g = generation;
+    if (g.index != null)
+      generation = new Generation(g.index);
+  }
+
+  private Generation open() {
+    Generation g = generation;
+    if (g.index == null) {
+      throw new IllegalStateException("Index is closed");
+    }
+    return g;
+  }
+
+  /**
+   * @return number of result lists currently cached
+   */
+  public int size() {
+    int size = 0;
+    for (Segment segment : generation.segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return share of lookups served from the cache, 0 before any lookup
+   */
+  public double getHitRate() {
+    long h = hits.sum(), m = misses.sum();
+    return (h + m == 0) ? 0 : (double) h / (h + m);
+  }
+
+  /**
+   * The index being queried and the results cached for it. Swapping or
+   * closing starts a new generation, so a query running against the old
+   * index only fills the old segments.
+   */
+  private final class Generation {
+
+    final AnnoyIndex index;
+    final Segment[] segments;
+
+    Generation(final AnnoyIndex index) {
+      this.index = index;
+      int nSegments = Math.min(MAX_SEGMENTS, Integer.highestOneBit(maxEntries));
+      // split exactly, the first segments taking one more of the remainder
+      int capacity = maxEntries / nSegments, remainder = maxEntries % nSegments;
+      this.segments = new Segment[nSegments];
+      for (int s = 0; s < nSegments; s++)
+        segments[s] = new Segment(capacity + ((s < remainder) ? 1 : 0));
+    }
+
+    private Segment segment(final Object key) {
+      int h = key.hashCode();
+      return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    List<Integer> get(final Object key) {
+      Segment segment = segment(key);
+      List<Integer> result;
+      synchronized (segment) {
+        result = segment.get(key);
+      }
+      (result != null ? hits : misses).increment();
+      return result;
+    }
+
+    void put(final Object key, final List<Integer> result) {
+      Segment segment = segment(key);
+      synchronized (segment) {
+        segment.put(key, result);
+      }
+    }
+  }
+
+  private final class Segment extends LinkedHashMap<Object, List<Integer>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    Segment(final int capacity) {
+      super(16, 0.75f, true);
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<Object, List<Integer>> eldest) {
+      if (size() <= capacity)
+        return false;
+      evictions.increment();
+      return true;
+    }
+  }
+
+  private static final class ItemKey {
+
+    private final int item, nResults, searchK;
+
+    ItemKey(final int item, final int nResults, final int searchK) {
+      this.item = item;
+      this.nResults = nResults;
+      this.searchK = searchK;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof ItemKey))
+        return false;
+      ItemKey k = (ItemKey) o;
+      return item == k.item && nResults == k.nResults && searchK == k.searchK;
+    }
+
+    @Override
+    public int hashCode() {
+      return (item * 31 + nResults) * 31 + searchK;
+    }
+  }
+
+  private static final class VectorKey {
+
+    private final float[] vector;
+    private final int nResults, searchK, hash;
+
+    VectorKey(final float[] vector, final int nResults, final int searchK) {
+      this.vector = vector;
+      this.nResults = nResults;
+      this.searchK = searchK;
+      this.hash = (Arrays.hashCode(vector) * 31 + nResults) * 31 + searchK;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (!(o instanceof VectorKey))
+        return false;
+      VectorKey k = (VectorKey) o;
+      return hash == k.hash && nResults == k.nResults && searchK == k.searchK
+              && Arrays.equals(vector, k.vector);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
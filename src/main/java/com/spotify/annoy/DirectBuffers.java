@@ -0,0 +1,70 @@
+package com.spotify.annoy;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * Frees direct and memory-mapped buffers right away instead of when they
+ * are garbage collected. Uses {@code Unsafe.invokeCleaner} on Java 9+ and
+ * the buffer's {@code Cleaner} on Java 8; where neither is accessible,
+ * buffers are left to the garbage collector.
+ *
+ * <p>Touching a buffer after it has been freed crashes the JVM, so callers
+ * must make sure nothing can read it anymore.
+ */
+final class DirectBuffers {
+
+  private interface Freer {
+    void free(ByteBuffer buffer) throws ReflectiveOperationException;
+  }
+
+  private static final Freer FREER = freer();
+
+  private DirectBuffers() {
+  }
+
+  /**
+   * Free a buffer returned by {@link ByteBuffer#allocateDirect(int)} or
+   * {@link java.nio.channels.FileChannel#map}, not a view of one. Other
+   * buffers are ignored.
+   */
+  static void free(final ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect() || FREER == null)
+      return;
+    try {
+      FREER.free(buffer);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new IllegalStateException(e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static Freer freer() {
+    try {
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+      theUnsafe.setAccessible(true);
+      final Object unsafe = theUnsafe.get(null);
+      return buffer -> invokeCleaner.invoke(unsafe, buffer);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Java 8
+    }
+    try {
+      final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return buffer -> {
+        Object c = cleaner.invoke(buffer);
+        if (c != null)
+          clean.invoke(c);
+      };
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+}
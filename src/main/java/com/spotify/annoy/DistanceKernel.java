@@ -0,0 +1,29 @@
+package com.spotify.annoy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Distance primitives used by {@link ANNIndex}, on plain arrays and on node
+ * vectors read in place from a little-endian (mapped) byte buffer.
+ */
+interface DistanceKernel {
+
+  float dot(ByteBuffer buffer, int offset, float[] q);
+
+  float squaredNorm(ByteBuffer buffer, int offset, int dimension);
+
+  float squaredDistance(ByteBuffer buffer, int offset, float[] q);
+
+  /**
+   * Squared distance, abandoned once a partial sum exceeds limit: returns
+   * the exact value if it is at most limit, and some value above limit
+   * otherwise.
+   */
+  float squaredDistance(ByteBuffer buffer, int offset, float[] q, float limit);
+
+  float dot(float[] u, float[] v);
+
+  float squaredNorm(float[] u);
+
+  float squaredDistance(float[] u, float[] v);
+}
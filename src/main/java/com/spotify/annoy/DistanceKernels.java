@@ -0,0 +1,62 @@
+package com.spotify.annoy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Picks the distance kernel at class-load time: the Vector API kernel when
+ * it was compiled in and the JVM runs with
+ * {@code --add-modules jdk.incubator.vector}, the scalar kernel otherwise.
+ * Setting the system property {@code annoy.kernel=scalar} forces the scalar
+ * kernel.
+ */
+final class DistanceKernels {
+
+  private static final String VECTORIZED = "com.spotify.annoy.VectorizedDistanceKernel";
+  private static final DistanceKernel SCALAR = new ScalarDistanceKernel();
+  private static final DistanceKernel VECTOR = loadVectorized();
+  private static final DistanceKernel DEFAULT =
+          (VECTOR != null && !"scalar".equals(System.getProperty("annoy.kernel")))
+                  ? VECTOR : SCALAR;
+
+  private DistanceKernels() {
+  }
+
+  static DistanceKernel get() {
+    return DEFAULT;
+  }
+
+  static DistanceKernel scalar() {
+    return SCALAR;
+  }
+
+  /**
+   * @return the vectorized kernel, or null if it can't run on this JVM
+   */
+  static DistanceKernel vectorized() {
+    return VECTOR;
+  }
+
+  private static DistanceKernel loadVectorized() {
+    try {
+      DistanceKernel kernel = (DistanceKernel) Class.forName(VECTORIZED)
+              .getDeclaredConstructor().newInstance();
+      // the incubating API changes between JDK releases, so check that the
+      // kernel links and agrees with the scalar one before trusting it
+      float[] q = new float[37];
+      ByteBuffer buffer = ByteBuffer.allocateDirect(4 * q.length).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < q.length; i++) {
+        q[i] = i;
+        buffer.putFloat(4 * i, 1);
+      }
+      if (kernel.dot(buffer, 0, q) != SCALAR.dot(buffer, 0, q)
+              || kernel.squaredDistance(buffer, 0, q) != SCALAR.squaredDistance(buffer, 0, q)
+              || kernel.squaredNorm(q) != SCALAR.squaredNorm(q)) {
+        return null;
+      }
+      return kernel;
+    } catch (Exception | LinkageError e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.spotify.annoy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Holds the current {@link ANNIndex} of a service and swaps in new ones
+ * under live traffic. Queries lease the current index; a swapped out index
+ * stays usable until its last lease is closed, and is then closed and its
+ * buffers unmapped or freed right away, so consecutive indexes don't pile
+ * up in memory waiting for the garbage collector.
+ *
+ * <pre>{@code
+ * try (IndexHolder.Lease lease = holder.acquire()) {
+ *   return lease.index().getNearest(queryVector, 10);
+ * }
+ * }</pre>
+ *
+ * <p>Indexes handed to a holder belong to it: they must not be closed or
+ * queried other than through a lease. A holder is thread-safe.
+ */
+public final class IndexHolder implements Closeable {
+
+  private final AtomicReference<Handle> current;
+
+  /**
+   * @param index the index to serve first
+   */
+  public IndexHolder(final ANNIndex index) {
+    this.current = new AtomicReference<>(new Handle(index));
+  }
+
+  /**
+   * Lease the current index. The lease must be closed when the query is
+   * done, the index may be released as soon as it is.
+   *
+   * @return a lease on the current index
+   * @throws IllegalStateException if the holder is closed
+   */
+  public Lease acquire() {
+    while (true) {
+      Handle handle = current.get();
+      if (handle == null) {
+        throw new IllegalStateException("IndexHolder is closed");
+      }
+      // fails only when the handle was swapped out and drained meanwhile
+      if (handle.retain()) {
+        return new Lease(handle);
+      }
+    }
+  }
+
+  /**
+   * Run a query on the current index under a lease. The query must not
+   * keep references to the index or its vectors.
+   *
+   * @param query query to run
+   * @param <T>   result type
+   * @return the query's result
+   */
+  public <T> T query(final Function<ANNIndex, T> query) {
+    try (Lease lease = acquire()) {
+      return query.apply(lease.index());
+    }
+  }
+
+  /**
+   * Serve a new index from now on. Leases taken before the swap keep the
+   * previous index open until they are closed.
+   *
+   * @param index index to serve
+   * @return future completed once the previous index has been released,
+   *         or completed exceptionally if releasing it failed
+   * @throws IllegalStateException if the holder is closed
+   */
+  public synchronized CompletableFuture<Void> swap(final ANNIndex index) {
+    Handle previous = current.get();
+    if (previous == null) {
+      throw new IllegalStateException("IndexHolder is closed");
+    }
+    current.set(new Handle(index));
+    previous.release();
+    return previous.released;
+  }
+
+  /**
+   * Warm a new index up on a background thread (see
+   * {@link ANNIndex#warmup()}) and swap it in once it is resident. If the
+   * warmup fails or the holder is closed meanwhile, the new index is not
+   * swapped in and is released instead.
+   *
+   * @param index index to serve
+   * @return future completed once the previous index has been released
+   */
+  public CompletableFuture<Void> warmAndSwap(final ANNIndex index) {
+    final AtomicBoolean installed = new AtomicBoolean();
+    return index.warmup().completion()
+            .thenCompose(done -> {
+              CompletableFuture<Void> released = swap(index);
+              installed.set(true);
+              return released;
+            })
+            .whenComplete((done, e) -> {
+              if (e != null && !installed.get()) {
+                try {
+                  index.release();
+                } catch (IOException releaseFailure) {
+                  e.addSuppressed(releaseFailure);
+                }
+              }
+            });
+  }
+
+  /**
+   * Stop serving: new leases fail, and the current index is released once
+   * the leases still open are closed.
+   */
+  @Override
+  public synchronized void close() {
+    Handle handle = current.getAndSet(null);
+    if (handle != null) {
+      handle.release();
+    }
+  }
+
+  /**
+   * A reference on one index, counted by the holder. Closing it more than
+   * once has no effect.
+   */
+  public static final class Lease implements AutoCloseable {
+
+    private final Handle handle;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private Lease(final Handle handle) {
+      this.handle = handle;
+    }
+
+    public ANNIndex index() {
+      if (closed.get()) {
+        throw new IllegalStateException("Lease is closed");
+      }
+      return handle.index;
+    }
+
+    @Override
+    public void close() {
+      if (closed.compareAndSet(false, true)) {
+        handle.release();
+      }
+    }
+  }
+
+  /**
+   * An index and its reference count: one for the holder while the index
+   * is current, plus one per open lease. Once the count drops to zero it
+   * can't be retained again, and the index is released.
+   */
+  private static final class Handle {
+
+    final ANNIndex index;
+    final AtomicInteger refs = new AtomicInteger(1);
+    final CompletableFuture<Void> released = new CompletableFuture<>();
+
+    Handle(final ANNIndex index) {
+      this.index = index;
+    }
+
+    boolean retain() {
+      while (true) {
+        int r = refs.get();
+        if (r == 0) {
+          return false;
+        }
+        if (refs.compareAndSet(r, r + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      if (refs.decrementAndGet() == 0) {
+        try {
+          index.release();
+          released.complete(null);
+        } catch (IOException | RuntimeException e) {
+          released.completeExceptionally(e);
+        }
+      }
+    }
+  }
+}
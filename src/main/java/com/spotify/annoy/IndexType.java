@@ -3,7 +3,12 @@ package com.spotify.annoy;
 public enum IndexType {
   ANGULAR(4, 12),
   EUCLIDEAN(8, 16),
-  DOT(4, 16);
+  DOT(4, 16),
+  // same nodes as EUCLIDEAN: bias, children, split plane
+  MANHATTAN(8, 16),
+  // annoy's hamming node is n_descendants and children followed by uint64
+  // words, which the compiler aligns to 8 bytes
+  HAMMING(4, 16);
 
   private final int offset;
   private final int kNodeHeaderStyle;
@@ -20,4 +25,21 @@ public enum IndexType {
   public int getkNodeHeaderStyle() {
     return kNodeHeaderStyle;
   }
+
+  /**
+   * Bytes of the vector of a node: one float per dimension, except for
+   * HAMMING, whose dimension is a number of bits packed into 64-bit words.
+   */
+  int getVectorSize(final int dimension) {
+    return (this == HAMMING) ? 8 * ((dimension + 63) / 64) : 4 * dimension;
+  }
+
+  /**
+   * Most children a leaf node can list, annoy's {@code _K}: everything
+   * after the children offset is reused for item ids. DOT nodes have one
+   * int more room than the other types.
+   */
+  int getLeafSize(final int dimension) {
+    return (kNodeHeaderStyle - offset + getVectorSize(dimension)) / 4;
+  }
 }
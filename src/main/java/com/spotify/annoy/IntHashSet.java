@@ -0,0 +1,106 @@
+package com.spotify.annoy;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing set of non-negative ints. Keys are also kept in insertion
+ * order, which makes {@link #clear()} proportional to the number of keys
+ * rather than to the table capacity, and lets callers iterate without an
+ * iterator object.
+ */
+final class IntHashSet {
+
+  private static final int EMPTY = -1;
+
+  private int[] table;
+  private int mask;
+  private int[] keys;
+  private int size;
+
+  IntHashSet(final int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+    table = new int[capacity];
+    Arrays.fill(table, EMPTY);
+    mask = capacity - 1;
+    keys = new int[Math.max(expectedSize, 8)];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * @param index position in insertion order, {@code 0 <= index < size()}
+   * @return the key inserted at that position
+   */
+  int get(final int index) {
+    return keys[index];
+  }
+
+  /**
+   * @param key non-negative key
+   * @return true if the key was not already present
+   */
+  boolean add(final int key) {
+    int slot = mix(key) & mask;
+    while (true) {
+      int existing = table[slot];
+      if (existing == EMPTY)
+        break;
+      if (existing == key)
+        return false;
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = key;
+    if (size == keys.length)
+      keys = Arrays.copyOf(keys, size << 1);
+    keys[size++] = key;
+    if (size * 2 > table.length)
+      rehash(table.length << 1);
+    return true;
+  }
+
+  boolean contains(final int key) {
+    int slot = mix(key) & mask;
+    while (true) {
+      int existing = table[slot];
+      if (existing == EMPTY)
+        return false;
+      if (existing == key)
+        return true;
+      slot = (slot + 1) & mask;
+    }
+  }
+
+  void clear() {
+    if (size > table.length >>> 3) {
+      Arrays.fill(table, EMPTY);
+    } else {
+      for (int i = 0; i < size; i++) {
+        int slot = mix(keys[i]) & mask;
+        while (table[slot] != EMPTY) {
+          table[slot] = EMPTY;
+          slot = (slot + 1) & mask;
+        }
+      }
+    }
+    size = 0;
+  }
+
+  private void rehash(final int capacity) {
+    table = new int[capacity];
+    Arrays.fill(table, EMPTY);
+    mask = capacity - 1;
+    for (int i = 0; i < size; i++) {
+      int slot = mix(keys[i]) & mask;
+      while (table[slot] != EMPTY)
+        slot = (slot + 1) & mask;
+      table[slot] = keys[i];
+    }
+  }
+
+  private static int mix(final int key) {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
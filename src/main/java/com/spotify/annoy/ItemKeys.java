@@ -0,0 +1,287 @@
+package com.spotify.annoy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * External keys of the items of an index, such as track or user ids, mapped
+ * from a sidecar file so that translating ids costs no heap and no load
+ * time. See {@link ANNIndex#enableKeys()}.
+ *
+ * <p>The file holds a header, the offsets of the keys (one long per item
+ * plus the end), the item ids sorted by key for reverse lookups by binary
+ * search, then the UTF-8 keys back to back. Keys are compared by their
+ * UTF-8 bytes, which orders them by code point.
+ */
+public final class ItemKeys {
+
+  private static final int MAGIC = 0x4b4e4e41;  // "ANNK"
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 24;
+  private static final int WRITE_CHUNK = 1 << 20;
+
+  private final int nItems;
+  private final int maxKeyLength;
+  private final Region offsets;
+  private final Region sorted;
+  private final Region bytes;
+
+  private ItemKeys(final int nItems, final int maxKeyLength,
+                   final Region offsets, final Region sorted, final Region bytes) {
+    this.nItems = nItems;
+    this.maxKeyLength = maxKeyLength;
+    this.offsets = offsets;
+    this.sorted = sorted;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Write the keys of the items of an index to a file which
+   * {@link ANNIndex#enableKeys()} can map, by convention
+   * {@code <filename>.keys}.
+   *
+   * @param filename file to write
+   * @param keys     key of every item, in item order
+   * @throws IOException              if the file can't be written
+   * @throws IllegalArgumentException if a key is null or not unique
+   */
+  public static void write(final String filename,
+                           final List<? extends CharSequence> keys) throws IOException {
+    final int nItems = keys.size();
+    byte[][] encoded = new byte[nItems][];
+    int maxKeyLength = 0;
+    long totalLength = 0;
+    for (int item = 0; item < nItems; item++) {
+      CharSequence key = keys.get(item);
+      if (key == null) {
+        throw new IllegalArgumentException("null key for item " + item);
+      }
+      encoded[item] = key.toString().getBytes(StandardCharsets.UTF_8);
+      maxKeyLength = Math.max(maxKeyLength, encoded[item].length);
+      totalLength += encoded[item].length;
+    }
+    Integer[] order = new Integer[nItems];
+    for (int item = 0; item < nItems; item++)
+      order[item] = item;
+    Arrays.sort(order, (a, b) -> compare(encoded[a], encoded[b]));
+    for (int i = 1; i < nItems; i++) {
+      if (compare(encoded[order[i - 1]], encoded[order[i]]) == 0) {
+        throw new IllegalArgumentException(String.format("items %d and %d share the key %s",
+                order[i - 1], order[i], keys.get(order[i])));
+      }
+    }
+
+    try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      final ByteBuffer out = ByteBuffer.allocate(WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+      out.putInt(MAGIC).putInt(VERSION).putInt(nItems).putInt(maxKeyLength).putLong(totalLength);
+      long offset = 0;
+      for (int item = 0; item <= nItems; item++) {
+        reserve(channel, out, 8);
+        out.putLong(offset);
+        if (item < nItems)
+          offset += encoded[item].length;
+      }
+      for (int item : order) {
+        reserve(channel, out, 4);
+        out.putInt(item);
+      }
+      for (byte[] key : encoded) {
+        for (int done = 0; done < key.length; ) {
+          reserve(channel, out, 1);
+          int n = Math.min(out.remaining(), key.length - done);
+          out.put(key, done, n);
+          done += n;
+        }
+      }
+      flush(channel, out);
+    }
+  }
+
+  private static void reserve(final FileChannel channel, final ByteBuffer out,
+                              final int size) throws IOException {
+    if (out.remaining() < size)
+      flush(channel, out);
+  }
+
+  private static void flush(final FileChannel channel, final ByteBuffer out) throws IOException {
+    // Buffer casts keep the bytecode linkable on Java 8
+    ((Buffer) out).flip();
+    while (out.hasRemaining())
+      channel.write(out);
+    ((Buffer) out).clear();
+  }
+
+  static ItemKeys map(final File file, final int nItems, final int maxBlockShift) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      if (raf.length() < FILE_HEADER_SIZE || channel.read(header, 0) != FILE_HEADER_SIZE
+              || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException(file + " is not an item keys file");
+      }
+      if (header.getInt(8) != nItems) {
+        throw new IOException(String.format("%s holds keys for %d items, the index has %d",
+                file, header.getInt(8), nItems));
+      }
+      int maxKeyLength = header.getInt(12);
+      long totalLength = header.getLong(16);
+      long offsetsStart = FILE_HEADER_SIZE;
+      long sortedStart = offsetsStart + 8L * (nItems + 1);
+      long bytesStart = sortedStart + 4L * nItems;
+      if (raf.length() != bytesStart + totalLength) {
+        throw new IOException(String.format("%s holds %d bytes, expected %d",
+                file, raf.length(), bytesStart + totalLength));
+      }
+      // 8-byte offsets and 4-byte ids never straddle blocks, keys may
+      // spill over into the next block's overlap
+      return new ItemKeys(nItems, maxKeyLength,
+              Region.map(channel, offsetsStart, 8L * (nItems + 1), Math.max(3, maxBlockShift), 0),
+              Region.map(channel, sortedStart, 4L * nItems, Math.max(2, maxBlockShift), 0),
+              Region.map(channel, bytesStart, totalLength, maxBlockShift, maxKeyLength));
+    }
+  }
+
+  /**
+   * @return number of items
+   */
+  int size() {
+    return nItems;
+  }
+
+  /**
+   * @return key of an item
+   */
+  String getKey(final int item) {
+    if (item < 0 || item >= nItems) {
+      throw new IndexOutOfBoundsException("no item " + item + " among " + nItems);
+    }
+    long start = offsets.getLong(8L * item);
+    int length = (int) (offsets.getLong(8L * item + 8) - start);
+    byte[] key = new byte[length];
+    if (length > 0) {
+      ByteBuffer block = bytes.block(start);
+      int offset = bytes.offset(start);
+      for (int i = 0; i < length; i++)
+        key[i] = block.get(offset + i);
+    }
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return item of a key, or -1 if no item has it
+   */
+  int getItem(final String key) {
+    byte[] target = key.getBytes(StandardCharsets.UTF_8);
+    if (target.length > maxKeyLength)
+      return -1;
+    int lo = 0, hi = nItems - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int item = sorted.getInt(4L * mid);
+      int c = compareKey(item, target);
+      if (c < 0) {
+        lo = mid + 1;
+      } else if (c > 0) {
+        hi = mid - 1;
+      } else {
+        return item;
+      }
+    }
+    return -1;
+  }
+
+  private int compareKey(final int item, final byte[] target) {
+    long start = offsets.getLong(8L * item);
+    int length = (int) (offsets.getLong(8L * item + 8) - start);
+    int n = Math.min(length, target.length);
+    ByteBuffer block = (n > 0) ? bytes.block(start) : null;
+    int offset = bytes.offset(start);
+    for (int i = 0; i < n; i++) {
+      int c = (block.get(offset + i) & 0xff) - (target[i] & 0xff);
+      if (c != 0)
+        return c;
+    }
+    return length - target.length;
+  }
+
+  private static int compare(final byte[] a, final byte[] b) {
+    int n = Math.min(a.length, b.length);
+    for (int i = 0; i < n; i++) {
+      int c = (a[i] & 0xff) - (b[i] & 0xff);
+      if (c != 0)
+        return c;
+    }
+    return a.length - b.length;
+  }
+
+  /**
+   * Unmap the buffers now, see {@link DirectBuffers#free(ByteBuffer)}.
+   */
+  void free() {
+    offsets.free();
+    sorted.free();
+    bytes.free();
+  }
+
+  /**
+   * A mapped range of the file in blocks of 2^blockShift bytes, each
+   * mapped with {@code overlap} extra bytes of the next one, as the blocks
+   * of {@link ANNIndex}.
+   */
+  private static final class Region {
+
+    private final int blockShift;
+    private final long blockMask;
+    private final ByteBuffer[] blocks;
+
+    private Region(final int blockShift, final ByteBuffer[] blocks) {
+      this.blockShift = blockShift;
+      this.blockMask = (1L << blockShift) - 1;
+      this.blocks = blocks;
+    }
+
+    static Region map(final FileChannel channel, final long start, final long size,
+                      final int blockShift, final int overlap) throws IOException {
+      int nBlocks = (size == 0) ? 0 : (int) (((size - 1) >>> blockShift) + 1);
+      ByteBuffer[] blocks = new ByteBuffer[nBlocks];
+      for (int b = 0; b < nBlocks; b++) {
+        long position = (long) b << blockShift;
+        long length = Math.min(size - position, (1L << blockShift) + overlap);
+        blocks[b] = channel.map(FileChannel.MapMode.READ_ONLY, start + position, length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+      }
+      return new Region(blockShift, blocks);
+    }
+
+    ByteBuffer block(final long pos) {
+      return blocks[(int) (pos >>> blockShift)];
+    }
+
+    int offset(final long pos) {
+      return (int) (pos & blockMask);
+    }
+
+    long getLong(final long pos) {
+      return block(pos).getLong(offset(pos));
+    }
+
+    int getInt(final long pos) {
+      return block(pos).getInt(offset(pos));
+    }
+
+    void free() {
+      for (ByteBuffer block : blocks)
+        DirectBuffers.free(block);
+    }
+  }
+}
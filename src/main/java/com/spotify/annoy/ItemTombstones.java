@@ -0,0 +1,100 @@
+package com.spotify.annoy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One bit per item, set for the items queries leave out: zero vectors,
+ * which annoy writes for deleted items and for ids never added. Either
+ * computed into a direct buffer, or mapped from a sidecar file: a header
+ * naming the index it was computed for, then little-endian 64-bit words,
+ * item i being bit i % 64 of word i / 64.
+ */
+final class ItemTombstones {
+
+  private static final int MAGIC = 0x544e4e41;  // "ANNT"
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 24;
+
+  private final ByteBuffer buffer;
+  private final LongBuffer words;
+  private final int nItems;
+
+  private ItemTombstones(final ByteBuffer buffer, final int nItems) {
+    this.buffer = buffer;
+    this.words = buffer.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    this.nItems = nItems;
+  }
+
+  private static int words(final int nItems) {
+    return (nItems + 63) >>> 6;
+  }
+
+  static ItemTombstones allocate(final int nItems) {
+    return new ItemTombstones(ByteBuffer.allocateDirect(8 * words(nItems)), nItems);
+  }
+
+  static ItemTombstones map(final File file,
+                            final int nItems,
+                            final long fingerprint) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      if (raf.length() < FILE_HEADER_SIZE || channel.read(header, 0) != FILE_HEADER_SIZE
+              || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException(file + " is not an item tombstones file");
+      }
+      if (header.getLong(8) != nItems || header.getLong(16) != fingerprint) {
+        throw new IOException(file + " was computed for another index");
+      }
+      if (raf.length() != FILE_HEADER_SIZE + 8L * words(nItems)) {
+        throw new IOException(String.format(
+                "%s holds %d bytes, expected one bit for each of the %d items",
+                file, raf.length(), nItems));
+      }
+      return new ItemTombstones(channel.map(FileChannel.MapMode.READ_ONLY,
+              FILE_HEADER_SIZE, 8L * words(nItems)), nItems);
+    }
+  }
+
+  int size() {
+    return nItems;
+  }
+
+  boolean contains(final int item) {
+    return (words.get(item >>> 6) & (1L << item)) != 0;
+  }
+
+  void add(final int item) {
+    words.put(item >>> 6, words.get(item >>> 6) | (1L << item));
+  }
+
+  /**
+   * Release the buffer now, see {@link DirectBuffers#free(ByteBuffer)}.
+   */
+  void free() {
+    DirectBuffers.free(buffer);
+  }
+
+  void write(final File file, final long fingerprint) throws IOException {
+    final int chunkSize = 4096;
+    byte[] chunk = new byte[chunkSize * 8];
+    ByteBuffer bytes = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      bytes.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, nItems).putLong(16, fingerprint);
+      raf.write(chunk, 0, FILE_HEADER_SIZE);
+      for (int start = 0; start < words.capacity(); start += chunkSize) {
+        int n = Math.min(chunkSize, words.capacity() - start);
+        for (int i = 0; i < n; i++)
+          bytes.putLong(8 * i, words.get(start + i));
+        raf.write(chunk, 0, 8 * n);
+      }
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package com.spotify.annoy;
+
+/**
+ * How {@link ANNIndex} brings the index file into memory.
+ */
+public enum LoadMode {
+  /**
+   * Memory-map the file. Loading is instant and pages are shared with other
+   * processes, but queries fault pages in from storage on first access and
+   * the OS may evict them under memory pressure.
+   */
+  MMAP,
+  /**
+   * Copy the file into direct (off-heap) buffers with large sequential
+   * reads. Memory is owned by the process and never faults back to storage.
+   */
+  DIRECT,
+  /**
+   * Copy the file into on-heap buffers with large sequential reads. Needs a
+   * heap large enough for the whole index.
+   */
+  HEAP
+}
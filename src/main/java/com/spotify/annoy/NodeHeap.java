@@ -0,0 +1,100 @@
+package com.spotify.annoy;
+
+import java.util.Arrays;
+
+/**
+ * Binary max-heap of (priority, node) pairs backed by parallel primitive
+ * arrays, so pushing and popping does not allocate once the heap has grown
+ * to its working size.
+ */
+final class NodeHeap {
+
+  private float[] priorities;
+  private long[] nodes;
+  private int size;
+
+  NodeHeap(final int initialCapacity) {
+    int capacity = Math.max(initialCapacity, 16);
+    priorities = new float[capacity];
+    nodes = new long[capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  float topPriority() {
+    return priorities[0];
+  }
+
+  long topNode() {
+    return nodes[0];
+  }
+
+  void push(final float priority, final long node) {
+    if (size == priorities.length) {
+      int capacity = priorities.length << 1;
+      priorities = Arrays.copyOf(priorities, capacity);
+      nodes = Arrays.copyOf(nodes, capacity);
+    }
+    int i = size++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (priorities[parent] >= priority)
+        break;
+      priorities[i] = priorities[parent];
+      nodes[i] = nodes[parent];
+      i = parent;
+    }
+    priorities[i] = priority;
+    nodes[i] = node;
+  }
+
+  /**
+   * Removes the entry with the highest priority.
+   *
+   * @return node of the removed entry
+   */
+  long pop() {
+    long top = nodes[0];
+    int last = --size;
+    if (last > 0) {
+      siftDown(priorities[last], nodes[last], last);
+    }
+    return top;
+  }
+
+  /**
+   * Replaces the entry with the highest priority, in one sift instead of a
+   * pop and a push.
+   */
+  void replaceTop(final float priority, final long node) {
+    siftDown(priority, node, size);
+  }
+
+  private void siftDown(final float priority, final long node, final int n) {
+    int i = 0;
+    int half = n >>> 1;
+    while (i < half) {
+      int child = (i << 1) + 1;
+      int right = child + 1;
+      if (right < n && priorities[right] > priorities[child])
+        child = right;
+      if (priority >= priorities[child])
+        break;
+      priorities[i] = priorities[child];
+      nodes[i] = nodes[child];
+      i = child;
+    }
+    priorities[i] = priority;
+    nodes[i] = node;
+  }
+}
@@ -0,0 +1,324 @@
+package com.spotify.annoy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A copy of the index laid out for traversal, in two regions. The split
+ * region holds the split planes of every tree packed in a {@link NodeOrder},
+ * one record each: the node id in the index, the two children, one float
+ * and the plane. The float is the norm of the plane for angular indexes,
+ * its bias for euclidean ones and its dot factor for dot ones. The item
+ * region holds the non-zero item vectors in the order the leaves of the
+ * first tree list them, each after its norm, so that candidates from
+ * neighbouring leaves are scored from neighbouring pages.
+ *
+ * <p>Children are references: a split slot if non-negative, or the
+ * complement {@code ~node} of a node of the index, an item if its id is
+ * below the item count and a leaf child list otherwise. Leaf child lists
+ * are not copied, they stay in the index. An id remap table gives the slot
+ * of every item in the item region, or -1 for zero vectors.
+ *
+ * <p>Either computed into direct buffers, or mapped from a sidecar file:
+ * a header naming the index it was computed for, the root references, the
+ * id remap table, then both regions.
+ */
+final class NodeLayout {
+
+  private static final int MAGIC = 0x4c4e4e41;  // "ANNL"
+  private static final int VERSION = 2;
+  private static final int FILE_HEADER_SIZE = 48;
+  private static final int SPLIT_HEADER_SIZE = 16;
+  private static final int ITEM_HEADER_SIZE = 4;
+
+  private final NodeOrder order;
+  private final IndexType indexType;
+  private final int dimension;
+  private final long numNodes;
+  private final int[] roots;
+  private final int nItems;
+  private final ByteBuffer itemSlots;
+  private final Region splits;
+  private final Region items;
+
+  private NodeLayout(final NodeOrder order,
+                     final IndexType indexType,
+                     final int dimension,
+                     final long numNodes,
+                     final int[] roots,
+                     final int nItems,
+                     final ByteBuffer itemSlots,
+                     final Region splits,
+                     final Region items) {
+    this.order = order;
+    this.indexType = indexType;
+    this.dimension = dimension;
+    this.numNodes = numNodes;
+    this.roots = roots;
+    this.nItems = nItems;
+    this.itemSlots = itemSlots;
+    this.splits = splits;
+    this.items = items;
+  }
+
+  static NodeLayout allocate(final NodeOrder order,
+                             final IndexType indexType,
+                             final int dimension,
+                             final long numNodes,
+                             final int nRoots,
+                             final int nSplits,
+                             final int nItems,
+                             final int nStoredItems,
+                             final int maxBlockShift) {
+    ByteBuffer itemSlots = ByteBuffer.allocateDirect(4 * nItems).order(ByteOrder.LITTLE_ENDIAN);
+    Region splits = new Region(SPLIT_HEADER_SIZE + 4 * dimension, nSplits, maxBlockShift);
+    Region items = new Region(ITEM_HEADER_SIZE + 4 * dimension, nStoredItems, maxBlockShift);
+    splits.allocate();
+    items.allocate();
+    return new NodeLayout(order, indexType, dimension, numNodes, new int[nRoots],
+            nItems, itemSlots, splits, items);
+  }
+
+  static NodeLayout map(final File file,
+                        final IndexType indexType,
+                        final int dimension,
+                        final long numNodes,
+                        final int nRoots,
+                        final int maxBlockShift,
+                        final long fingerprint) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      if (raf.length() < FILE_HEADER_SIZE || channel.read(header, 0) != FILE_HEADER_SIZE
+              || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException(file + " is not a node layout file");
+      }
+      int o = header.getInt(8);
+      if (o < 0 || o >= NodeOrder.values().length
+              || header.getInt(12) != indexType.ordinal()
+              || header.getInt(16) != dimension
+              || header.getLong(20) != numNodes
+              || header.getInt(28) != nRoots) {
+        throw new IOException(String.format(
+                "%s doesn't match an index of type %s with %d nodes of dimension %d",
+                file, indexType, numNodes, dimension));
+      }
+      if (header.getLong(40) != fingerprint) {
+        throw new IOException(file + " was computed for another index");
+      }
+      int nItems = header.getInt(32);
+      int nSplits = header.getInt(36);
+
+      ByteBuffer tables = ByteBuffer.allocate(4 * nRoots + 4).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(tables, FILE_HEADER_SIZE);
+      int[] roots = new int[nRoots];
+      for (int r = 0; r < nRoots; r++)
+        roots[r] = tables.getInt(4 * r);
+      int nStoredItems = tables.getInt(4 * nRoots);
+
+      Region splits = new Region(SPLIT_HEADER_SIZE + 4 * dimension, nSplits, maxBlockShift);
+      Region items = new Region(ITEM_HEADER_SIZE + 4 * dimension, nStoredItems, maxBlockShift);
+      long slotsStart = FILE_HEADER_SIZE + 4L * nRoots + 4;
+      long splitsStart = slotsStart + 4L * nItems;
+      long itemsStart = splitsStart + splits.size();
+      if (raf.length() != itemsStart + items.size()) {
+        throw new IOException(String.format(
+                "%s holds %d bytes, expected %d for %d split planes and %d items",
+                file, raf.length(), itemsStart + items.size(), nSplits, nStoredItems));
+      }
+      ByteBuffer itemSlots = channel.map(FileChannel.MapMode.READ_ONLY, slotsStart, 4L * nItems)
+              .order(ByteOrder.LITTLE_ENDIAN);
+      splits.map(channel, splitsStart);
+      items.map(channel, itemsStart);
+      return new NodeLayout(NodeOrder.values()[o], indexType, dimension, numNodes, roots,
+              nItems, itemSlots, splits, items);
+    }
+  }
+
+  NodeOrder order() {
+    return order;
+  }
+
+  int itemCount() {
+    return nItems;
+  }
+
+  int root(final int r) {
+    return roots[r];
+  }
+
+  void setRoot(final int r, final int ref) {
+    roots[r] = ref;
+  }
+
+  /**
+   * @return slot of the item in the item region, or -1 for zero vectors
+   */
+  int itemSlot(final int item) {
+    return itemSlots.getInt(4 * item);
+  }
+
+  void setItemSlot(final int item, final int slot) {
+    itemSlots.putInt(4 * item, slot);
+  }
+
+  ByteBuffer splitBlock(final int slot) {
+    return splits.block(slot);
+  }
+
+  /**
+   * @return offset of the plane of a split slot in its block
+   */
+  int splitOffset(final int slot) {
+    return splits.offset(slot) + SPLIT_HEADER_SIZE;
+  }
+
+  int splitNode(final int slot) {
+    return splits.block(slot).getInt(splits.offset(slot));
+  }
+
+  int child(final int slot, final int side) {
+    return splits.block(slot).getInt(splits.offset(slot) + 4 + 4 * side);
+  }
+
+  float splitExtra(final int slot) {
+    return splits.block(slot).getFloat(splits.offset(slot) + 12);
+  }
+
+  void putSplit(final int slot, final int node, final int left, final int right,
+                final float extra, final float[] v) {
+    ByteBuffer block = splits.block(slot);
+    int offset = splits.offset(slot);
+    block.putInt(offset, node);
+    block.putInt(offset + 4, left);
+    block.putInt(offset + 8, right);
+    block.putFloat(offset + 12, extra);
+    offset += SPLIT_HEADER_SIZE;
+    for (int z = 0; z < dimension; z++)
+      block.putFloat(offset + 4 * z, v[z]);
+  }
+
+  ByteBuffer itemBlock(final int slot) {
+    return items.block(slot);
+  }
+
+  /**
+   * @return offset of the vector of an item slot in its block
+   */
+  int itemOffset(final int slot) {
+    return items.offset(slot) + ITEM_HEADER_SIZE;
+  }
+
+  float itemNorm(final int slot) {
+    return items.block(slot).getFloat(items.offset(slot));
+  }
+
+  void putItem(final int slot, final float norm, final float[] v) {
+    ByteBuffer block = items.block(slot);
+    int offset = items.offset(slot);
+    block.putFloat(offset, norm);
+    offset += ITEM_HEADER_SIZE;
+    for (int z = 0; z < dimension; z++)
+      block.putFloat(offset + 4 * z, v[z]);
+  }
+
+  /**
+   * Release the buffers now, see {@link DirectBuffers#free(ByteBuffer)}.
+   */
+  void free() {
+    DirectBuffers.free(itemSlots);
+    splits.free();
+    items.free();
+  }
+
+  void write(final File file, final long fingerprint) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE + 4 * roots.length + 4)
+              .order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putInt(order.ordinal())
+              .putInt(indexType.ordinal()).putInt(dimension).putLong(numNodes)
+              .putInt(roots.length).putInt(nItems).putInt((int) splits.count)
+              .putLong(fingerprint);
+      for (int root : roots)
+        header.putInt(root);
+      header.putInt((int) items.count);
+      // Buffer casts keep the bytecode linkable on Java 8
+      ((Buffer) header).flip();
+      writeFully(channel, header);
+      writeFully(channel, itemSlots);
+      for (ByteBuffer block : splits.blocks)
+        writeFully(channel, block);
+      for (ByteBuffer block : items.blocks)
+        writeFully(channel, block);
+    }
+  }
+
+  private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+    ByteBuffer bytes = buffer.duplicate();
+    ((Buffer) bytes).rewind();
+    while (bytes.hasRemaining())
+      channel.write(bytes);
+  }
+
+  /**
+   * Fixed-size records in blocks of a power of two records, so that
+   * records never straddle blocks.
+   */
+  private static final class Region {
+
+    final int recordSize;
+    final long count;
+    final int recordShift;
+    final long recordMask;
+    final ByteBuffer[] blocks;
+
+    Region(final int recordSize, final long count, final int maxBlockShift) {
+      this.recordSize = recordSize;
+      this.count = count;
+      this.recordShift = Math.max(0, 63 - Long.numberOfLeadingZeros((1L << maxBlockShift) / recordSize));
+      this.recordMask = (1L << recordShift) - 1;
+      this.blocks = new ByteBuffer[(count == 0) ? 0 : (int) (((count - 1) >>> recordShift) + 1)];
+    }
+
+    long size() {
+      return count * recordSize;
+    }
+
+    private long records(final int b) {
+      return Math.min(1L << recordShift, count - ((long) b << recordShift));
+    }
+
+    void allocate() {
+      for (int b = 0; b < blocks.length; b++)
+        blocks[b] = ByteBuffer.allocateDirect((int) (records(b) * recordSize))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void map(final FileChannel channel, final long start) throws IOException {
+      for (int b = 0; b < blocks.length; b++)
+        blocks[b] = channel.map(FileChannel.MapMode.READ_ONLY,
+                start + ((long) b << recordShift) * recordSize, records(b) * recordSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    ByteBuffer block(final long record) {
+      return blocks[(int) (record >>> recordShift)];
+    }
+
+    int offset(final long record) {
+      return (int) (record & recordMask) * recordSize;
+    }
+
+    void free() {
+      for (ByteBuffer block : blocks)
+        DirectBuffers.free(block);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package com.spotify.annoy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One float per index node holding the norm of the node's vector (zero for
+ * leaf child-lists). Either computed into a direct buffer, or mapped from a
+ * sidecar file: a header naming the index it was computed for, then
+ * little-endian floats in node order.
+ */
+final class NodeNorms {
+
+  private static final int MAGIC = 0x4e4e4e41;  // "ANNN"
+  private static final int VERSION = 1;
+  private static final int FILE_HEADER_SIZE = 24;
+
+  private final ByteBuffer buffer;
+  private final FloatBuffer norms;
+
+  private NodeNorms(final ByteBuffer buffer) {
+    this.buffer = buffer;
+    this.norms = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+  }
+
+  static NodeNorms allocate(final long numNodes) {
+    if (numNodes > Integer.MAX_VALUE / 4) {
+      throw new IllegalArgumentException("too many nodes for a norms table: " + numNodes);
+    }
+    return new NodeNorms(ByteBuffer.allocateDirect((int) numNodes * 4));
+  }
+
+  static NodeNorms map(final File file,
+                       final long numNodes,
+                       final long fingerprint) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      if (raf.length() < FILE_HEADER_SIZE || channel.read(header, 0) != FILE_HEADER_SIZE
+              || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException(file + " is not a node norms file");
+      }
+      if (header.getLong(8) != numNodes || header.getLong(16) != fingerprint) {
+        throw new IOException(file + " was computed for another index");
+      }
+      if (raf.length() != FILE_HEADER_SIZE + numNodes * 4) {
+        throw new IOException(String.format(
+                "%s holds %d bytes, expected one float for each of the %d nodes",
+                file, raf.length(), numNodes));
+      }
+      return new NodeNorms(channel.map(FileChannel.MapMode.READ_ONLY,
+              FILE_HEADER_SIZE, numNodes * 4));
+    }
+  }
+
+  int size() {
+    return norms.capacity();
+  }
+
+  float get(final long node) {
+    return norms.get((int) node);
+  }
+
+  void put(final long node, final float norm) {
+    norms.put((int) node, norm);
+  }
+
+  /**
+   * Release the buffer now, see {@link DirectBuffers#free(ByteBuffer)}.
+   */
+  void free() {
+    DirectBuffers.free(buffer);
+  }
+
+  void write(final File file, final long fingerprint) throws IOException {
+    final int chunkSize = 4096;
+    byte[] chunk = new byte[chunkSize * 4];
+    ByteBuffer bytes = ByteBuffer.wrap(chunk).order(ByteOrder.LITTLE_ENDIAN);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      bytes.putInt(0, MAGIC).putInt(4, VERSION).putLong(8, norms.capacity()).putLong(16, fingerprint);
+      raf.write(chunk, 0, FILE_HEADER_SIZE);
+      for (int start = 0; start < norms.capacity(); start += chunkSize) {
+        int n = Math.min(chunkSize, norms.capacity() - start);
+        for (int i = 0; i < n; i++)
+          bytes.putFloat(4 * i, norms.get(start + i));
+        raf.write(chunk, 0, 4 * n);
+      }
+    }
+  }
+}
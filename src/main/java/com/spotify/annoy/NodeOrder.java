@@ -0,0 +1,32 @@
+package com.spotify.annoy;
+
+/**
+ * Orders of the split planes in the compact copy of the trees used by
+ * {@link ANNIndex#enableLayout(NodeOrder)}.
+ */
+public enum NodeOrder {
+  /**
+   * Level by level across all trees: the upper levels of every tree share
+   * the first pages, which suits many trees queried with a small searchK.
+   */
+  BREADTH_FIRST("bfs"),
+  /**
+   * Tree by tree, each one recursively split into a top half and bottom
+   * subtrees stored contiguously, so that a root-to-leaf path touches few
+   * pages at every scale.
+   */
+  VAN_EMDE_BOAS("veb");
+
+  private final String suffix;
+
+  NodeOrder(String suffix) {
+    this.suffix = suffix;
+  }
+
+  /**
+   * @return extension of the sidecar file, {@code <filename>.<suffix>}
+   */
+  public String getSuffix() {
+    return suffix;
+  }
+}
@@ -0,0 +1,235 @@
+package com.spotify.annoy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntPredicate;
+
+/**
+ * Spreads the queries of an {@link ANNIndex} over the threads of an
+ * {@link Executor}, either one batch of queries at a time or a single query
+ * across the trees of the forest.
+ *
+ * <p>Tasks keep their scratch state in the index's per-thread
+ * {@link SearchContext}s, so a pool of long-lived worker threads runs
+ * without steady-state allocation beyond results. Any executor works,
+ * including a virtual-thread-per-task executor, in which case each task
+ * starts with a fresh context.
+ *
+ * <p>A searcher is thread-safe: any number of threads may submit queries
+ * through it concurrently, as long as the index stays open.
+ */
+public final class ParallelSearcher {
+
+  private final ANNIndex index;
+  private final Executor executor;
+  private final int parallelism;
+
+  /**
+   * @param index       index to query
+   * @param executor    executor to run tasks on
+   * @param parallelism number of tasks to split a request into
+   */
+  public ParallelSearcher(final ANNIndex index,
+                          final Executor executor,
+                          final int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.index = index;
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Create a searcher splitting requests into as many tasks as the pool has
+   * threads.
+   *
+   * @param index index to query
+   * @param pool  pool to run tasks on
+   */
+  public ParallelSearcher(final ANNIndex index, final ForkJoinPool pool) {
+    this(index, pool, pool.getParallelism());
+  }
+
+  /**
+   * Look up nearest PqEntries for a batch of query vectors. The batch is cut
+   * into contiguous chunks whose queries run one by one on the executor.
+   *
+   * @param queryVectors query points
+   * @param nResults     number of items to return per query
+   * @param searchK      number of candidates per query, or -1 for
+   *                     {@code nResults * number of trees}
+   * @return one list of PqEntries per query, in query order
+   */
+  public List<List<ANNIndex.PQEntry>> getNearestPqEntries(final float[][] queryVectors,
+                                                          final int nResults,
+                                                          final int searchK) {
+    int nTasks = Math.min(parallelism, queryVectors.length);
+    if (nTasks <= 1) {
+      return search(queryVectors, 0, queryVectors.length, nResults, searchK);
+    }
+
+    List<CompletableFuture<List<List<ANNIndex.PQEntry>>>> futures = new ArrayList<>(nTasks);
+    for (int t = 0; t < nTasks; t++) {
+      final int from = (int) ((long) queryVectors.length * t / nTasks);
+      final int to = (int) ((long) queryVectors.length * (t + 1) / nTasks);
+      futures.add(CompletableFuture.supplyAsync(
+              () -> search(queryVectors, from, to, nResults, searchK), executor));
+    }
+
+    List<List<ANNIndex.PQEntry>> results = new ArrayList<>(queryVectors.length);
+    for (CompletableFuture<List<List<ANNIndex.PQEntry>>> future : futures) {
+      results.addAll(join(future));
+    }
+    return results;
+  }
+
+  // single queries stay faster than the shared batch traversal
+  private List<List<ANNIndex.PQEntry>> search(final float[][] queryVectors,
+                                              final int from,
+                                              final int to,
+                                              final int nResults,
+                                              final int searchK) {
+    SearchContext ctx = index.searchContext();
+    List<List<ANNIndex.PQEntry>> results = new ArrayList<>(to - from);
+    for (int q = from; q < to; q++) {
+      results.add(index.getNearestPqEntries(queryVectors[q], nResults, searchK, ctx));
+    }
+    return results;
+  }
+
+  /**
+   * Look up nearest PqEntries for a single query, traversing disjoint groups
+   * of trees in parallel. Each task collects its share of searchK candidates
+   * from its trees; the union is then re-ranked on the calling thread.
+   *
+   * @param queryVector query point
+   * @param nResults    number of items to return
+   * @param searchK     number of candidates, or -1 for
+   *                    {@code nResults * number of trees}
+   * @return list of PqEntries in descending nearness to query point
+   */
+  public List<ANNIndex.PQEntry> getNearestPqEntriesAcrossTrees(final float[] queryVector,
+                                                               final int nResults,
+                                                               final int searchK) {
+    if (queryVector.length != index.getDimension()) {
+      throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
+              index.getDimension(), queryVector.length));
+    }
+    final int nRoots = index.getRootCount();
+    final int totalK = (searchK == -1)
+            ? (int) Math.min((long) nRoots * nResults, Integer.MAX_VALUE) : searchK;
+    final float queryNorm = ANNIndex.norm(queryVector);
+    int nTasks = Math.max(1, Math.min(parallelism, nRoots));
+
+    List<CompletableFuture<int[]>> futures = new ArrayList<>(nTasks);
+    for (int t = 0; t < nTasks; t++) {
+      final int fromRoot = (int) ((long) nRoots * t / nTasks);
+      final int toRoot = (int) ((long) nRoots * (t + 1) / nTasks);
+      final int taskK = (int) Math.ceil((double) totalK * (toRoot - fromRoot) / nRoots);
+      futures.add(CompletableFuture.supplyAsync(() -> {
+        SearchContext ctx = index.searchContext();
+        ctx.reset();
+        index.collectCandidates(queryVector, queryNorm, fromRoot, toRoot, taskK, ctx);
+        int[] candidates = new int[ctx.candidates.size()];
+        for (int i = 0; i < candidates.length; i++) {
+          candidates[i] = ctx.candidates.get(i);
+        }
+        return candidates;
+      }, executor));
+    }
+
+    // sized by the candidates found, which an exhaustive searchK overstates
+    List<int[]> found = new ArrayList<>(nTasks);
+    long nFound = 0;
+    for (CompletableFuture<int[]> future : futures) {
+      int[] candidates = join(future);
+      found.add(candidates);
+      nFound += candidates.length;
+    }
+    IntHashSet merged = new IntHashSet((int) Math.min(nFound, index.getItemCount()));
+    for (int[] candidates : found) {
+      for (int candidate : candidates) {
+        merged.add(candidate);
+      }
+    }
+    SearchContext ctx = index.searchContext();
+    ctx.reset();
+    return index.rank(queryVector, queryNorm, merged, nResults, ctx);
+  }
+
+  /**
+   * Look up the exact nearest items accepted by a filter, scanning disjoint
+   * ranges of items in parallel. Each task keeps the best nResults of its
+   * range; the union is then merged on the calling thread.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param filter      items to consider, or null for all, called from the
+   *                    executor's threads
+   * @return list of PqEntries in descending nearness to query point
+   * @see ANNIndex#getExactNearestPqEntries(float[], int)
+   */
+  public List<ANNIndex.PQEntry> getExactNearestPqEntries(final float[] queryVector,
+                                                         final int nResults,
+                                                         final IntPredicate filter) {
+    if (queryVector.length != index.getDimension()) {
+      throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
+              index.getDimension(), queryVector.length));
+    }
+    final int nItems = index.getItemCount();
+    final float queryNorm = ANNIndex.norm(queryVector);
+    int nTasks = Math.max(1, Math.min(parallelism, nItems));
+    if (nTasks == 1 || nResults <= 0) {
+      return index.getExactNearestPqEntries(queryVector, nResults, filter);
+    }
+
+    List<CompletableFuture<List<ANNIndex.PQEntry>>> futures = new ArrayList<>(nTasks);
+    for (int t = 0; t < nTasks; t++) {
+      final int fromItem = (int) ((long) nItems * t / nTasks);
+      final int toItem = (int) ((long) nItems * (t + 1) / nTasks);
+      futures.add(CompletableFuture.supplyAsync(() -> {
+        SearchContext ctx = index.searchContext();
+        ctx.reset();
+        ctx.filter = filter;
+        try {
+          index.scanNearest(queryVector, queryNorm, ctx.ranked, nResults, fromItem, toItem, ctx);
+          return index.drain(ctx.ranked);
+        } finally {
+          ctx.filter = null;
+        }
+      }, executor));
+    }
+
+    // sized by what the tasks returned, nResults may stand for "all"
+    List<List<ANNIndex.PQEntry>> found = new ArrayList<>(nTasks);
+    int nFound = 0;
+    for (CompletableFuture<List<ANNIndex.PQEntry>> future : futures) {
+      List<ANNIndex.PQEntry> entries = join(future);
+      found.add(entries);
+      nFound += entries.size();
+    }
+    List<ANNIndex.PQEntry> merged = new ArrayList<>(nFound);
+    for (List<ANNIndex.PQEntry> entries : found) {
+      merged.addAll(entries);
+    }
+    Collections.sort(merged);
+    return new ArrayList<>(merged.subList(0, Math.min(nResults, merged.size())));
+  }
+
+  static <T> T join(final CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
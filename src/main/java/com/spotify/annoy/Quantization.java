@@ -0,0 +1,31 @@
+package com.spotify.annoy;
+
+/**
+ * Encodings of the compact node vectors used by
+ * {@link ANNIndex#enableQuantization(Quantization)}.
+ */
+public enum Quantization {
+  /** One unsigned byte per component, scaled to the range of its dimension. */
+  INT8(1, "int8"),
+  /** One IEEE 754 half-precision float per component. */
+  FP16(2, "fp16");
+
+  private final int componentSize;
+  private final String suffix;
+
+  Quantization(int componentSize, String suffix) {
+    this.componentSize = componentSize;
+    this.suffix = suffix;
+  }
+
+  int getComponentSize() {
+    return componentSize;
+  }
+
+  /**
+   * @return extension of the sidecar file, {@code <filename>.<suffix>}
+   */
+  public String getSuffix() {
+    return suffix;
+  }
+}
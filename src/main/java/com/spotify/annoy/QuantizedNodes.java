@@ -0,0 +1,341 @@
+package com.spotify.annoy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A compact copy of the index nodes for traversal and candidate scoring:
+ * one record per node holding n_descendants, the two children, one float
+ * and the node's vector as int8 or fp16 codes. The float is the norm of the
+ * original vector for angular indexes, the bias of split planes and the
+ * squared norm of items for euclidean ones, and the dot factor of split
+ * planes for dot indexes. Zero item vectors are stored with n_descendants
+ * 0, so they are skipped without reading the index. Leaf child lists are
+ * not copied, they stay in the index.
+ *
+ * <p>INT8 codes are scaled per dimension, with one scale for items and one
+ * for split planes since their ranges differ. Either computed into direct
+ * buffers, or mapped from a sidecar file: a header naming the index it was
+ * computed for, the int8 scales, then the records in node order.
+ */
+final class QuantizedNodes {
+
+  private static final int MAGIC = 0x514e4e41;  // "ANNQ"
+  private static final int VERSION = 2;
+  private static final int FILE_HEADER_SIZE = 36;
+  private static final int RECORD_HEADER_SIZE = 16;
+
+  private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+
+  static {
+    for (int h = 0; h < HALF_TO_FLOAT.length; h++)
+      HALF_TO_FLOAT[h] = halfToFloat(h);
+  }
+
+  private final Quantization quantization;
+  private final IndexType indexType;
+  private final int dimension;
+  private final long numNodes;
+  private final int recordSize;
+  // records never straddle blocks: block b holds 2^recordShift records
+  private final int recordShift;
+  private final long recordMask;
+  private final ByteBuffer[] blocks;
+  // int8 only: component z of a code is lo[z] + step[z] * code[z]
+  private final float[] itemLo, itemStep, splitLo, splitStep;
+
+  private QuantizedNodes(final Quantization quantization,
+                         final IndexType indexType,
+                         final int dimension,
+                         final long numNodes,
+                         final int maxBlockShift,
+                         final float[][] scales) {
+    this.quantization = quantization;
+    this.indexType = indexType;
+    this.dimension = dimension;
+    this.numNodes = numNodes;
+    this.recordSize = RECORD_HEADER_SIZE + quantization.getComponentSize() * dimension;
+    this.recordShift = Math.max(0, 63 - Long.numberOfLeadingZeros((1L << maxBlockShift) / recordSize));
+    this.recordMask = (1L << recordShift) - 1;
+    this.blocks = new ByteBuffer[(int) (((numNodes - 1) >>> recordShift) + 1)];
+    this.itemLo = scales[0];
+    this.itemStep = scales[1];
+    this.splitLo = scales[2];
+    this.splitStep = scales[3];
+  }
+
+  /**
+   * @param itemRange  per-dimension minimum then maximum of the item vectors
+   * @param splitRange per-dimension minimum then maximum of the split planes
+   */
+  static QuantizedNodes allocate(final Quantization quantization,
+                                 final IndexType indexType,
+                                 final int dimension,
+                                 final long numNodes,
+                                 final int maxBlockShift,
+                                 final float[][] itemRange,
+                                 final float[][] splitRange) {
+    float[][] scales = new float[4][dimension];
+    if (quantization == Quantization.INT8) {
+      for (int z = 0; z < dimension; z++) {
+        setScale(itemRange[0][z], itemRange[1][z], scales[0], scales[1], z);
+        setScale(splitRange[0][z], splitRange[1][z], scales[2], scales[3], z);
+      }
+    }
+    QuantizedNodes nodes = new QuantizedNodes(quantization, indexType, dimension,
+            numNodes, maxBlockShift, scales);
+    for (int b = 0; b < nodes.blocks.length; b++) {
+      long records = Math.min(1L << nodes.recordShift, numNodes - ((long) b << nodes.recordShift));
+      nodes.blocks[b] = ByteBuffer.allocateDirect((int) (records * nodes.recordSize))
+              .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    return nodes;
+  }
+
+  private static void setScale(final float min, final float max,
+                               final float[] lo, final float[] step, final int z) {
+    if (min <= max) {
+      // lo is a whole number of steps, so that zero encodes exactly
+      step[z] = (Math.max(max, 0) - Math.min(min, 0)) / 255;
+      lo[z] = (step[z] > 0) ? -Math.round(-Math.min(min, 0) / step[z]) * step[z] : 0;
+    }
+  }
+
+  static QuantizedNodes map(final File file,
+                            final IndexType indexType,
+                            final int dimension,
+                            final long numNodes,
+                            final int maxBlockShift,
+                            final long fingerprint) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      if (raf.length() < FILE_HEADER_SIZE || channel.read(header, 0) != FILE_HEADER_SIZE
+              || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException(file + " is not a quantized node file");
+      }
+      int q = header.getInt(8);
+      if (q < 0 || q >= Quantization.values().length
+              || header.getInt(12) != indexType.ordinal()
+              || header.getInt(16) != dimension
+              || header.getLong(20) != numNodes) {
+        throw new IOException(String.format(
+                "%s doesn't match an index of type %s with %d nodes of dimension %d",
+                file, indexType, numNodes, dimension));
+      }
+      if (header.getLong(28) != fingerprint) {
+        throw new IOException(file + " was computed for another index");
+      }
+      Quantization quantization = Quantization.values()[q];
+
+      float[][] scales = new float[4][dimension];
+      int scalesSize = (quantization == Quantization.INT8) ? 4 * 4 * dimension : 0;
+      ByteBuffer scaleBuffer = ByteBuffer.allocate(scalesSize).order(ByteOrder.LITTLE_ENDIAN);
+      channel.read(scaleBuffer, FILE_HEADER_SIZE);
+      for (int i = 0; i < scalesSize / 4; i++)
+        scales[i / dimension][i % dimension] = scaleBuffer.getFloat(4 * i);
+
+      QuantizedNodes nodes = new QuantizedNodes(quantization, indexType, dimension,
+              numNodes, maxBlockShift, scales);
+      long start = FILE_HEADER_SIZE + scalesSize;
+      if (raf.length() != start + numNodes * nodes.recordSize) {
+        throw new IOException(String.format(
+                "%s holds %d bytes, expected %d for %d nodes",
+                file, raf.length(), start + numNodes * nodes.recordSize, numNodes));
+      }
+      for (int b = 0; b < nodes.blocks.length; b++) {
+        long first = (long) b << nodes.recordShift;
+        long records = Math.min(1L << nodes.recordShift, numNodes - first);
+        nodes.blocks[b] = channel.map(FileChannel.MapMode.READ_ONLY,
+                start + first * nodes.recordSize, records * nodes.recordSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+      }
+      return nodes;
+    }
+  }
+
+  Quantization quantization() {
+    return quantization;
+  }
+
+  private ByteBuffer block(final long node) {
+    return blocks[(int) (node >>> recordShift)];
+  }
+
+  private int offset(final long node) {
+    return (int) (node & recordMask) * recordSize;
+  }
+
+  int nDescendants(final long node) {
+    return block(node).getInt(offset(node));
+  }
+
+  int child(final long node, final int side) {
+    return block(node).getInt(offset(node) + 4 + 4 * side);
+  }
+
+  float extra(final long node) {
+    return block(node).getFloat(offset(node) + 12);
+  }
+
+  /**
+   * Store a node. Leaf child lists are stored with their n_descendants only.
+   *
+   * @param v the node's vector, or null for leaf child lists
+   */
+  void put(final long node, final int nDescendants, final int left, final int right,
+           final float extra, final float[] v) {
+    ByteBuffer block = block(node);
+    int offset = offset(node);
+    block.putInt(offset, nDescendants);
+    block.putInt(offset + 4, left);
+    block.putInt(offset + 8, right);
+    block.putFloat(offset + 12, extra);
+    if (v == null)
+      return;
+    offset += RECORD_HEADER_SIZE;
+    if (quantization == Quantization.FP16) {
+      for (int z = 0; z < dimension; z++)
+        block.putShort(offset + 2 * z, floatToHalf(v[z]));
+    } else {
+      float[] lo = (nDescendants == 1) ? itemLo : splitLo;
+      float[] step = (nDescendants == 1) ? itemStep : splitStep;
+      for (int z = 0; z < dimension; z++) {
+        int code = (step[z] > 0) ? Math.round((v[z] - lo[z]) / step[z]) : 0;
+        block.put(offset + z, (byte) Math.max(0, Math.min(255, code)));
+      }
+    }
+  }
+
+  /**
+   * @return size of the per-query array filled by {@link #prepare}
+   */
+  int preparedSize() {
+    return (quantization == Quantization.INT8) ? 2 * dimension + 2 : 0;
+  }
+
+  /**
+   * Fold the int8 scales into the query once, so that a dot product with
+   * a code is one multiply-add per component: for items, the weights
+   * {@code q[z] * step[z]} go to {@code prepared[0, dimension)} and the sum
+   * of {@code q[z] * lo[z]} to {@code prepared[2 * dimension]}, and likewise
+   * for split planes after them.
+   */
+  void prepare(final float[] q, final float[] prepared) {
+    if (quantization != Quantization.INT8)
+      return;
+    float itemBias = 0, splitBias = 0;
+    for (int z = 0; z < dimension; z++) {
+      prepared[z] = q[z] * itemStep[z];
+      prepared[dimension + z] = q[z] * splitStep[z];
+      itemBias += q[z] * itemLo[z];
+      splitBias += q[z] * splitLo[z];
+    }
+    prepared[2 * dimension] = itemBias;
+    prepared[2 * dimension + 1] = splitBias;
+  }
+
+  /**
+   * Dot product of the query with the decoded vector of a node.
+   *
+   * @param item     whether the node is an item rather than a split plane
+   * @param prepared the query as filled in by {@link #prepare}
+   */
+  float dot(final long node, final boolean item, final float[] q, final float[] prepared) {
+    ByteBuffer block = block(node);
+    int offset = offset(node) + RECORD_HEADER_SIZE;
+    float d = 0;
+    if (quantization == Quantization.FP16) {
+      for (int z = 0; z < dimension; z++)
+        d += q[z] * HALF_TO_FLOAT[block.getShort(offset + 2 * z) & 0xffff];
+    } else {
+      int weights = item ? 0 : dimension;
+      d = prepared[2 * dimension + (item ? 0 : 1)];
+      for (int z = 0; z < dimension; z++)
+        d += prepared[weights + z] * (block.get(offset + z) & 0xff);
+    }
+    return d;
+  }
+
+  /**
+   * Release the blocks now, see {@link DirectBuffers#free(ByteBuffer)}.
+   */
+  void free() {
+    for (ByteBuffer block : blocks)
+      DirectBuffers.free(block);
+  }
+
+  void write(final File file, final long fingerprint) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(0);
+      FileChannel channel = raf.getChannel();
+      int scalesSize = (quantization == Quantization.INT8) ? 4 * 4 * dimension : 0;
+      ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE + scalesSize)
+              .order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putInt(quantization.ordinal())
+              .putInt(indexType.ordinal()).putInt(dimension).putLong(numNodes)
+              .putLong(fingerprint);
+      if (quantization == Quantization.INT8) {
+        for (float[] scale : new float[][] {itemLo, itemStep, splitLo, splitStep})
+          for (float x : scale)
+            header.putFloat(x);
+      }
+      // Buffer casts keep the bytecode linkable on Java 8
+      ((Buffer) header).flip();
+      while (header.hasRemaining())
+        channel.write(header);
+      for (ByteBuffer block : blocks) {
+        ByteBuffer records = block.duplicate();
+        ((Buffer) records).clear();
+        while (records.hasRemaining())
+          channel.write(records);
+      }
+    }
+  }
+
+  /**
+   * Round to the nearest half-precision float, saturating at the largest
+   * finite one.
+   */
+  static short floatToHalf(final float f) {
+    int bits = Float.floatToIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int abs = bits & 0x7fffffff;
+    if (abs > 0x7f800000)
+      return (short) (sign | 0x7e00);
+    int rounded = abs + 0x1000;
+    if (rounded >= 0x47800000)
+      return (short) (sign | (abs == 0x7f800000 ? 0x7c00 : 0x7bff));
+    if (rounded >= 0x38800000)
+      return (short) (sign | ((rounded - 0x38000000) >>> 13));
+    if (abs < 0x33000000)
+      return (short) sign;
+    // subnormal half
+    int exponent = abs >>> 23;
+    int mantissa = (abs & 0x7fffff) | 0x800000;
+    return (short) (sign | ((mantissa + (0x800000 >>> (exponent - 102))) >>> (126 - exponent)));
+  }
+
+  static float halfToFloat(final int half) {
+    int mantissa = half & 0x03ff;
+    int exponent = half & 0x7c00;
+    if (exponent == 0x7c00) {
+      exponent = 0x3fc00;
+    } else if (exponent != 0) {
+      exponent += 0x1c000;
+    } else if (mantissa != 0) {
+      exponent = 0x1c400;
+      do {
+        mantissa <<= 1;
+        exponent -= 0x400;
+      } while ((mantissa & 0x400) == 0);
+      mantissa &= 0x3ff;
+    }
+    return Float.intBitsToFloat(((half & 0x8000) << 16) | ((exponent | mantissa) << 13));
+  }
+}
@@ -0,0 +1,115 @@
+package com.spotify.annoy;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link QueryListener} aggregating query stats into histograms with
+ * power-of-two buckets, cheap enough to leave on in production. Useful to
+ * pick searchK and the number of trees: the candidates and duplicates
+ * histograms show how much of searchK each query really uses.
+ */
+public final class QueryHistograms implements QueryListener {
+
+  private final Histogram splitNodes = new Histogram();
+  private final Histogram leaves = new Histogram();
+  private final Histogram duplicates = new Histogram();
+  private final Histogram candidates = new Histogram();
+  private final Histogram traversalNanos = new Histogram();
+  private final Histogram rankNanos = new Histogram();
+
+  @Override
+  public void onQuery(final QueryStats stats) {
+    splitNodes.record(stats.splitNodes);
+    leaves.record(stats.leaves);
+    duplicates.record(stats.duplicates);
+    candidates.record(stats.candidates);
+    traversalNanos.record(stats.traversalNanos);
+    rankNanos.record(stats.rankNanos);
+  }
+
+  public Histogram getSplitNodes() {
+    return splitNodes;
+  }
+
+  public Histogram getLeaves() {
+    return leaves;
+  }
+
+  public Histogram getDuplicates() {
+    return duplicates;
+  }
+
+  public Histogram getCandidates() {
+    return candidates;
+  }
+
+  public Histogram getTraversalNanos() {
+    return traversalNanos;
+  }
+
+  public Histogram getRankNanos() {
+    return rankNanos;
+  }
+
+  /**
+   * Counts of non-negative values in buckets [0, 1), [1, 2), [2, 4), ...
+   * [2^62, 2^63). Percentiles are exact to within a factor of two.
+   */
+  public static final class Histogram {
+
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram() {
+      for (int b = 0; b < buckets.length; b++)
+        buckets[b] = new LongAdder();
+    }
+
+    void record(final long value) {
+      long v = Math.max(0, value);
+      buckets[64 - Long.numberOfLeadingZeros(v)].increment();
+      sum.add(v);
+      long m;
+      while (v > (m = max.get()) && !max.compareAndSet(m, v)) {
+        // retry
+      }
+    }
+
+    public long getCount() {
+      long count = 0;
+      for (LongAdder bucket : buckets)
+        count += bucket.sum();
+      return count;
+    }
+
+    public double getMean() {
+      long count = getCount();
+      return (count == 0) ? 0 : (double) sum.sum() / count;
+    }
+
+    public long getMax() {
+      return max.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return upper bound of the bucket holding the quantile, capped by
+     *         the largest value recorded
+     */
+    public long getPercentile(final double quantile) {
+      long count = getCount();
+      if (count == 0)
+        return 0;
+      long rank = (long) Math.ceil(quantile * count);
+      long seen = 0;
+      for (int b = 0; b < buckets.length; b++) {
+        seen += buckets[b].sum();
+        if (seen >= Math.max(rank, 1))
+          return Math.min((b == 0) ? 0 : (1L << b) - 1, getMax());
+      }
+      return getMax();
+    }
+  }
+}
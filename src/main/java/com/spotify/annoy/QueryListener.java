@@ -0,0 +1,29 @@
+package com.spotify.annoy;
+
+/**
+ * Receives the {@link QueryStats} of every query of an index, see
+ * {@link ANNIndex#setQueryListener(QueryListener)}. Use
+ * {@link QueryHistograms} to aggregate them in memory, or bridge them to a
+ * metrics library, e.g. with Micrometer:
+ *
+ * <pre>{@code
+ * DistributionSummary candidates = registry.summary("annoy.candidates");
+ * Timer traversal = registry.timer("annoy.traversal");
+ * index.setQueryListener(stats -> {
+ *   candidates.record(stats.getCandidates());
+ *   traversal.record(stats.getTraversalNanos(), TimeUnit.NANOSECONDS);
+ * });
+ * }</pre>
+ *
+ * <p>Listeners are called on the querying thread once the query is ranked,
+ * from any number of threads at once, so they must be thread-safe and
+ * quick.
+ */
+@FunctionalInterface
+public interface QueryListener {
+
+  /**
+   * @param stats what the query did, only valid during the call
+   */
+  void onQuery(QueryStats stats);
+}
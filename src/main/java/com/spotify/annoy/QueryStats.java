@@ -0,0 +1,108 @@
+package com.spotify.annoy;
+
+/**
+ * What one query did: the tree nodes it expanded, the items it collected
+ * and where its time went. Filled in for queries run through a
+ * {@link SearchContext} with stats enabled (see
+ * {@link SearchContext#enableStats()}), or on an index with a
+ * {@link QueryListener}.
+ *
+ * <p>A context reuses its stats object for every query, so listeners and
+ * callers must copy what they want to keep.
+ */
+public final class QueryStats {
+
+  int searchK;
+  long splitNodes;
+  long leaves;
+  long items;
+  long duplicates;
+  long filtered;
+  int candidates;
+  long traversalNanos;
+  long rankNanos;
+
+  void reset() {
+    searchK = 0;
+    splitNodes = 0;
+    leaves = 0;
+    items = 0;
+    duplicates = 0;
+    filtered = 0;
+    candidates = 0;
+    traversalNanos = 0;
+    rankNanos = 0;
+  }
+
+  /**
+   * @return number of candidates the query asked for
+   */
+  public int getSearchK() {
+    return searchK;
+  }
+
+  /**
+   * @return number of split nodes expanded, one margin computed each
+   */
+  public long getSplitNodes() {
+    return splitNodes;
+  }
+
+  /**
+   * @return number of leaf child lists expanded
+   */
+  public long getLeaves() {
+    return leaves;
+  }
+
+  /**
+   * @return number of items reached, counting items reached again through
+   *         another tree and items rejected by a filter
+   */
+  public long getItems() {
+    return items;
+  }
+
+  /**
+   * @return number of items reached that already were candidates
+   */
+  public long getDuplicates() {
+    return duplicates;
+  }
+
+  /**
+   * @return number of items rejected by the query's filter
+   */
+  public long getFiltered() {
+    return filtered;
+  }
+
+  /**
+   * @return number of distinct candidates scored
+   */
+  public int getCandidates() {
+    return candidates;
+  }
+
+  /**
+   * @return time spent traversing the trees to collect candidates
+   */
+  public long getTraversalNanos() {
+    return traversalNanos;
+  }
+
+  /**
+   * @return time spent scoring and ranking the candidates
+   */
+  public long getRankNanos() {
+    return rankNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("QueryStats{searchK=%d, splitNodes=%d, leaves=%d, items=%d, "
+                    + "duplicates=%d, filtered=%d, candidates=%d, traversalNanos=%d, rankNanos=%d}",
+            searchK, splitNodes, leaves, items, duplicates, filtered, candidates,
+            traversalNanos, rankNanos);
+  }
+}
@@ -0,0 +1,473 @@
+package com.spotify.annoy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the recall and latency of an {@link ANNIndex} against exact
+ * nearest neighbours, to pick the cheapest searchK meeting a recall target.
+ *
+ * <p>Exact neighbours come from a brute-force scan over the item vectors,
+ * split by item range over the threads of an executor. Each thread scores
+ * blocks of items against all queries while they are in cache, keeping the
+ * best of each query as {@link ANNIndex#getNearestPqEntries} would rank
+ * them. Deleted items are left out, as in queries.
+ *
+ * <p>Approximate queries then run one at a time on the calling thread, so
+ * that latencies are those of a single query. Recall@n is the fraction of
+ * the exact n nearest items found among the n returned, averaged over the
+ * queries.
+ *
+ * <p>Queries may be held-out vectors or the vectors of items in the index.
+ * In the latter case the ids of those items are passed along, and each
+ * query's own item is left out of both its exact and its approximate
+ * neighbours, since finding it says nothing of the index.
+ *
+ * <p>Run as a tool, it prints one CSV line per (nResults, searchK):
+ * <pre>
+ * java -cp annoy.jar com.spotify.annoy.RecallEvaluator \
+ *     index.annoy 128 angular [nQueries [nResults,... [searchK,...]]]
+ * </pre>
+ * Queries are the vectors of 1000 randomly picked items by default, each
+ * left out of its own neighbours, and
+ * searchK defaults to 1, 2, 5, 10, 20, 50 and 100 times the first nResults
+ * times the number of trees.
+ */
+public final class RecallEvaluator {
+
+  private static final int[] SEARCH_K_FACTORS = {1, 2, 5, 10, 20, 50, 100};
+
+  private final ANNIndex index;
+  private final Executor executor;
+  private final int parallelism;
+
+  /**
+   * @param index       index to evaluate
+   * @param executor    executor to run the exact scan on
+   * @param parallelism number of tasks to split the exact scan into
+   */
+  public RecallEvaluator(final ANNIndex index,
+                         final Executor executor,
+                         final int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("parallelism must be positive");
+    }
+    this.index = index;
+    this.executor = executor;
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Create an evaluator splitting the exact scan into as many tasks as the
+   * pool has threads.
+   *
+   * @param index index to evaluate
+   * @param pool  pool to run the exact scan on
+   */
+  public RecallEvaluator(final ANNIndex index, final ForkJoinPool pool) {
+    this(index, pool, pool.getParallelism());
+  }
+
+  /**
+   * Recall and latency of queries for one (nResults, searchK).
+   */
+  public static final class Result {
+
+    private final int nResults;
+    private final int searchK;
+    private final double recall;
+    private final double queriesPerSecond;
+    private final double meanMicros;
+    private final double p50Micros;
+    private final double p99Micros;
+
+    Result(final int nResults, final int searchK, final double recall,
+           final double queriesPerSecond, final double meanMicros,
+           final double p50Micros, final double p99Micros) {
+      this.nResults = nResults;
+      this.searchK = searchK;
+      this.recall = recall;
+      this.queriesPerSecond = queriesPerSecond;
+      this.meanMicros = meanMicros;
+      this.p50Micros = p50Micros;
+      this.p99Micros = p99Micros;
+    }
+
+    public int getNResults() {
+      return nResults;
+    }
+
+    public int getSearchK() {
+      return searchK;
+    }
+
+    /**
+     * @return mean recall@nResults, between 0 and 1
+     */
+    public double getRecall() {
+      return recall;
+    }
+
+    public double getQueriesPerSecond() {
+      return queriesPerSecond;
+    }
+
+    public double getMeanMicros() {
+      return meanMicros;
+    }
+
+    public double getP50Micros() {
+      return p50Micros;
+    }
+
+    public double getP99Micros() {
+      return p99Micros;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT,
+              "Result{nResults=%d, searchK=%d, recall=%.4f, qps=%.1f, mean=%.1fus, p50=%.1fus, p99=%.1fus}",
+              nResults, searchK, recall, queriesPerSecond, meanMicros, p50Micros, p99Micros);
+    }
+  }
+
+  /**
+   * Find the exact nearest items of each query.
+   *
+   * @param queryVectors query points
+   * @param k            number of items to find per query
+   * @return the ids of the k nearest items of each query, in descending
+   *         nearness
+   */
+  public int[][] groundTruth(final float[][] queryVectors, final int k) {
+    return groundTruth(queryVectors, null, k);
+  }
+
+  /**
+   * Find the exact nearest items of each query, other than the item it was
+   * taken from.
+   *
+   * @param queryVectors query points
+   * @param queryItems   item each query was taken from, -1 for a held-out
+   *                     query, or null if all are held out
+   * @param k            number of items to find per query
+   * @return the ids of the k nearest items of each query, in descending
+   *         nearness
+   */
+  public int[][] groundTruth(final float[][] queryVectors, final int[] queryItems, final int k) {
+    checkItems(queryVectors, queryItems);
+    for (float[] queryVector : queryVectors) {
+      if (queryVector.length != index.getDimension()) {
+        throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
+                index.getDimension(), queryVector.length));
+      }
+    }
+    final float[] queryNorms = new float[queryVectors.length];
+    for (int q = 0; q < queryVectors.length; q++)
+      queryNorms[q] = ANNIndex.norm(queryVectors[q]);
+    // one more, in case the query's own item is among them
+    final int kept = (queryItems == null || k == Integer.MAX_VALUE) ? k : k + 1;
+    final int nItems = index.getItemCount();
+    int nTasks = Math.max(1, Math.min(parallelism, nItems));
+
+    List<CompletableFuture<NodeHeap[]>> futures = new ArrayList<>(nTasks);
+    for (int t = 0; t < nTasks; t++) {
+      final int fromItem = (int) ((long) nItems * t / nTasks);
+      final int toItem = (int) ((long) nItems * (t + 1) / nTasks);
+      futures.add(CompletableFuture.supplyAsync(() -> {
+        NodeHeap[] best = new NodeHeap[queryVectors.length];
+        for (int q = 0; q < best.length; q++)
+          best[q] = new NodeHeap(kept);
+        index.scanNearest(queryVectors, queryNorms, best, kept, fromItem, toItem,
+                index.searchContext());
+        return best;
+      }, executor));
+    }
+
+    List<List<ANNIndex.PQEntry>> merged = new ArrayList<>(queryVectors.length);
+    for (int q = 0; q < queryVectors.length; q++)
+      merged.add(new ArrayList<>());
+    for (CompletableFuture<NodeHeap[]> future : futures) {
+      NodeHeap[] best = ParallelSearcher.join(future);
+      for (int q = 0; q < best.length; q++)
+        merged.get(q).addAll(index.drain(best[q]));
+    }
+
+    int[][] truth = new int[queryVectors.length][];
+    for (int q = 0; q < truth.length; q++) {
+      List<ANNIndex.PQEntry> entries = merged.get(q);
+      Collections.sort(entries);
+      entries = withoutItem(entries, (queryItems == null) ? -1 : queryItems[q], k);
+      truth[q] = new int[entries.size()];
+      for (int i = 0; i < truth[q].length; i++)
+        truth[q][i] = (int) entries.get(i).getNodeOffset();
+    }
+    return truth;
+  }
+
+  private static void checkItems(final float[][] queryVectors, final int[] queryItems) {
+    if (queryItems != null && queryItems.length != queryVectors.length) {
+      throw new IllegalArgumentException(String.format("expected %d query items, but got %d",
+              queryVectors.length, queryItems.length));
+    }
+  }
+
+  // the first n entries other than item
+  private static List<ANNIndex.PQEntry> withoutItem(final List<ANNIndex.PQEntry> entries,
+                                                    final int item,
+                                                    final int n) {
+    List<ANNIndex.PQEntry> kept = new ArrayList<>(Math.min(n, entries.size()));
+    for (ANNIndex.PQEntry entry : entries) {
+      if (kept.size() == n)
+        break;
+      if (entry.getNodeOffset() != item)
+        kept.add(entry);
+    }
+    return kept;
+  }
+
+  /**
+   * Run the queries once for a (nResults, searchK) and measure their recall
+   * against the ground truth.
+   *
+   * @param queryVectors query points
+   * @param groundTruth  exact nearest items of each query, at least
+   *                     nResults of them where that many exist
+   * @param nResults     number of items to return per query
+   * @param searchK      number of candidates per query, or -1 for
+   *                     {@code nResults * number of trees}
+   * @return recall and latency of the queries
+   */
+  public Result evaluate(final float[][] queryVectors,
+                         final int[][] groundTruth,
+                         final int nResults,
+                         final int searchK) {
+    return evaluate(queryVectors, null, groundTruth, nResults, searchK);
+  }
+
+  /**
+   * Run the queries once for a (nResults, searchK) and measure their recall
+   * against the ground truth, leaving out the item each query was taken
+   * from.
+   *
+   * @param queryVectors query points
+   * @param queryItems   item each query was taken from, -1 for a held-out
+   *                     query, or null if all are held out
+   * @param groundTruth  exact nearest items of each query other than its
+   *                     own, at least nResults of them where that many exist
+   * @param nResults     number of items to return per query
+   * @param searchK      number of candidates per query, or -1 for
+   *                     {@code nResults * number of trees}
+   * @return recall and latency of the queries
+   */
+  public Result evaluate(final float[][] queryVectors,
+                         final int[] queryItems,
+                         final int[][] groundTruth,
+                         final int nResults,
+                         final int searchK) {
+    checkItems(queryVectors, queryItems);
+    int nQueries = queryVectors.length;
+    SearchContext ctx = index.newSearchContext();
+    long[] nanos = new long[nQueries];
+    double recall = 0;
+    long total = 0;
+    for (int q = 0; q < nQueries; q++) {
+      int self = (queryItems == null) ? -1 : queryItems[q];
+      // ask for one more, in case the query's own item is among them
+      int asked = (self == -1 || nResults == Integer.MAX_VALUE) ? nResults : nResults + 1;
+      long start = System.nanoTime();
+      List<ANNIndex.PQEntry> result = index.getNearestPqEntries(queryVectors[q], asked, searchK, ctx);
+      nanos[q] = System.nanoTime() - start;
+      if (self != -1)
+        result = withoutItem(result, self, nResults);
+      total += nanos[q];
+      recall += recall(groundTruth[q], nResults, result);
+    }
+    Arrays.sort(nanos);
+    return new Result(nResults, (searchK == -1) ? nResults * index.getRootCount() : searchK,
+            (nQueries == 0) ? 0 : recall / nQueries,
+            (total == 0) ? 0 : nQueries * 1e9 / total,
+            (nQueries == 0) ? 0 : total / 1e3 / nQueries,
+            percentile(nanos, 0.50) / 1e3,
+            percentile(nanos, 0.99) / 1e3);
+  }
+
+  private static double recall(final int[] truth, final int nResults,
+                               final List<ANNIndex.PQEntry> result) {
+    int n = Math.min(nResults, truth.length);
+    if (n == 0)
+      return 1;
+    IntHashSet exact = new IntHashSet(n);
+    for (int i = 0; i < n; i++)
+      exact.add(truth[i]);
+    int found = 0;
+    for (ANNIndex.PQEntry entry : result)
+      found += exact.contains((int) entry.getNodeOffset()) ? 1 : 0;
+    return (double) found / n;
+  }
+
+  private static double percentile(final long[] sorted, final double p) {
+    if (sorted.length == 0)
+      return 0;
+    return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+  }
+
+  /**
+   * Compute the ground truth once and evaluate every (nResults, searchK)
+   * pair, after a first pass over the queries to warm up the index and the
+   * JIT.
+   *
+   * @param queryVectors query points
+   * @param nResults     numbers of items to return per query
+   * @param searchKs     numbers of candidates per query, -1 standing for
+   *                     {@code nResults * number of trees}
+   * @return one result per pair, by nResults then searchK
+   */
+  public List<Result> sweep(final float[][] queryVectors,
+                            final int[] nResults,
+                            final int[] searchKs) {
+    return sweep(queryVectors, null, nResults, searchKs);
+  }
+
+  /**
+   * Compute the ground truth once and evaluate every (nResults, searchK)
+   * pair, leaving out the item each query was taken from.
+   *
+   * @param queryVectors query points
+   * @param queryItems   item each query was taken from, -1 for a held-out
+   *                     query, or null if all are held out
+   * @param nResults     numbers of items to return per query
+   * @param searchKs     numbers of candidates per query, -1 standing for
+   *                     {@code nResults * number of trees}
+   * @return one result per pair, by nResults then searchK
+   */
+  public List<Result> sweep(final float[][] queryVectors,
+                            final int[] queryItems,
+                            final int[] nResults,
+                            final int[] searchKs) {
+    int maxResults = 0;
+    for (int n : nResults)
+      maxResults = Math.max(maxResults, n);
+    int[][] truth = groundTruth(queryVectors, queryItems, maxResults);
+    evaluate(queryVectors, queryItems, truth, maxResults, -1);
+
+    List<Result> results = new ArrayList<>(nResults.length * searchKs.length);
+    for (int n : nResults) {
+      for (int searchK : searchKs)
+        results.add(evaluate(queryVectors, queryItems, truth, n, searchK));
+    }
+    return results;
+  }
+
+  /**
+   * Pick distinct random items, leaving out deleted ones. Items are drawn
+   * at random until enough are found or all have been drawn, so the cost
+   * follows the number of items picked rather than the size of the index.
+   *
+   * @param index    index to pick from
+   * @param nQueries number of items to pick, at most the number of items
+   * @param seed     seed of the random choice
+   * @return ids of the picked items, in the order they were drawn
+   */
+  public static int[] sampleItems(final ANNIndex index, final int nQueries, final long seed) {
+    int nItems = index.getItemCount();
+    Random random = new Random(seed);
+    IntHashSet drawn = new IntHashSet(Math.min(nQueries, nItems));
+    int[] items = new int[Math.min(nQueries, nItems)];
+    int nPicked = 0;
+    while (nPicked < items.length && drawn.size() < nItems) {
+      int item = random.nextInt(nItems);
+      if (drawn.add(item) && !isZero(index.getItemVector(item)))
+        items[nPicked++] = item;
+    }
+    return Arrays.copyOf(items, nPicked);
+  }
+
+  /**
+   * Pick the vectors of distinct random items, leaving out deleted ones.
+   * These items are in the index: pass the ids from
+   * {@link #sampleItems(ANNIndex, int, long)} along with them to leave each
+   * query's own item out of the evaluation.
+   *
+   * @param index    index to pick from
+   * @param nQueries number of vectors to pick, at most the number of items
+   * @param seed     seed of the random choice
+   * @return item vectors to use as queries
+   */
+  public static float[][] sampleQueries(final ANNIndex index, final int nQueries, final long seed) {
+    return itemVectors(index, sampleItems(index, nQueries, seed));
+  }
+
+  /**
+   * @param index index holding the items
+   * @param items item ids
+   * @return the vector of each item
+   */
+  public static float[][] itemVectors(final ANNIndex index, final int[] items) {
+    float[][] vectors = new float[items.length][];
+    for (int i = 0; i < items.length; i++)
+      vectors[i] = index.getItemVector(items[i]);
+    return vectors;
+  }
+
+  private static boolean isZero(final float[] v) {
+    for (float x : v) {
+      if (x != 0)
+        return false;
+    }
+    return true;
+  }
+
+  private static int[] parseInts(final String list) {
+    String[] fields = list.split(",");
+    int[] values = new int[fields.length];
+    for (int i = 0; i < fields.length; i++)
+      values[i] = Integer.parseInt(fields[i].trim());
+    return values;
+  }
+
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println("usage: RecallEvaluator <index> <dimension> <type> "
+              + "[nQueries [nResults,... [searchK,...]]]");
+      System.exit(1);
+    }
+    String indexPath = args[0];
+    int dimension = Integer.parseInt(args[1]);
+    IndexType indexType = IndexType.valueOf(args[2].toUpperCase(Locale.ROOT));
+    int nQueries = (args.length > 3) ? Integer.parseInt(args[3]) : 1000;
+    int[] nResults = (args.length > 4) ? parseInts(args[4]) : new int[] {10};
+
+    ANNIndex index = new ANNIndex(dimension, indexPath, indexType);
+    int[] searchKs;
+    if (args.length > 5) {
+      searchKs = parseInts(args[5]);
+    } else {
+      int defaultK = nResults[0] * index.getRootCount();
+      searchKs = new int[SEARCH_K_FACTORS.length];
+      for (int i = 0; i < searchKs.length; i++)
+        searchKs[i] = SEARCH_K_FACTORS[i] * defaultK;
+    }
+
+    int[] items = sampleItems(index, nQueries, 42);
+    float[][] queries = itemVectors(index, items);
+    RecallEvaluator evaluator = new RecallEvaluator(index, ForkJoinPool.commonPool());
+    System.out.println("type,nResults,searchK,recall,qps,meanMicros,p50Micros,p99Micros");
+    for (Result result : evaluator.sweep(queries, items, nResults, searchKs)) {
+      System.out.printf(Locale.ROOT, "%s,%d,%d,%.4f,%.1f,%.1f,%.1f,%.1f%n",
+              indexType.toString().toLowerCase(Locale.ROOT), result.getNResults(),
+              result.getSearchK(), result.getRecall(), result.getQueriesPerSecond(),
+              result.getMeanMicros(), result.getP50Micros(), result.getP99Micros());
+    }
+    index.close();
+  }
+}
@@ -0,0 +1,82 @@
+package com.spotify.annoy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plain Java loops; the fallback when no vectorized kernel is available.
+ */
+final class ScalarDistanceKernel implements DistanceKernel {
+
+  // components summed between two checks of an early-abandoned distance
+  private static final int ABANDON_BLOCK = 16;
+
+  @Override
+  public float dot(final ByteBuffer buffer, final int offset, final float[] q) {
+    float d = 0;
+    for (int i = 0; i < q.length; i++)
+      d += buffer.getFloat(offset + i * 4) * q[i];
+    return d;
+  }
+
+  @Override
+  public float squaredNorm(final ByteBuffer buffer, final int offset, final int dimension) {
+    float n = 0;
+    for (int i = 0; i < dimension; i++) {
+      float x = buffer.getFloat(offset + i * 4);
+      n += x * x;
+    }
+    return n;
+  }
+
+  @Override
+  public float squaredDistance(final ByteBuffer buffer, final int offset, final float[] q) {
+    float n = 0;
+    for (int i = 0; i < q.length; i++) {
+      float x = buffer.getFloat(offset + i * 4) - q[i];
+      n += x * x;
+    }
+    return n;
+  }
+
+  @Override
+  public float squaredDistance(final ByteBuffer buffer, final int offset,
+                               final float[] q, final float limit) {
+    float n = 0;
+    for (int i = 0; i < q.length; ) {
+      int end = Math.min(q.length, i + ABANDON_BLOCK);
+      for (; i < end; i++) {
+        float x = buffer.getFloat(offset + i * 4) - q[i];
+        n += x * x;
+      }
+      if (n > limit)
+        return n;
+    }
+    return n;
+  }
+
+  @Override
+  public float dot(final float[] u, final float[] v) {
+    float d = 0;
+    for (int i = 0; i < u.length; i++)
+      d += u[i] * v[i];
+    return d;
+  }
+
+  @Override
+  public float squaredNorm(final float[] u) {
+    float n = 0;
+    for (float x : u)
+      n += x * x;
+    return n;
+  }
+
+  @Override
+  public float squaredDistance(final float[] u, final float[] v) {
+    float n = 0;
+    for (int i = 0; i < u.length; i++) {
+      float x = u[i] - v[i];
+      n += x * x;
+    }
+    return n;
+  }
+}
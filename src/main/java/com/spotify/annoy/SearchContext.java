@@ -0,0 +1,112 @@
+package com.spotify.annoy;
+
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
+
+/**
+ * Reusable scratch state for {@link ANNIndex} queries: the traversal queue,
+ * the candidate set and the re-ranking buffers. Once a context has grown to
+ * the working size of a query, running further queries through it does not
+ * allocate anything besides the returned results.
+ *
+ * <p>A context is not thread-safe: give each thread its own. It is not tied
+ * to a particular index and may be reused across indexes.
+ */
+public final class SearchContext {
+
+  final NodeHeap queue = new NodeHeap(64);
+  final IntHashSet candidates = new IntHashSet(256);
+  final NodeHeap ranked = new NodeHeap(256);
+
+  // set while running the queries of a batch
+  BatchMargins batchMargins;
+
+  // set while running a filtered query: items it rejects are not candidates
+  IntPredicate filter;
+
+  // set while running an asynchronous query: the traversal stops early,
+  // keeping the candidates collected so far, once past the deadline (a
+  // System.nanoTime() value) or once the query's future is cancelled
+  boolean stoppable;
+  boolean hasDeadline;
+  long deadline;
+  Future<?> future;
+
+  // set while recording the stats of a query
+  QueryStats recording;
+  private boolean statsEnabled;
+  final QueryStats stats = new QueryStats();
+
+  // quantized queries: the query folded with the int8 scales, and the
+  // candidates to re-rank exactly
+  private float[] quantizedQuery = new float[0];
+  private int[] rerank = new int[0];
+
+  // hamming queries: the query packed into words like the node vectors
+  private long[] packedQuery = new long[0];
+
+  // exact scans: which items of a block are left out, and the arrays a
+  // single query is scanned through
+  private boolean[] scanSkipped = new boolean[0];
+  final float[][] scanQuery = new float[1][];
+  final float[] scanNorm = new float[1];
+  final NodeHeap[] scanBest = new NodeHeap[1];
+
+  float[] quantizedQuery(final int size) {
+    if (quantizedQuery.length < size)
+      quantizedQuery = new float[size];
+    return quantizedQuery;
+  }
+
+  int[] rerank(final int size) {
+    if (rerank.length < size)
+      rerank = new int[size];
+    return rerank;
+  }
+
+  long[] packedQuery(final int words) {
+    if (packedQuery.length < words)
+      packedQuery = new long[words];
+    return packedQuery;
+  }
+
+  boolean[] scanSkipped(final int size) {
+    if (scanSkipped.length < size)
+      scanSkipped = new boolean[size];
+    return scanSkipped;
+  }
+
+  boolean shouldStop() {
+    return (hasDeadline && System.nanoTime() - deadline >= 0)
+            || (future != null && future.isCancelled());
+  }
+
+  /**
+   * Record the stats of every query run through this context from now on,
+   * see {@link #getStats()}.
+   */
+  public void enableStats() {
+    statsEnabled = true;
+  }
+
+  boolean isStatsEnabled() {
+    return statsEnabled;
+  }
+
+  /**
+   * @return stats of the last query run through this context, if stats are
+   *         enabled here or the index has a {@link QueryListener}
+   */
+  public QueryStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Resets the per-query state. Buffers are kept for the next query.
+   */
+  void reset() {
+    queue.clear();
+    candidates.clear();
+    ranked.clear();
+  }
+}
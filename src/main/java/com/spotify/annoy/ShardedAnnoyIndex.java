@@ -0,0 +1,309 @@
+package com.spotify.annoy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link AnnoyIndex} over several {@link ANNIndex} shards of one
+ * catalog, queried concurrently and merged into a single top-k. Shards must
+ * share a dimension and index type. Global item ids concatenate the shards:
+ * item i of shard s is {@code getShardOffset(s) + i}.
+ *
+ * <p>searchK is a budget for the whole query, split between shards in two
+ * rounds. Each shard first collects half of its share, proportional to its
+ * number of items, topped up to nResults as far as half of the budget
+ * allows, so the first round never spends more than the budget. The rest
+ * of the budget then goes only to the shards
+ * holding some of the merged top-k, in proportion to how many, and those
+ * resume their traversal where it stopped. Shards that can't compete stop
+ * early, so a fleet of shards costs about as much as one index of the same
+ * size.
+ *
+ * <p>A sharded index is thread-safe. Each calling thread keeps one
+ * {@link SearchContext} per shard, handed to the tasks of its queries.
+ */
+public final class ShardedAnnoyIndex implements AnnoyIndex {
+
+  private final List<ANNIndex> shards;
+  private final int[] offsets;
+  private final int totalRoots;
+  private final int dimension;
+  private final Executor executor;
+  private final ThreadLocal<SearchContext[]> contexts;
+
+  /**
+   * @param shards   indexes to query, in global id order
+   * @param executor executor running the shard queries
+   */
+  public ShardedAnnoyIndex(final List<ANNIndex> shards, final Executor executor) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("No shards");
+    }
+    ANNIndex first = shards.get(0);
+    this.shards = new ArrayList<>(shards);
+    this.offsets = new int[shards.size() + 1];
+    int roots = 0;
+    long items = 0;
+    for (int s = 0; s < shards.size(); s++) {
+      ANNIndex shard = shards.get(s);
+      if (shard.getDimension() != first.getDimension()
+              || shard.getIndexType() != first.getIndexType()) {
+        throw new IllegalArgumentException(String.format(
+                "shard %d is a %s index of dimension %d, shard 0 a %s index of dimension %d",
+                s, shard.getIndexType(), shard.getDimension(),
+                first.getIndexType(), first.getDimension()));
+      }
+      offsets[s] = (int) items;
+      items += shard.getItemCount();
+      roots += shard.getRootCount();
+    }
+    if (items > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("too many items for int ids: " + items);
+    }
+    offsets[shards.size()] = (int) items;
+    this.totalRoots = roots;
+    this.dimension = first.getDimension();
+    this.executor = executor;
+    this.contexts = ThreadLocal.withInitial(() -> {
+      SearchContext[] ctxs = new SearchContext[this.shards.size()];
+      for (int s = 0; s < ctxs.length; s++)
+        ctxs[s] = new SearchContext();
+      return ctxs;
+    });
+  }
+
+  public int getShardCount() {
+    return shards.size();
+  }
+
+  /**
+   * @param shard shard number
+   * @return global id of the first item of the shard
+   */
+  public int getShardOffset(final int shard) {
+    return offsets[shard];
+  }
+
+  /**
+   * @param itemIndex global item id
+   * @return shard holding the item
+   */
+  public int getShard(final int itemIndex) {
+    if (itemIndex < 0 || itemIndex >= offsets[shards.size()]) {
+      throw new IndexOutOfBoundsException("no item " + itemIndex);
+    }
+    // last shard starting at or before the item, skipping empty shards
+    int s = Arrays.binarySearch(offsets, 0, shards.size(), itemIndex);
+    if (s < 0)
+      return -s - 2;
+    while (s + 1 < shards.size() && offsets[s + 1] == itemIndex)
+      s++;
+    return s;
+  }
+
+  @Override
+  @Deprecated
+  public void getNodeVector(final long nodeOffset, final float[] v) {
+    throw new UnsupportedOperationException("node offsets are local to a shard");
+  }
+
+  @Override
+  @Deprecated
+  public void getItemVector(final int itemIndex, final float[] v) {
+    int s = getShard(itemIndex);
+    shards.get(s).getItemVector(itemIndex - offsets[s], v);
+  }
+
+  @Override
+  public float[] getItemVector(final int itemIndex) {
+    int s = getShard(itemIndex);
+    return shards.get(s).getItemVector(itemIndex - offsets[s]);
+  }
+
+  @Override
+  public List<Integer> getNearest(final float[] queryVector, final int nResults) {
+    return getNearest(queryVector, nResults, -1);
+  }
+
+  public List<Integer> getNearest(final float[] queryVector,
+                                  final int nResults,
+                                  final int searchK) {
+    List<ANNIndex.PQEntry> entries = getNearestPqEntries(queryVector, nResults, searchK);
+    List<Integer> result = new ArrayList<>(entries.size());
+    for (ANNIndex.PQEntry entry : entries)
+      result.add((int) entry.getNodeOffset());
+    return result;
+  }
+
+  @Override
+  public List<ANNIndex.PQEntry> getNearestPqEntries(final float[] queryVector,
+                                                    final int nResults) {
+    return getNearestPqEntries(queryVector, nResults, -1);
+  }
+
+  /**
+   * Look up nearest PqEntries across all shards.
+   *
+   * @param queryVector find nearest neighbors for this query point
+   * @param nResults    number of items to return
+   * @param searchK     number of candidates to collect over all shards, or
+   *                    -1 for {@code nResults * number of trees of all shards}
+   * @return list of PqEntries with global item ids, in descending nearness
+   *         to query point
+   */
+  public List<ANNIndex.PQEntry> getNearestPqEntries(final float[] queryVector,
+                                                    final int nResults,
+                                                    final int searchK) {
+    if (queryVector.length != dimension) {
+      throw new RuntimeException(String.format("queryVector must be size of %d, but was %d",
+              dimension, queryVector.length));
+    }
+    final int nShards = shards.size();
+    final long budget = (searchK == -1) ? (long) totalRoots * nResults : searchK;
+    final float queryNorm = ANNIndex.norm(queryVector);
+    final SearchContext[] ctxs = contexts.get();
+    final long totalItems = Math.max(1, offsets[nShards]);
+
+    // first round: half of each shard's share, topped up to nResults out
+    // of the other half
+    final long floor = Math.min(nResults, budget / 2 / nShards);
+    long[] targets = new long[nShards];
+    for (int s = 0; s < nShards; s++) {
+      ctxs[s].reset();
+      long share = budget * (offsets[s + 1] - offsets[s]) / totalItems;
+      targets[s] = Math.max(floor, share / 2);
+    }
+    List<List<ANNIndex.PQEntry>> local = probe(queryVector, queryNorm, nResults, targets, true, ctxs);
+    int[] contributions = new int[nShards];
+    List<ANNIndex.PQEntry> merged = merge(local, nResults, contributions);
+
+    // second round: the rest to the shards in the top-k, if they have more
+    long spent = 0;
+    int inPlay = 0;
+    for (int s = 0; s < nShards; s++) {
+      spent += ctxs[s].candidates.size();
+      if (ctxs[s].queue.isEmpty() || (merged.size() == nResults && contributions[s] == 0)) {
+        targets[s] = -1;
+      } else {
+        // short of results, every shard with trees left competes
+        contributions[s] = Math.max(contributions[s], (merged.size() < nResults) ? 1 : 0);
+        inPlay += contributions[s];
+      }
+    }
+    long rest = budget - spent;
+    if (rest <= 0 || inPlay == 0)
+      return merged;
+    for (int s = 0; s < nShards; s++) {
+      if (targets[s] >= 0)
+        targets[s] = ctxs[s].candidates.size() + rest * contributions[s] / inPlay;
+    }
+    List<List<ANNIndex.PQEntry>> resumed = probe(queryVector, queryNorm, nResults, targets, false, ctxs);
+    for (int s = 0; s < nShards; s++) {
+      if (resumed.get(s) != null)
+        local.set(s, resumed.get(s));
+    }
+    return merge(local, nResults, contributions);
+  }
+
+  /**
+   * Collect candidates in every shard with a non-negative target, on the
+   * executor, and rank them.
+   *
+   * @param start whether to push the roots, rather than resume the traversal
+   * @return top nResults of each shard with local ids, null for shards
+   *         without a target
+   */
+  private List<List<ANNIndex.PQEntry>> probe(final float[] queryVector,
+                                             final float queryNorm,
+                                             final int nResults,
+                                             final long[] targets,
+                                             final boolean start,
+                                             final SearchContext[] ctxs) {
+    final int nShards = shards.size();
+    List<CompletableFuture<List<ANNIndex.PQEntry>>> futures = new ArrayList<>(nShards);
+    List<CompletableFuture<List<ANNIndex.PQEntry>>> running = new ArrayList<>(nShards);
+    try {
+      for (int s = 0; s < nShards; s++) {
+        if (targets[s] < 0) {
+          futures.add(null);
+          continue;
+        }
+        final ANNIndex shard = shards.get(s);
+        final SearchContext ctx = ctxs[s];
+        final int target = (int) Math.min(targets[s], Integer.MAX_VALUE);
+        final int toRoot = start ? shard.getRootCount() : 0;
+        CompletableFuture<List<ANNIndex.PQEntry>> future = CompletableFuture.supplyAsync(() -> {
+          shard.collectCandidates(queryVector, queryNorm, 0, toRoot, target, ctx);
+          return shard.rank(queryVector, queryNorm, ctx.candidates, nResults, ctx);
+        }, executor);
+        futures.add(future);
+        running.add(future);
+      }
+    } finally {
+      // the tasks use the caller's contexts: none may outlive the query,
+      // even when another failed or could not be submitted
+      CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0]))
+              .exceptionally(e -> null).join();
+    }
+    List<List<ANNIndex.PQEntry>> results = new ArrayList<>(nShards);
+    for (CompletableFuture<List<ANNIndex.PQEntry>> future : futures)
+      results.add((future == null) ? null : ParallelSearcher.join(future));
+    return results;
+  }
+
+  /**
+   * Merge the sorted results of the shards into the global top nResults,
+   * with a heap holding the best remaining entry of each shard.
+   *
+   * @param contributions filled with the number of entries of each shard
+   *                      making it into the result
+   */
+  private List<ANNIndex.PQEntry> merge(final List<List<ANNIndex.PQEntry>> local,
+                                       final int nResults,
+                                       final int[] contributions) {
+    Arrays.fill(contributions, 0);
+    NodeHeap heads = new NodeHeap(Math.max(1, local.size()));
+    int[] cursors = new int[local.size()];
+    for (int s = 0; s < local.size(); s++) {
+      if (!local.get(s).isEmpty())
+        heads.push(local.get(s).get(0).getMargin(), s);
+    }
+    List<ANNIndex.PQEntry> result = new ArrayList<>(Math.max(0, nResults));
+    while (result.size() < nResults && !heads.isEmpty()) {
+      int s = (int) heads.pop();
+      List<ANNIndex.PQEntry> entries = local.get(s);
+      ANNIndex.PQEntry entry = entries.get(cursors[s]++);
+      result.add(shards.get(s).new PQEntry(entry.getMargin(), offsets[s] + entry.getNodeOffset()));
+      contributions[s]++;
+      if (cursors[s] < entries.size())
+        heads.push(entries.get(cursors[s]).getMargin(), s);
+    }
+    return result;
+  }
+
+  /**
+   * Close every shard.
+   *
+   * @throws IOException if a shard can't be closed, after trying them all
+   */
+  @Override
+  public void close() throws IOException {
+    IOException failure = null;
+    for (ANNIndex shard : shards) {
+      try {
+        shard.close();
+      } catch (IOException e) {
+        if (failure == null)
+          failure = e;
+        else
+          failure.addSuppressed(e);
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+}
@@ -0,0 +1,54 @@
+package com.spotify.annoy;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handle on a background warmup of an {@link ANNIndex}, see
+ * {@link ANNIndex#warmup()} and {@link ANNIndex#warmupUpperLevels(int)}.
+ * A readiness probe can poll {@link #progress()} or wait on
+ * {@link #completion()}; cancelling the completion future stops the warmup.
+ */
+public final class Warmup {
+
+  private final long total;
+  private final AtomicLong done = new AtomicLong();
+  private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+  Warmup(final long total) {
+    this.total = Math.max(total, 1);
+  }
+
+  /**
+   * @return share of the warmup done so far, between 0 and 1
+   */
+  public double progress() {
+    if (completion.isDone())
+      return 1.0;
+    return Math.min(1.0, (double) done.get() / total);
+  }
+
+  /**
+   * @return future completed when the warmup finishes, or completed
+   *         exceptionally if it fails
+   */
+  public CompletableFuture<Void> completion() {
+    return completion;
+  }
+
+  public boolean isDone() {
+    return completion.isDone();
+  }
+
+  void advance(final long amount) {
+    done.addAndGet(amount);
+  }
+
+  void complete() {
+    completion.complete(null);
+  }
+
+  void fail(final Throwable t) {
+    completion.completeExceptionally(t);
+  }
+}
@@ -0,0 +1,145 @@
+package com.spotify.annoy;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD kernel on the incubating Vector API of JDK 17, loading node vectors
+ * straight from the mapped buffers. Only compiled when building on JDK 17+
+ * and only picked by {@link DistanceKernels} when it links at runtime.
+ */
+final class VectorizedDistanceKernel implements DistanceKernel {
+
+  private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+  private static final int LANES = SPECIES.length();
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+  // components summed between two checks of an early-abandoned distance,
+  // a multiple of LANES
+  private static final int ABANDON_BLOCK = Math.max(64, LANES);
+
+  @Override
+  public float dot(final ByteBuffer buffer, final int offset, final float[] q) {
+    int bound = SPECIES.loopBound(q.length);
+    FloatVector acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += LANES) {
+      FloatVector x = FloatVector.fromByteBuffer(SPECIES, buffer, offset + i * 4, ORDER);
+      acc = x.fma(FloatVector.fromArray(SPECIES, q, i), acc);
+    }
+    float d = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < q.length; i++)
+      d += buffer.getFloat(offset + i * 4) * q[i];
+    return d;
+  }
+
+  @Override
+  public float squaredNorm(final ByteBuffer buffer, final int offset, final int dimension) {
+    int bound = SPECIES.loopBound(dimension);
+    FloatVector acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += LANES) {
+      FloatVector x = FloatVector.fromByteBuffer(SPECIES, buffer, offset + i * 4, ORDER);
+      acc = x.fma(x, acc);
+    }
+    float n = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < dimension; i++) {
+      float x = buffer.getFloat(offset + i * 4);
+      n += x * x;
+    }
+    return n;
+  }
+
+  @Override
+  public float squaredDistance(final ByteBuffer buffer, final int offset, final float[] q) {
+    int bound = SPECIES.loopBound(q.length);
+    FloatVector acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += LANES) {
+      FloatVector x = FloatVector.fromByteBuffer(SPECIES, buffer, offset + i * 4, ORDER)
+              .sub(FloatVector.fromArray(SPECIES, q, i));
+      acc = x.fma(x, acc);
+    }
+    float n = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < q.length; i++) {
+      float x = buffer.getFloat(offset + i * 4) - q[i];
+      n += x * x;
+    }
+    return n;
+  }
+
+  @Override
+  public float squaredDistance(final ByteBuffer buffer, final int offset,
+                               final float[] q, final float limit) {
+    int bound = SPECIES.loopBound(q.length);
+    FloatVector acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += LANES) {
+      FloatVector x = FloatVector.fromByteBuffer(SPECIES, buffer, offset + i * 4, ORDER)
+              .sub(FloatVector.fromArray(SPECIES, q, i));
+      acc = x.fma(x, acc);
+      if ((i + LANES) % ABANDON_BLOCK == 0) {
+        float partial = acc.reduceLanes(VectorOperators.ADD);
+        if (partial > limit)
+          return partial;
+      }
+    }
+    float n = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < q.length; i++) {
+      float x = buffer.getFloat(offset + i * 4) - q[i];
+      n += x * x;
+    }
+    return n;
+  }
+
+  @Override
+  public float dot(final float[] u, final float[] v) {
+    int bound = SPECIES.loopBound(u.length);
+    FloatVector acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += LANES) {
+      FloatVector x = FloatVector.fromArray(SPECIES, u, i);
+      acc = x.fma(FloatVector.fromArray(SPECIES, v, i), acc);
+    }
+    float d = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < u.length; i++)
+      d += u[i] * v[i];
+    return d;
+  }
+
+  @Override
+  public float squaredNorm(final float[] u) {
+    int bound = SPECIES.loopBound(u.length);
+    FloatVector acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += LANES) {
+      FloatVector x = FloatVector.fromArray(SPECIES, u, i);
+      acc = x.fma(x, acc);
+    }
+    float n = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < u.length; i++)
+      n += u[i] * u[i];
+    return n;
+  }
+
+  @Override
+  public float squaredDistance(final float[] u, final float[] v) {
+    int bound = SPECIES.loopBound(u.length);
+    FloatVector acc = FloatVector.zero(SPECIES);
+    int i = 0;
+    for (; i < bound; i += LANES) {
+      FloatVector x = FloatVector.fromArray(SPECIES, u, i)
+              .sub(FloatVector.fromArray(SPECIES, v, i));
+      acc = x.fma(x, acc);
+    }
+    float n = acc.reduceLanes(VectorOperators.ADD);
+    for (; i < u.length; i++) {
+      float x = u[i] - v[i];
+      n += x * x;
+    }
+    return n;
+  }
+}
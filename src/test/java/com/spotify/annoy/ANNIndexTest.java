@@ -1,22 +1,48 @@
 package com.spotify.annoy;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+import java.util.stream.Collectors;
+
+import static com.spotify.annoy.TestIndexes.ANNOY_TYPES;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(JUnit4.class)
 public class ANNIndexTest {
 
   private static final String DIR = "src/test/resources";
 
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
   private void testIndex(IndexType type, int blockSize, boolean verbose)
           throws IOException {
 
@@ -125,6 +151,728 @@ public class ANNIndexTest {
     testIndex(IndexType.EUCLIDEAN, 1, false);
   }
 
+  @Test
+  /**
+   Make sure that small power-of-two blocks, where most nodes straddle a
+   block boundary, give exactly the same results as a single block.
+   */
+  public void testStraddlingBlocks() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      String filename = String.format("%s/points.%s.annoy", DIR, type.toString().toLowerCase());
+      ANNIndex single = new ANNIndex(8, filename, type);
+      for (int blockSize : new int[] {1, 3, 100}) {
+        ANNIndex blocks = new ANNIndex(8, filename, type, blockSize);
+        for (int item = 0; item < 100; item++) {
+          assertArrayEquals(single.getItemVector(item), blocks.getItemVector(item), 0f);
+          float[] u = single.getItemVector(item);
+          assertEquals(single.getNearest(u, 10), blocks.getNearest(u, 10));
+        }
+        blocks.close();
+      }
+      single.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure that indexes copied into direct or heap buffers give exactly the
+   same results as memory-mapped ones.
+   */
+  public void testLoadModes() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      String filename = String.format("%s/points.%s.annoy", DIR, type.toString().toLowerCase());
+      ANNIndex mapped = new ANNIndex(8, filename, type);
+      for (LoadMode mode : new LoadMode[] {LoadMode.DIRECT, LoadMode.HEAP}) {
+        for (int blockSize : new int[] {0, 3}) {
+          ANNIndex copied = new ANNIndex(8, filename, type, blockSize, mode);
+          assertEquals(1.0, copied.residentFraction(), 0.0);
+          for (int item = 0; item < 100; item++) {
+            float[] u = mapped.getItemVector(item);
+            assertArrayEquals(u, copied.getItemVector(item), 0f);
+            assertEquals(mapped.getNearest(u, 10), copied.getNearest(u, 10));
+          }
+          copied.close();
+        }
+      }
+      mapped.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure that reusing a search context across queries gives the same
+   results as running every query with a fresh context.
+   */
+  public void testReusedSearchContext() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      String ts = type.toString().toLowerCase();
+      ANNIndex index = new ANNIndex(8,
+              String.format("%s/points.%s.annoy", DIR, ts), type);
+      SearchContext ctx = index.newSearchContext();
+      for (int item = 0; item < 100; item++) {
+        float[] u = index.getItemVector(item);
+        List<ANNIndex.PQEntry> expected =
+                index.getNearestPqEntries(u, 10, 100, index.newSearchContext());
+        List<ANNIndex.PQEntry> retrieved = index.getNearestPqEntries(u, 10, 100, ctx);
+        assertEquals(expected.size(), retrieved.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.get(i).getNodeOffset(), retrieved.get(i).getNodeOffset());
+          assertEquals(expected.get(i).getMargin(), retrieved.get(i).getMargin(), 0f);
+        }
+      }
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure that batch queries return the same neighbors as running each
+   query on its own, for both the nested and the flat query layouts, and
+   for batches too small to share any levels below the roots.
+   */
+  public void testBatch() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      String ts = type.toString().toLowerCase();
+      ANNIndex index = new ANNIndex(8,
+              String.format("%s/points.%s.annoy", DIR, ts), type);
+      float[][] queries = new float[50][];
+      float[] matrix = new float[50 * 8];
+      for (int q = 0; q < queries.length; q++) {
+        queries[q] = index.getItemVector(q * 7);
+        System.arraycopy(queries[q], 0, matrix, q * 8, 8);
+      }
+      List<List<Integer>> batch = index.getNearestBatch(queries, 10);
+      List<List<Integer>> flatBatch = index.getNearestBatch(matrix, queries.length, 10);
+      for (int q = 0; q < queries.length; q++) {
+        List<Integer> expected = index.getNearest(queries[q], 10);
+        assertEquals(expected, batch.get(q));
+        assertEquals(expected, flatBatch.get(q));
+      }
+      assertEquals(batch.subList(0, 3), index.getNearestBatch(Arrays.copyOf(queries, 3), 10));
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure filtered queries only return accepted items, still return
+   nResults of them when few items are accepted, and match unfiltered
+   queries when everything is accepted.
+   */
+  public void testFilter() throws IOException {
+    BitSet allowed = new BitSet();
+    for (int item = 0; item < 5000; item += 20)
+      allowed.set(item);
+    for (IndexType type : ANNOY_TYPES) {
+      String ts = type.toString().toLowerCase();
+      ANNIndex index = new ANNIndex(8,
+              String.format("%s/points.%s.annoy", DIR, ts), type);
+      for (boolean quantized : new boolean[] {false, true}) {
+        if (quantized)
+          index.enableQuantization(Quantization.FP16);
+        for (int item = 0; item < 100; item++) {
+          float[] u = index.getItemVector(item);
+          List<Integer> filtered = index.getNearest(u, 10, -1, allowed::get);
+          assertEquals(10, filtered.size());
+          for (int nn : filtered)
+            assertTrue(allowed.get(nn));
+          assertEquals(index.getNearest(u, 10), index.getNearest(u, 10, -1, nn -> true));
+        }
+      }
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure exact scans return what exhaustive tree searches return, with
+   and without a filter, and that planned queries scan only when the filter
+   is selective enough.
+   */
+  public void testExactSearch() throws IOException {
+    BitSet allowed = new BitSet();
+    for (int item = 0; item < 5000; item += 500)
+      allowed.set(item);
+    for (IndexType type : ANNOY_TYPES) {
+      String ts = type.toString().toLowerCase();
+      ANNIndex index = new ANNIndex(8,
+              String.format("%s/points.%s.annoy", DIR, ts), type);
+      for (int item = 0; item < 100; item += 7) {
+        float[] u = index.getItemVector(item);
+        List<ANNIndex.PQEntry> exact = index.getExactNearestPqEntries(u, 10);
+        List<ANNIndex.PQEntry> exhaustive = index.getNearestPqEntries(u, 10, 1 << 20);
+        assertEquals(exhaustive.size(), exact.size());
+        for (int i = 0; i < exact.size(); i++) {
+          assertEquals(exhaustive.get(i).getNodeOffset(), exact.get(i).getNodeOffset());
+          assertEquals(exhaustive.get(i).getMargin(), exact.get(i).getMargin(), 0f);
+        }
+        List<ANNIndex.PQEntry> filtered = index.getExactNearestPqEntries(u, 5, allowed::get);
+        assertEquals(5, filtered.size());
+        for (ANNIndex.PQEntry entry : filtered)
+          assertTrue(allowed.get((int) entry.getNodeOffset()));
+      }
+
+      assertFalse(index.prefersScan(10 * index.getRootCount(), null));
+      assertTrue(index.prefersScan(10 * index.getRootCount(), allowed::get));
+      assertTrue(index.prefersScan(index.getItemCount(), null));
+      index.setSearchPlanning(true);
+      float[] u = index.getItemVector(0);
+      List<Integer> expected = new ArrayList<>();
+      for (ANNIndex.PQEntry entry : index.getExactNearestPqEntries(u, 10, allowed::get))
+        expected.add((int) entry.getNodeOffset());
+      assertEquals(expected, index.getNearest(u, 10, -1, allowed::get));
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure query stats add up, don't change results, and reach listeners.
+   */
+  public void testQueryStats() throws IOException {
+    ANNIndex index = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    SearchContext ctx = index.newSearchContext();
+    ctx.enableStats();
+    for (int item = 0; item < 100; item++) {
+      float[] u = index.getItemVector(item);
+      IntPredicate filter = (item % 2 == 0) ? null : nn -> nn % 3 != 0;
+      List<ANNIndex.PQEntry> expected =
+              index.getNearestPqEntries(u, 10, 200, index.newSearchContext());
+      List<ANNIndex.PQEntry> retrieved = index.getNearestPqEntries(u, 10, 200, filter, ctx);
+      QueryStats stats = ctx.getStats();
+      assertEquals(200, stats.getSearchK());
+      assertTrue(stats.getCandidates() >= 200);
+      assertTrue(stats.getSplitNodes() > 0 && stats.getLeaves() > 0);
+      assertEquals(stats.getItems(),
+              stats.getCandidates() + stats.getDuplicates() + stats.getFiltered());
+      assertEquals(item % 2 == 0, stats.getFiltered() == 0);
+      if (item % 2 == 0) {
+        for (int i = 0; i < expected.size(); i++)
+          assertEquals(expected.get(i).getNodeOffset(), retrieved.get(i).getNodeOffset());
+      }
+    }
+
+    QueryHistograms histograms = new QueryHistograms();
+    index.setQueryListener(histograms);
+    for (int item = 0; item < 100; item++)
+      index.getNearest(index.getItemVector(item), 10);
+    index.setQueryListener(null);
+    index.getNearest(index.getItemVector(0), 10);
+    assertEquals(100, histograms.getCandidates().getCount());
+    assertTrue(histograms.getCandidates().getPercentile(0.5) > 0);
+    assertTrue(histograms.getTraversalNanos().getMax() > 0);
+    index.close();
+  }
+
+  @Test
+  /**
+   Make sure that computed and sidecar node norms give the same results as
+   computing norms on the fly.
+   */
+  public void testNorms() throws IOException {
+    String filename = String.format("%s/points.angular.annoy", DIR);
+    ANNIndex plain = new ANNIndex(8, filename, IndexType.ANGULAR);
+    ANNIndex computed = new ANNIndex(8, filename, IndexType.ANGULAR);
+    computed.enableNorms();
+    File sidecar = tmp.newFile("points.angular.annoy.norms");
+    computed.saveNorms(sidecar.getPath());
+    ANNIndex mapped = new ANNIndex(8, filename, IndexType.ANGULAR);
+    mapped.enableNorms(sidecar.getPath());
+
+    for (int item = 0; item < 200; item++) {
+      float[] u = plain.getItemVector(item);
+      List<ANNIndex.PQEntry> expected = plain.getNearestPqEntries(u, 10);
+      for (ANNIndex index : new ANNIndex[] {computed, mapped}) {
+        List<ANNIndex.PQEntry> retrieved = index.getNearestPqEntries(u, 10);
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.get(i).getNodeOffset(), retrieved.get(i).getNodeOffset());
+          assertEquals(expected.get(i).getMargin(), retrieved.get(i).getMargin(), 0f);
+        }
+      }
+    }
+    plain.close();
+    computed.close();
+    mapped.close();
+  }
+
+  @Test(expected = IOException.class)
+  /**
+   Make sure a norms sidecar that doesn't match the index is rejected.
+   */
+  public void testNormsWrongSize() throws IOException {
+    ANNIndex index = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    index.enableNorms(tmp.newFile("empty.norms").getPath());
+  }
+
+  // a copy of a fixture of the same size, with another first item
+  private File rebuilt(IndexType type) throws IOException {
+    byte[] bytes = Files.readAllBytes(new File(String.format("%s/points.%s.annoy",
+            DIR, type.toString().toLowerCase())).toPath());
+    bytes[type.getkNodeHeaderStyle() + 3] ^= 0x40;
+    File file = tmp.newFile();
+    Files.write(file.toPath(), bytes);
+    return file;
+  }
+
+  @Test(expected = IOException.class)
+  /**
+   Make sure norms saved for another index of the same size are rejected.
+   */
+  public void testNormsWrongIndex() throws IOException {
+    ANNIndex index = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    File sidecar = tmp.newFile();
+    index.saveNorms(sidecar.getPath());
+    new ANNIndex(8, rebuilt(IndexType.ANGULAR).getPath()).enableNorms(sidecar.getPath());
+  }
+
+  @Test
+  /**
+   Make sure that computed and sidecar tombstones leave out the same zero
+   items as checking vectors during the traversal.
+   */
+  public void testTombstones() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      // zero the vectors of some items, as annoy does for deleted ones
+      String ts = type.toString().toLowerCase();
+      byte[] bytes = Files.readAllBytes(new File(String.format("%s/points.%s.annoy", DIR, ts)).toPath());
+      int nodeSize = type.getkNodeHeaderStyle() + 4 * 8;
+      for (int item = 0; item < 1000; item += 3)
+        Arrays.fill(bytes, item * nodeSize + type.getkNodeHeaderStyle(), (item + 1) * nodeSize, (byte) 0);
+      File file = tmp.newFile("points." + ts + ".annoy");
+      Files.write(file.toPath(), bytes);
+
+      ANNIndex plain = new ANNIndex(8, file.getPath(), type);
+      ANNIndex computed = new ANNIndex(8, file.getPath(), type);
+      computed.enableTombstones();
+      computed.saveTombstones(file.getPath() + ".tombstones");
+      ANNIndex mapped = new ANNIndex(8, file.getPath(), type);
+      mapped.enableTombstones();
+
+      int nItems = plain.getItemCount();
+      float[] u = plain.getItemVector(1);
+      List<Integer> all = plain.getNearest(u, nItems, 1 << 20);
+      assertEquals(nItems - 334, all.size());
+      for (int item : all)
+        assertTrue(item >= 1000 || item % 3 != 0);
+      for (ANNIndex index : new ANNIndex[] {computed, mapped}) {
+        assertEquals(all.size(), index.getNearest(u, nItems, 1 << 20).size());
+        for (int item = 1; item < 200; item += 3) {
+          float[] v = plain.getItemVector(item);
+          assertEquals(plain.getNearest(v, 10), index.getNearest(v, 10));
+        }
+      }
+      plain.close();
+      computed.close();
+      mapped.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  /**
+   Make sure a tombstones sidecar that doesn't match the index is rejected.
+   */
+  public void testTombstonesWrongSize() throws IOException {
+    ANNIndex index = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    index.enableTombstones(tmp.newFile("empty.tombstones").getPath());
+  }
+
+  @Test(expected = IOException.class)
+  /**
+   Make sure tombstones saved for another index of the same size are
+   rejected.
+   */
+  public void testTombstonesWrongIndex() throws IOException {
+    ANNIndex index = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    File sidecar = tmp.newFile();
+    index.saveTombstones(sidecar.getPath());
+    new ANNIndex(8, rebuilt(IndexType.ANGULAR).getPath()).enableTombstones(sidecar.getPath());
+  }
+
+  @Test
+  /**
+   Make sure quantized queries find nearly the same neighbors as float
+   ones, that their margins are the exact ones, and that computed and
+   sidecar codes give the same results, also across small blocks.
+   */
+  public void testQuantized() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      String filename = String.format("%s/points.%s.annoy", DIR, type.toString().toLowerCase());
+      ANNIndex plain = new ANNIndex(8, filename, type);
+      for (Quantization quantization : Quantization.values()) {
+        ANNIndex computed = new ANNIndex(8, filename, type);
+        computed.enableQuantization(quantization);
+        File sidecar = tmp.newFile();
+        computed.saveQuantized(quantization, sidecar.getPath());
+        ANNIndex mapped = new ANNIndex(8, filename, type, 3);
+        mapped.enableQuantization(sidecar.getPath());
+
+        int found = 0;
+        for (int item = 0; item < 200; item++) {
+          float[] u = plain.getItemVector(item);
+          List<ANNIndex.PQEntry> expected = plain.getNearestPqEntries(u, 10);
+          List<ANNIndex.PQEntry> retrieved = computed.getNearestPqEntries(u, 10);
+          for (ANNIndex.PQEntry entry : retrieved) {
+            for (ANNIndex.PQEntry e : expected) {
+              if (e.getNodeOffset() == entry.getNodeOffset()) {
+                assertEquals(e.getMargin(), entry.getMargin(), 0f);
+                found++;
+              }
+            }
+          }
+          assertEquals(computed.getNearest(u, 10), mapped.getNearest(u, 10));
+        }
+        assertTrue(type + " " + quantization + " found " + found, found >= 0.95 * 200 * 10);
+        computed.close();
+        mapped.close();
+      }
+      plain.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  /**
+   Make sure quantized codes of another index are rejected.
+   */
+  public void testQuantizedWrongIndex() throws IOException {
+    ANNIndex angular = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    File sidecar = tmp.newFile();
+    angular.saveQuantized(Quantization.INT8, sidecar.getPath());
+    ANNIndex euclidean = new ANNIndex(8, "src/test/resources/points.euclidean.annoy",
+            IndexType.EUCLIDEAN);
+    euclidean.enableQuantization(sidecar.getPath());
+  }
+
+  @Test(expected = IOException.class)
+  /**
+   Make sure quantized codes saved for another index of the same type and
+   size are rejected.
+   */
+  public void testQuantizedRebuiltIndex() throws IOException {
+    ANNIndex angular = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    File sidecar = tmp.newFile();
+    angular.saveQuantized(Quantization.FP16, sidecar.getPath());
+    new ANNIndex(8, rebuilt(IndexType.ANGULAR).getPath()).enableQuantization(sidecar.getPath());
+  }
+
+  @Test
+  /**
+   Make sure laid out copies, computed or mapped, give the same results as
+   the index itself, for single and batch queries.
+   */
+  public void testLayout() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      String filename = String.format("%s/points.%s.annoy", DIR, type.toString().toLowerCase());
+      ANNIndex plain = new ANNIndex(8, filename, type);
+      float[][] queries = new float[100][];
+      for (int item = 0; item < queries.length; item++)
+        queries[item] = plain.getItemVector(item);
+      for (NodeOrder order : NodeOrder.values()) {
+        ANNIndex computed = new ANNIndex(8, filename, type);
+        computed.enableLayout(order);
+        File sidecar = tmp.newFile();
+        computed.saveLayout(order, sidecar.getPath());
+        ANNIndex mapped = new ANNIndex(8, filename, type, 3);
+        mapped.enableLayout(sidecar.getPath());
+
+        for (float[] u : queries) {
+          List<ANNIndex.PQEntry> expected = plain.getNearestPqEntries(u, 10);
+          for (ANNIndex index : new ANNIndex[] {computed, mapped}) {
+            List<ANNIndex.PQEntry> retrieved = index.getNearestPqEntries(u, 10);
+            assertEquals(expected.size(), retrieved.size());
+            for (int i = 0; i < expected.size(); i++) {
+              assertEquals(expected.get(i).getNodeOffset(), retrieved.get(i).getNodeOffset());
+              assertEquals(expected.get(i).getMargin(), retrieved.get(i).getMargin(), 0f);
+            }
+          }
+        }
+        assertEquals(plain.getNearestBatch(queries, 10), mapped.getNearestBatch(queries, 10));
+        computed.close();
+        mapped.close();
+      }
+      plain.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  /**
+   Make sure a layout saved for another index of the same type and size is
+   rejected.
+   */
+  public void testLayoutWrongIndex() throws IOException {
+    ANNIndex angular = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    File sidecar = tmp.newFile();
+    angular.saveLayout(NodeOrder.BREADTH_FIRST, sidecar.getPath());
+    new ANNIndex(8, rebuilt(IndexType.ANGULAR).getPath()).enableLayout(sidecar.getPath());
+  }
+
+  @Test
+  /**
+   Make sure lazy iteration returns every item once, agrees with getNearest
+   when it collects everything up front, and mostly agrees with it page by
+   page otherwise.
+   */
+  public void testIterateNearest() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      String filename = String.format("%s/points.%s.annoy", DIR, type.toString().toLowerCase());
+      ANNIndex index = new ANNIndex(8, filename, type);
+      int found = 0;
+      for (int item = 0; item < 100; item++) {
+        float[] u = index.getItemVector(item);
+        // same margins in the same order, ties may come out either way
+        List<ANNIndex.PQEntry> all = index.getNearestPqEntries(u, 1 << 20, 1 << 20);
+        List<ANNIndex.PQEntry> iterated = new ArrayList<>();
+        index.iterateNearest(u, 1 << 20, null).forEachRemaining(iterated::add);
+        assertEquals(all.size(), iterated.size());
+        Set<Long> allItems = new HashSet<>();
+        Set<Long> iteratedItems = new HashSet<>();
+        for (int i = 0; i < all.size(); i++) {
+          assertEquals(all.get(i).getMargin(), iterated.get(i).getMargin(), 0f);
+          allItems.add(all.get(i).getNodeOffset());
+          iteratedItems.add(iterated.get(i).getNodeOffset());
+        }
+        assertEquals(allItems, iteratedItems);
+
+        List<Integer> expected = index.getNearest(u, 10);
+        Iterator<ANNIndex.PQEntry> lazy = index.iterateNearest(u);
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+          int retrieved = (int) lazy.next().getNodeOffset();
+          if (expected.contains(retrieved))
+            found++;
+        }
+        lazy.forEachRemaining(entry -> assertTrue(seen.add((int) entry.getNodeOffset())));
+        assertEquals(all.size() - 10, seen.size());
+        assertEquals(index.getNearest(u, 1), index.streamNearest(u).limit(1)
+                .map(entry -> (int) entry.getNodeOffset()).collect(Collectors.toList()));
+      }
+      assertTrue(type + " found " + found, found >= 0.8 * 100 * 10);
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure item keys translate both ways, including non-ASCII and empty
+   keys spread over small blocks, and back the key-based queries.
+   */
+  public void testKeys() throws IOException {
+    String filename = "src/test/resources/points.angular.annoy";
+    ANNIndex index = new ANNIndex(8, filename, IndexType.ANGULAR, 3);
+    int nItems = index.getItemCount();
+    List<String> keys = new ArrayList<>();
+    keys.add("");
+    for (int item = 1; item < nItems; item++)
+      keys.add((item % 7 == 0) ? "piste-\u00e9t\u00e9-" + item : "track:" + item);
+    File sidecar = tmp.newFile();
+    ItemKeys.write(sidecar.getPath(), keys);
+    index.enableKeys(sidecar.getPath());
+
+    for (int item = 0; item < nItems; item++) {
+      assertEquals(keys.get(item), index.getKey(item));
+      assertEquals(item, index.getItemIndex(keys.get(item)));
+    }
+    assertEquals(-1, index.getItemIndex("track:" + nItems));
+    assertEquals(-1, index.getItemIndex("track"));
+    assertArrayEquals(index.getItemVector(43), index.getItemVector("track:43"), 0f);
+
+    float[] u = index.getItemVector(43);
+    List<String> expected = new ArrayList<>();
+    for (int item : index.getNearest(u, 10))
+      expected.add(keys.get(item));
+    assertEquals(expected, index.getNearestKeys(u, 10));
+    assertEquals(expected, index.getNearestKeys("track:43", 10));
+    index.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  /**
+   Make sure duplicate keys are rejected when writing.
+   */
+  public void testDuplicateKeys() throws IOException {
+    ItemKeys.write(tmp.newFile().getPath(), Arrays.asList("a", "b", "a"));
+  }
+
+  @Test(expected = IOException.class)
+  /**
+   Make sure keys written for another number of items are rejected.
+   */
+  public void testKeysWrongIndex() throws IOException {
+    File sidecar = tmp.newFile();
+    ItemKeys.write(sidecar.getPath(), Arrays.asList("a", "b", "c"));
+    new ANNIndex(8, "src/test/resources/points.angular.annoy").enableKeys(sidecar.getPath());
+  }
+
+  @Test
+  /**
+   Make sure manhattan indexes rank by L1 distance. Annoy's manhattan nodes
+   are laid out as its euclidean ones, so the euclidean index loads as a
+   manhattan index with the same trees.
+   */
+  public void testManhattan() throws IOException {
+    ANNIndex index = new ANNIndex(8, DIR + "/points.euclidean.annoy", IndexType.MANHATTAN);
+    ANNIndex laidOut = new ANNIndex(8, DIR + "/points.euclidean.annoy", IndexType.MANHATTAN);
+    laidOut.enableLayout(NodeOrder.VAN_EMDE_BOAS);
+    int nItems = index.getItemCount();
+    for (int item = 0; item < 100; item += 3) {
+      float[] u = index.getItemVector(item);
+      float[] distances = new float[nItems];
+      for (int i = 0; i < nItems; i++) {
+        float[] v = index.getItemVector(i);
+        for (int z = 0; z < 8; z++)
+          distances[i] += Math.abs(u[z] - v[z]);
+      }
+      Arrays.sort(distances);
+      // with every item a candidate, the ranking is exact
+      List<ANNIndex.PQEntry> all = index.getNearestPqEntries(u, 10, 1 << 20);
+      for (int i = 0; i < 10; i++)
+        assertEquals(-distances[i], all.get(i).getMargin(), 1e-5f);
+      assertEquals(0f, index.getNearestPqEntries(u, 1).get(0).getMargin(), 0f);
+      assertEquals(index.getNearest(u, 10), laidOut.getNearest(u, 10));
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  /**
+   Make sure quantization is refused on manhattan indexes, whose quantized
+   items can't be ranked through dot products.
+   */
+  public void testManhattanQuantized() throws IOException {
+    new ANNIndex(8, DIR + "/points.euclidean.annoy", IndexType.MANHATTAN)
+            .enableQuantization(Quantization.INT8);
+  }
+
+  /**
+   * Write a hamming index as annoy lays it out: the items, then trees
+   * split on random bits, then a copy of every root.
+   */
+  private static void writeHammingIndex(File file, long[][] items, int bits, int nTrees,
+                                        Random random) throws IOException {
+    int words = items[0].length;
+    int nodeSize = IndexType.HAMMING.getkNodeHeaderStyle() + 8 * words;
+    List<ByteBuffer> nodes = new ArrayList<>();
+    for (long[] item : items) {
+      ByteBuffer node = ByteBuffer.allocate(nodeSize).order(ByteOrder.LITTLE_ENDIAN);
+      node.putInt(0, 1);
+      for (int w = 0; w < words; w++)
+        node.putLong(16 + 8 * w, item[w]);
+      nodes.add(node);
+    }
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < items.length; i++)
+      ids.add(i);
+    int[] roots = new int[nTrees];
+    for (int t = 0; t < nTrees; t++)
+      roots[t] = hammingTree(nodes, items, ids, bits, nodeSize, true, random);
+    for (int root : roots)
+      nodes.add(nodes.get(root));
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      for (ByteBuffer node : nodes)
+        out.write(node.array());
+    }
+  }
+
+  private static int hammingTree(List<ByteBuffer> nodes, long[][] items, List<Integer> ids,
+                                 int bits, int nodeSize, boolean isRoot, Random random) {
+    if (ids.size() == 1 && !isRoot)
+      return ids.get(0);
+    ByteBuffer node = ByteBuffer.allocate(nodeSize).order(ByteOrder.LITTLE_ENDIAN);
+    node.putInt(0, isRoot ? items.length : ids.size());
+    if (ids.size() <= IndexType.HAMMING.getLeafSize(bits)) {
+      for (int i = 0; i < ids.size(); i++)
+        node.putInt(4 + 4 * i, ids.get(i));
+    } else {
+      // annoy numbers the bits of a word from the top
+      List<List<Integer>> sides = new ArrayList<>();
+      int bit;
+      do {
+        bit = random.nextInt(bits);
+        sides.clear();
+        sides.add(new ArrayList<>());
+        sides.add(new ArrayList<>());
+        for (int id : ids)
+          sides.get((int) (items[id][bit / 64] >>> (63 - bit % 64)) & 1).add(id);
+      } while (sides.get(0).isEmpty() || sides.get(1).isEmpty());
+      node.putInt(4, hammingTree(nodes, items, sides.get(0), bits, nodeSize, false, random));
+      node.putInt(8, hammingTree(nodes, items, sides.get(1), bits, nodeSize, false, random));
+      node.putLong(16, bit);
+    }
+    nodes.add(node);
+    return nodes.size() - 1;
+  }
+
+  @Test
+  /**
+   Make sure hamming indexes unpack their bit vectors, rank by hamming
+   distance, and traverse by the splits a query disagrees with.
+   */
+  public void testHamming() throws IOException {
+    int bits = 100, nItems = 500;
+    Random random = new Random(42);
+    float[][] vectors = new float[nItems][bits];
+    long[][] packed = new long[nItems][2];
+    for (int i = 0; i < nItems; i++) {
+      for (int z = 0; z < bits; z++) {
+        vectors[i][z] = random.nextBoolean() ? 1 : 0;
+        packed[i][z / 64] |= (long) vectors[i][z] << (z % 64);
+      }
+    }
+    File file = tmp.newFile();
+    writeHammingIndex(file, packed, bits, 10, random);
+    ANNIndex index = new ANNIndex(bits, file.getPath(), IndexType.HAMMING);
+    assertEquals(10, index.getRootCount() - 1);
+
+    float[][] queries = new float[nItems / 7 + 1][];
+    for (int item = 0, q = 0; item < nItems; item += 7, q++) {
+      assertArrayEquals(vectors[item], index.getItemVector(item), 0f);
+      queries[q] = vectors[item];
+      // every split agrees with the item's own path, so that comes first
+      assertEquals(item, (int) index.getNearest(vectors[item], 1, 1).get(0));
+
+      int[] distances = new int[nItems];
+      for (int i = 0; i < nItems; i++)
+        distances[i] = Long.bitCount(packed[item][0] ^ packed[i][0])
+                + Long.bitCount(packed[item][1] ^ packed[i][1]);
+      Arrays.sort(distances);
+      List<ANNIndex.PQEntry> all = index.getNearestPqEntries(vectors[item], 10, 1 << 20);
+      for (int i = 0; i < 10; i++)
+        assertEquals(-distances[i], all.get(i).getMargin(), 0f);
+    }
+    List<List<Integer>> batch = index.getNearestBatch(queries, 10);
+    for (int q = 0; q < queries.length; q++)
+      assertEquals(index.getNearest(queries[q], 10), batch.get(q));
+
+    // splits are bits rather than planes, there is nothing to copy
+    try {
+      index.enableQuantization(Quantization.FP16);
+      fail("expected hamming indexes to refuse quantization");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      index.enableLayout(NodeOrder.BREADTH_FIRST);
+      fail("expected hamming indexes to refuse layouts");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  /**
+   Make sure both warmups run to completion and leave the index resident.
+   */
+  public void testWarmup() throws Exception {
+    ANNIndex index = new ANNIndex(8, "src/test/resources/points.angular.annoy");
+    Warmup upper = index.warmupUpperLevels(4);
+    upper.completion().get(10, TimeUnit.SECONDS);
+    assertEquals(1.0, upper.progress(), 0.0);
+
+    Warmup full = index.warmup();
+    full.completion().get(10, TimeUnit.SECONDS);
+    assertEquals(1.0, full.progress(), 0.0);
+    assertTrue(index.residentFraction() > 0.5);
+    index.close();
+  }
+
   @Test(expected = RuntimeException.class)
   /**
    Make sure wrong dimension size used to init ANNIndex will throw RuntimeException.
@@ -0,0 +1,121 @@
+package com.spotify.annoy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.spotify.annoy.TestIndexes.ANNOY_TYPES;
+import static com.spotify.annoy.TestIndexes.DIMENSION;
+import static com.spotify.annoy.TestIndexes.build;
+import static com.spotify.annoy.TestIndexes.exactNearest;
+import static com.spotify.annoy.TestIndexes.load;
+import static com.spotify.annoy.TestIndexes.points;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class AnnoyIndexBuilderTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static int recall(ANNIndex index, IndexType type, List<float[]> points) {
+    int found = 0;
+    for (int i = 0; i < points.size(); i += 41) {
+      Set<Integer> exact = exactNearest(type, points, points.get(i), 10);
+      for (int id : index.getNearest(points.get(i), 10, 1000))
+        found += exact.contains(id) ? 1 : 0;
+    }
+    return found;
+  }
+
+  @Test
+  /**
+   Make sure a built index loads in ANNIndex with the items as added, and
+   finds about as many of the exact nearest neighbours as the index built
+   by annoy from the same points.
+   */
+  public void testBuildAndQuery() throws IOException {
+    List<float[]> points = points();
+    for (IndexType type : ANNOY_TYPES) {
+      File file = build(tmp.newFile(), type, points, 10);
+      ANNIndex index = new ANNIndex(DIMENSION, file.getPath(), type);
+      for (int i = 0; i < points.size(); i += 97)
+        assertArrayEquals(points.get(i), index.getItemVector(i), 0f);
+
+      ANNIndex reference = load(type);
+      int found = recall(index, type, points);
+      int expected = recall(reference, type, points);
+      assertTrue(type + " recall " + found + " vs " + expected, found >= 0.95 * expected);
+      index.close();
+      reference.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure the file follows annoy's layout: the trailing nodes sharing
+   n_descendants are the roots, and every tree reaches each item exactly
+   once through split nodes and leaf child lists.
+   */
+  public void testLayout() throws IOException {
+    List<float[]> points = points();
+    for (IndexType type : ANNOY_TYPES) {
+      File file = build(tmp.newFile(), type, points, 5);
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()))
+              .order(ByteOrder.LITTLE_ENDIAN);
+      int nodeSize = type.getkNodeHeaderStyle() + 4 * DIMENSION;
+      assertEquals(0, buffer.capacity() % nodeSize);
+      int nNodes = buffer.capacity() / nodeSize;
+
+      List<Integer> roots = new ArrayList<>();
+      int last = buffer.getInt((nNodes - 1) * nodeSize);
+      for (int i = nNodes - 1; i >= 0 && buffer.getInt(i * nodeSize) == last; i--)
+        roots.add(i);
+      assertEquals(points.size(), last);
+      // the root copies, plus the last tree's own root just before them
+      assertEquals(6, roots.size());
+
+      for (int root : roots.subList(0, 5)) {
+        BitSet seen = new BitSet();
+        walk(buffer, type, nodeSize, root, points.size(), seen);
+        assertEquals(points.size(), seen.cardinality());
+      }
+    }
+  }
+
+  private static int walk(ByteBuffer buffer, IndexType type, int nodeSize,
+                          int node, int nItems, BitSet seen) {
+    int offset = node * nodeSize;
+    int nDescendants = buffer.getInt(offset);
+    if (nDescendants == 1 && node < nItems) {
+      assertTrue(!seen.get(node));
+      seen.set(node);
+      return 1;
+    }
+    if (nDescendants <= type.getLeafSize(DIMENSION)) {
+      for (int i = 0; i < nDescendants; i++)
+        walk(buffer, type, nodeSize, buffer.getInt(offset + type.getOffset() + 4 * i), nItems, seen);
+      return nDescendants;
+    }
+    int count = 0;
+    for (int side = 0; side < 2; side++)
+      count += walk(buffer, type, nodeSize, buffer.getInt(offset + type.getOffset() + 4 * side), nItems, seen);
+    if (nDescendants != nItems)
+      assertEquals(nDescendants, count);
+    return count;
+  }
+}
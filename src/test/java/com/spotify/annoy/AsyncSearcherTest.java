@@ -0,0 +1,175 @@
+package com.spotify.annoy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class AsyncSearcherTest {
+
+  private static final String DIR = "src/test/resources";
+  private static final int DIMENSION = 8;
+
+  private static Throwable cause(CompletableFuture<?> future) throws InterruptedException {
+    try {
+      future.get();
+    } catch (ExecutionException e) {
+      return e.getCause();
+    }
+    fail("expected the query to fail");
+    return null;
+  }
+
+  // holds the thread running a query until released
+  private static IntPredicate blockOn(CountDownLatch started, CountDownLatch release) {
+    return item -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return true;
+    };
+  }
+
+  @Test
+  /**
+   Make sure asynchronous queries give the results of synchronous ones.
+   */
+  public void testResults() throws Exception {
+    ANNIndex index = new ANNIndex(DIMENSION, DIR + "/points.angular.annoy");
+    try (AsyncSearcher searcher = new AsyncSearcher(index, 2, 100)) {
+      for (int item = 0; item < 50; item++) {
+        float[] u = index.getItemVector(item);
+        List<ANNIndex.PQEntry> expected = index.getNearestPqEntries(u, 10, 500);
+        List<ANNIndex.PQEntry> retrieved =
+                searcher.getNearestPqEntriesAsync(u, 10, 500, 1, TimeUnit.MINUTES).get();
+        assertEquals(expected.size(), retrieved.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.get(i).getNodeOffset(), retrieved.get(i).getNodeOffset());
+          assertEquals(expected.get(i).getMargin(), retrieved.get(i).getMargin(), 0f);
+        }
+        assertEquals(index.getNearest(u, 10), searcher.getNearestAsync(u, 10).get());
+      }
+    }
+    index.close();
+  }
+
+  @Test
+  /**
+   Make sure a traversal past its deadline stops early and ranks the
+   candidates collected so far.
+   */
+  public void testStopsAtDeadline() throws IOException {
+    ANNIndex index = new ANNIndex(DIMENSION, DIR + "/points.angular.annoy");
+    SearchContext ctx = index.newSearchContext();
+    ctx.enableStats();
+    float[] u = index.getItemVector(0);
+    index.getNearestPqEntries(u, 10, 1 << 20, ctx);
+    long allCandidates = ctx.getStats().getCandidates();
+
+    ctx.stoppable = true;
+    ctx.hasDeadline = true;
+    ctx.deadline = System.nanoTime();
+    List<ANNIndex.PQEntry> partial = index.getNearestPqEntries(u, 10, 1 << 20, ctx);
+    assertTrue(ctx.getStats().getCandidates() < allCandidates);
+    assertEquals(10, partial.size());
+    index.close();
+  }
+
+  @Test
+  /**
+   Make sure queries beyond the queue limit are rejected, waiting queries
+   past their deadline are shed, and cancelled ones never run.
+   */
+  public void testAdmission() throws Exception {
+    ANNIndex index = new ANNIndex(DIMENSION, DIR + "/points.angular.annoy");
+    float[] u = index.getItemVector(0);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger cancelledCalls = new AtomicInteger();
+    try (AsyncSearcher searcher = new AsyncSearcher(index, 1, 2)) {
+      CompletableFuture<List<ANNIndex.PQEntry>> running = searcher.getNearestPqEntriesAsync(
+              u, 10, -1, blockOn(started, release), 1, TimeUnit.MINUTES);
+      started.await();
+
+      CompletableFuture<List<ANNIndex.PQEntry>> expiring =
+              searcher.getNearestPqEntriesAsync(u, 10, -1, 1, TimeUnit.MILLISECONDS);
+      CompletableFuture<List<ANNIndex.PQEntry>> cancelled = searcher.getNearestPqEntriesAsync(
+              u, 10, -1, item -> cancelledCalls.incrementAndGet() > 0, 1, TimeUnit.MINUTES);
+      assertEquals(2, searcher.getQueued());
+      CompletableFuture<List<Integer>> rejected = searcher.getNearestAsync(u, 10);
+      assertTrue(cause(rejected) instanceof RejectedExecutionException);
+
+      assertTrue(cancelled.cancel(false));
+      Thread.sleep(10);
+      release.countDown();
+      assertEquals(10, running.get().size());
+      assertTrue(cause(expiring) instanceof TimeoutException);
+      assertTrue(cancelled.isCancelled());
+      assertEquals(0, cancelledCalls.get());
+    }
+    index.close();
+  }
+
+  @Test
+  /**
+   Make sure a query failing with an Error completes its future rather
+   than leaving callers waiting forever.
+   */
+  public void testError() throws Exception {
+    ANNIndex index = new ANNIndex(DIMENSION, DIR + "/points.angular.annoy");
+    float[] u = index.getItemVector(0);
+    try (AsyncSearcher searcher = new AsyncSearcher(index, 1, 1)) {
+      CompletableFuture<List<ANNIndex.PQEntry>> failed = searcher.getNearestPqEntriesAsync(
+              u, 10, -1, item -> {
+                throw new AssertionError("filter failed");
+              }, 1, TimeUnit.MINUTES);
+      try {
+        failed.get(10, TimeUnit.SECONDS);
+        fail("expected the query to fail");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof AssertionError);
+      }
+      assertEquals(10, searcher.getNearestAsync(u, 10).get(10, TimeUnit.SECONDS).size());
+    }
+    index.close();
+  }
+
+  @Test
+  /**
+   Make sure cancelling a running query stops its traversal.
+   */
+  public void testStopsWhenCancelled() throws IOException {
+    ANNIndex index = new ANNIndex(DIMENSION, DIR + "/points.angular.annoy");
+    SearchContext ctx = index.newSearchContext();
+    ctx.enableStats();
+    float[] u = index.getItemVector(0);
+    index.getNearestPqEntries(u, 10, 1 << 20, ctx);
+    long allCandidates = ctx.getStats().getCandidates();
+
+    CompletableFuture<List<ANNIndex.PQEntry>> future = new CompletableFuture<>();
+    future.cancel(false);
+    ctx.stoppable = true;
+    ctx.future = future;
+    index.getNearestPqEntries(u, 10, 1 << 20, ctx);
+    assertTrue(ctx.getStats().getCandidates() < allCandidates);
+    index.close();
+  }
+}
@@ -0,0 +1,211 @@
+package com.spotify.annoy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.spotify.annoy.TestIndexes.load;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class CachingAnnoyIndexTest {
+
+  @Test
+  /**
+   Make sure cached results match the index, by vector and by item, and
+   that repeated queries are counted as hits.
+   */
+  public void testHits() throws IOException {
+    ANNIndex index = load(IndexType.ANGULAR);
+    CachingAnnoyIndex cache = new CachingAnnoyIndex(index, 1000);
+    for (int pass = 0; pass < 2; pass++) {
+      for (int item = 0; item < 100; item++) {
+        float[] u = index.getItemVector(item);
+        assertEquals(index.getNearest(u, 10), cache.getNearest(u, 10));
+        assertEquals(index.getNearest(u, 10, 50), cache.getNearestByItem(item, 10, 50));
+      }
+    }
+    assertEquals(200, cache.getMissCount());
+    assertEquals(200, cache.getHitCount());
+    assertEquals(0.5, cache.getHitRate(), 0.0);
+    assertEquals(200, cache.size());
+
+    float[] u = index.getItemVector(0);
+    assertSame(cache.getNearest(u, 10), cache.getNearest(u.clone(), 10));
+    cache.close();
+  }
+
+  @Test
+  /**
+   Make sure searchK reaches delegates other than ANNIndex.
+   */
+  public void testShardedDelegate() throws IOException {
+    ANNIndex index = load(IndexType.ANGULAR);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    ShardedAnnoyIndex sharded = new ShardedAnnoyIndex(Collections.singletonList(index), executor);
+    CachingAnnoyIndex cache = new CachingAnnoyIndex(sharded, 100);
+    for (int item = 0; item < 10; item++)
+      assertEquals(sharded.getNearest(index.getItemVector(item), 10, 50),
+              cache.getNearestByItem(item, 10, 50));
+    cache.close();
+    executor.shutdown();
+  }
+
+  @Test
+  /**
+   Make sure delegates without searchK are queried with their default, and
+   their results cached whatever searchK was asked for.
+   */
+  public void testPlainDelegate() throws IOException {
+    ANNIndex index = load(IndexType.ANGULAR);
+    CachingAnnoyIndex cache = new CachingAnnoyIndex(new PlainIndex(index), 100);
+    float[] u = index.getItemVector(0);
+    assertEquals(index.getNearest(u, 10), cache.getNearest(u, 10, 50));
+    assertEquals(index.getNearest(u, 10), cache.getNearest(u, 10));
+    assertEquals(index.getNearest(u, 10), cache.getNearestByItem(0, 10, 50));
+    assertEquals(1, cache.getHitCount());
+    cache.close();
+  }
+
+  @Test
+  /**
+   Make sure the cache never holds more than its bound.
+   */
+  public void testEviction() throws IOException {
+    for (int maxEntries : new int[] {17, 64}) {
+      CachingAnnoyIndex cache = new CachingAnnoyIndex(load(IndexType.EUCLIDEAN), maxEntries);
+      for (int item = 0; item < 1000; item++)
+        cache.getNearestByItem(item, 10, -1);
+      assertTrue(cache.size() <= maxEntries);
+      assertEquals(1000 - cache.size(), cache.getEvictionCount());
+      cache.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure closing the index itself drops the results cached for it.
+   */
+  public void testIndexClosed() throws IOException {
+    ANNIndex index = load(IndexType.ANGULAR);
+    CachingAnnoyIndex cache = new CachingAnnoyIndex(index, 100);
+    cache.getNearestByItem(0, 10, -1);
+    assertEquals(1, cache.size());
+    index.close();
+    assertEquals(0, cache.size());
+    cache.close();
+  }
+
+  @Test
+  /**
+   Make sure swapping drops results cached for the previous index.
+   */
+  public void testSwap() throws IOException {
+    ANNIndex angular = load(IndexType.ANGULAR);
+    ANNIndex euclidean = load(IndexType.EUCLIDEAN);
+    CachingAnnoyIndex cache = new CachingAnnoyIndex(angular, 1000);
+    float[] u = angular.getItemVector(3);
+    assertEquals(angular.getNearest(u, 10), cache.getNearest(u, 10));
+    assertSame(angular, cache.swap(euclidean));
+    assertEquals(0, cache.size());
+    assertEquals(euclidean.getNearest(u, 10), cache.getNearest(u, 10));
+    angular.close();
+    cache.close();
+  }
+
+  @Test(expected = IllegalStateException.class)
+  /**
+   Make sure a closed cache can't be queried.
+   */
+  public void testClosed() throws IOException {
+    CachingAnnoyIndex cache = new CachingAnnoyIndex(load(IndexType.DOT), 10);
+    cache.getNearestByItem(0, 10, -1);
+    cache.close();
+    cache.getNearestByItem(0, 10, -1);
+  }
+
+  @Test
+  /**
+   Make sure that threads sharing a small cache all get the index results.
+   */
+  public void testConcurrentQueries() throws Exception {
+    final ANNIndex index = load(IndexType.DOT);
+    final CachingAnnoyIndex cache = new CachingAnnoyIndex(index, 32);
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    try {
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        final int seed = t;
+        tasks.add(() -> {
+          for (int i = 0; i < 500; i++) {
+            int item = (i * 7 + seed) % 100;
+            if (!index.getNearest(index.getItemVector(item), 10, -1)
+                    .equals(cache.getNearestByItem(item, 10, -1)))
+              return false;
+          }
+          return true;
+        });
+      }
+      for (Future<Boolean> result : threads.invokeAll(tasks))
+        assertTrue(result.get());
+    } finally {
+      threads.shutdown();
+    }
+    assertEquals(8 * 500, cache.getHitCount() + cache.getMissCount());
+    assertTrue(cache.size() <= 32);
+    cache.close();
+  }
+
+  // an index knowing nothing of searchK
+  private static final class PlainIndex implements AnnoyIndex {
+
+    private final ANNIndex index;
+
+    PlainIndex(ANNIndex index) {
+      this.index = index;
+    }
+
+    @Override
+    @Deprecated
+    public void getNodeVector(long nodeOffset, float[] v) {
+      index.getNodeVector(nodeOffset, v);
+    }
+
+    @Override
+    @Deprecated
+    public void getItemVector(int itemIndex, float[] v) {
+      index.getItemVector(itemIndex, v);
+    }
+
+    @Override
+    public float[] getItemVector(int itemIndex) {
+      return index.getItemVector(itemIndex);
+    }
+
+    @Override
+    public List<Integer> getNearest(float[] queryVector, int nResults) {
+      return index.getNearest(queryVector, nResults);
+    }
+
+    @Override
+    public List<ANNIndex.PQEntry> getNearestPqEntries(float[] queryVector, int nResults) {
+      return index.getNearestPqEntries(queryVector, nResults);
+    }
+
+    @Override
+    public void close() throws IOException {
+      index.close();
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.spotify.annoy;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class DistanceKernelsTest {
+
+  @Test
+  /**
+   Make sure the vectorized kernel agrees with the scalar one on buffers and
+   arrays, for dimensions that do and don't fill whole vector registers, and
+   at unaligned buffer offsets.
+   */
+  public void testVectorizedMatchesScalar() {
+    DistanceKernel vectorized = DistanceKernels.vectorized();
+    Assume.assumeNotNull(vectorized);
+    DistanceKernel scalar = DistanceKernels.scalar();
+
+    Random random = new Random(0);
+    for (int dimension = 1; dimension <= 70; dimension++) {
+      int offset = 12;
+      ByteBuffer buffer = ByteBuffer.allocateDirect(offset + 4 * dimension)
+              .order(ByteOrder.LITTLE_ENDIAN);
+      float[] u = new float[dimension];
+      float[] q = new float[dimension];
+      for (int i = 0; i < dimension; i++) {
+        u[i] = (float) random.nextGaussian();
+        q[i] = (float) random.nextGaussian();
+        buffer.putFloat(offset + 4 * i, u[i]);
+      }
+      float eps = 1e-4f * dimension;
+      assertEquals(scalar.dot(buffer, offset, q), vectorized.dot(buffer, offset, q), eps);
+      assertEquals(scalar.squaredNorm(buffer, offset, dimension),
+              vectorized.squaredNorm(buffer, offset, dimension), eps);
+      assertEquals(scalar.squaredDistance(buffer, offset, q),
+              vectorized.squaredDistance(buffer, offset, q), eps);
+      assertEquals(vectorized.dot(buffer, offset, q), vectorized.dot(u, q), 0f);
+      assertEquals(vectorized.squaredNorm(buffer, offset, dimension), vectorized.squaredNorm(u), 0f);
+      assertEquals(vectorized.squaredDistance(buffer, offset, q), vectorized.squaredDistance(u, q), 0f);
+    }
+  }
+
+  @Test
+  /**
+   Make sure bounded distances are exact up to the limit and above it past
+   the limit, for every kernel available.
+   */
+  public void testBoundedSquaredDistance() {
+    DistanceKernel[] kernels = {DistanceKernels.scalar(), DistanceKernels.vectorized()};
+    Random random = new Random(1);
+    for (DistanceKernel kernel : kernels) {
+      if (kernel == null)
+        continue;
+      for (int dimension = 1; dimension <= 200; dimension += 7) {
+        int offset = 16;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(offset + 4 * dimension)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        float[] q = new float[dimension];
+        for (int i = 0; i < dimension; i++) {
+          buffer.putFloat(offset + 4 * i, (float) random.nextGaussian());
+          q[i] = (float) random.nextGaussian();
+        }
+        float exact = kernel.squaredDistance(buffer, offset, q);
+        assertEquals(exact, kernel.squaredDistance(buffer, offset, q, Float.POSITIVE_INFINITY), 0f);
+        assertEquals(exact, kernel.squaredDistance(buffer, offset, q, exact), 0f);
+        float limit = exact / 4;
+        assertTrue(kernel.squaredDistance(buffer, offset, q, limit) > limit);
+      }
+    }
+  }
+}
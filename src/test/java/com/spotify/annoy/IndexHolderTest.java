@@ -0,0 +1,154 @@
+package com.spotify.annoy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class IndexHolderTest {
+
+  private static final String FILENAME = "src/test/resources/points.angular.annoy";
+
+  private static ANNIndex load(LoadMode mode) throws IOException {
+    return new ANNIndex(8, FILENAME, IndexType.ANGULAR, mode);
+  }
+
+  @Test
+  /**
+   Make sure a swapped out index stays usable until its last lease is
+   closed, and is released right after.
+   */
+  public void testSwapWaitsForLeases() throws IOException {
+    ANNIndex first = load(LoadMode.MMAP);
+    ANNIndex second = load(LoadMode.DIRECT);
+    IndexHolder holder = new IndexHolder(first);
+    float[] u = first.getItemVector(0);
+    List<Integer> expected = first.getNearest(u, 10);
+
+    IndexHolder.Lease lease = holder.acquire();
+    CompletableFuture<Void> released = holder.swap(second);
+    assertFalse(released.isDone());
+    assertSame(first, lease.index());
+    assertEquals(expected, lease.index().getNearest(u, 10));
+    try (IndexHolder.Lease next = holder.acquire()) {
+      assertSame(second, next.index());
+    }
+
+    lease.close();
+    lease.close();
+    assertTrue(released.isDone());
+    assertEquals(expected, holder.query(index -> index.getNearest(u, 10)));
+    holder.close();
+  }
+
+  @Test
+  /**
+   Make sure queries keep getting results while indexes are swapped under
+   them, and that every swapped out index gets released.
+   */
+  public void testConcurrentSwaps() throws Exception {
+    ANNIndex reference = load(LoadMode.MMAP);
+    final float[][] queries = new float[50][];
+    final List<List<Integer>> expected = new ArrayList<>();
+    for (int q = 0; q < queries.length; q++) {
+      queries[q] = reference.getItemVector(q * 13);
+      expected.add(reference.getNearest(queries[q], 10));
+    }
+
+    final IndexHolder holder = new IndexHolder(load(LoadMode.MMAP));
+    final AtomicBoolean stop = new AtomicBoolean();
+    ExecutorService threads = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Boolean>> readers = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        readers.add(threads.submit(() -> {
+          for (int i = 0; !stop.get(); i++) {
+            final int q = i % queries.length;
+            if (!expected.get(q).equals(holder.query(index -> index.getNearest(queries[q], 10))))
+              return false;
+          }
+          return true;
+        }));
+      }
+
+      List<CompletableFuture<Void>> released = new ArrayList<>();
+      for (int swap = 0; swap < 20; swap++) {
+        LoadMode mode = LoadMode.values()[swap % LoadMode.values().length];
+        released.add(holder.swap(load(mode)));
+        Thread.sleep(5);
+      }
+      stop.set(true);
+      for (Future<Boolean> reader : readers)
+        assertTrue(reader.get(10, TimeUnit.SECONDS));
+      for (CompletableFuture<Void> future : released)
+        future.get(10, TimeUnit.SECONDS);
+    } finally {
+      threads.shutdown();
+    }
+    holder.close();
+    reference.close();
+  }
+
+  @Test
+  /**
+   Make sure warmAndSwap serves the new index once warm.
+   */
+  public void testWarmAndSwap() throws Exception {
+    ANNIndex first = load(LoadMode.MMAP);
+    ANNIndex second = load(LoadMode.MMAP);
+    IndexHolder holder = new IndexHolder(first);
+    holder.warmAndSwap(second).get(10, TimeUnit.SECONDS);
+    assertSame(second, holder.query(index -> index));
+    holder.close();
+  }
+
+  @Test
+  /**
+   Make sure an index warmed up for a holder closed meanwhile is released
+   rather than leaked.
+   */
+  public void testWarmAndSwapClosed() throws Exception {
+    IndexHolder holder = new IndexHolder(load(LoadMode.HEAP));
+    holder.close();
+    ANNIndex second = load(LoadMode.MMAP);
+    try {
+      holder.warmAndSwap(second).get(10, TimeUnit.SECONDS);
+      fail("expected the swap to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+    try {
+      second.getItemVector(0);
+      fail("expected the index to be released");
+    } catch (RuntimeException e) {
+      // late readers fail on the released buffers
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  /**
+   Make sure a closed holder can't be leased from.
+   */
+  public void testClosed() throws IOException {
+    IndexHolder holder = new IndexHolder(load(LoadMode.HEAP));
+    holder.close();
+    holder.acquire();
+  }
+}
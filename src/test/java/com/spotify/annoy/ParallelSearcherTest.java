@@ -0,0 +1,161 @@
+package com.spotify.annoy;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static com.spotify.annoy.TestIndexes.ANNOY_TYPES;
+import static com.spotify.annoy.TestIndexes.load;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class ParallelSearcherTest {
+
+  private static ForkJoinPool pool;
+
+  @BeforeClass
+  public static void setUp() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @AfterClass
+  public static void tearDown() {
+    pool.shutdown();
+  }
+
+  private static List<Integer> ids(List<ANNIndex.PQEntry> entries) {
+    List<Integer> ids = new ArrayList<>(entries.size());
+    for (ANNIndex.PQEntry entry : entries)
+      ids.add((int) entry.getNodeOffset());
+    return ids;
+  }
+
+  @Test
+  /**
+   Make sure that a parallel batch returns, in order, the same results as
+   querying one by one.
+   */
+  public void testParallelBatch() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      ANNIndex index = load(type);
+      ParallelSearcher searcher = new ParallelSearcher(index, pool);
+      float[][] queries = new float[103][];
+      for (int q = 0; q < queries.length; q++)
+        queries[q] = index.getItemVector(q * 11);
+
+      List<List<ANNIndex.PQEntry>> results = searcher.getNearestPqEntries(queries, 10, -1);
+      assertEquals(queries.length, results.size());
+      for (int q = 0; q < queries.length; q++)
+        assertEquals(index.getNearest(queries[q], 10), ids(results.get(q)));
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure that splitting one query across trees finds mostly the same
+   neighbors as the sequential search.
+   */
+  public void testAcrossTrees() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      ANNIndex index = load(type);
+      ParallelSearcher searcher = new ParallelSearcher(index, pool);
+      for (int item = 0; item < 200; item += 10) {
+        float[] u = index.getItemVector(item);
+        List<Integer> expected = index.getNearest(u, 10, 1000);
+        List<Integer> retrieved = ids(searcher.getNearestPqEntriesAcrossTrees(u, 10, 1000));
+        assertEquals(10, retrieved.size());
+        Set<Integer> overlap = new HashSet<>(expected);
+        overlap.retainAll(retrieved);
+        assertTrue(overlap.size() >= 5);
+        // an exhaustive searchK only costs the candidates actually found
+        assertEquals(index.getNearest(u, 10, 1 << 20),
+                ids(searcher.getNearestPqEntriesAcrossTrees(u, 10, 1 << 30)));
+      }
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure that scanning item ranges in parallel returns the results of
+   a sequential scan.
+   */
+  public void testExact() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      ANNIndex index = load(type);
+      ParallelSearcher searcher = new ParallelSearcher(index, pool);
+      for (int item = 0; item < 200; item += 10) {
+        float[] u = index.getItemVector(item);
+        assertEquals(ids(index.getExactNearestPqEntries(u, 10)),
+                ids(searcher.getExactNearestPqEntries(u, 10, null)));
+        assertEquals(ids(index.getExactNearestPqEntries(u, 3, nn -> nn % 7 == 0)),
+                ids(searcher.getExactNearestPqEntries(u, 3, nn -> nn % 7 == 0)));
+        // "all" matches, without sizing anything by nResults
+        assertEquals(ids(index.getExactNearestPqEntries(u, 5, nn -> nn % 7 == 0)),
+                ids(searcher.getExactNearestPqEntries(u, Integer.MAX_VALUE, nn -> nn % 7 == 0))
+                        .subList(0, 5));
+      }
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Hammer one index from many threads at once, and make sure every thread
+   sees exactly the results of a single-threaded run.
+   */
+  public void testConcurrentQueries() throws Exception {
+    final ANNIndex index = load(IndexType.ANGULAR);
+    final int nQueries = 500;
+    final List<List<Integer>> expected = new ArrayList<>();
+    for (int q = 0; q < nQueries; q++)
+      expected.add(index.getNearest(index.getItemVector(q), 10));
+
+    ExecutorService threads = Executors.newFixedThreadPool(8);
+    try {
+      final ParallelSearcher searcher = new ParallelSearcher(index, pool);
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (int t = 0; t < 16; t++) {
+        final int offset = t;
+        futures.add(threads.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            for (int i = 0; i < nQueries; i++) {
+              int q = (i + offset * 31) % nQueries;
+              float[] u = index.getItemVector(q);
+              if (!expected.get(q).equals(index.getNearest(u, 10)))
+                return false;
+              if (i % 50 == 0) {
+                List<List<ANNIndex.PQEntry>> batch =
+                        searcher.getNearestPqEntries(new float[][] {u, u}, 10, -1);
+                if (!expected.get(q).equals(ids(batch.get(1))))
+                  return false;
+              }
+            }
+            return true;
+          }
+        }));
+      }
+      for (Future<Boolean> future : futures)
+        assertTrue(future.get());
+    } finally {
+      threads.shutdown();
+      index.close();
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package com.spotify.annoy;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.spotify.annoy.TestIndexes.ANNOY_TYPES;
+import static com.spotify.annoy.TestIndexes.load;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(JUnit4.class)
+public class RecallEvaluatorTest {
+
+  @Test
+  /**
+   Make sure the parallel scan finds the items a single exhaustive query
+   ranks first, whatever the number of tasks.
+   */
+  public void testGroundTruth() throws IOException {
+    for (IndexType type : ANNOY_TYPES) {
+      ANNIndex index = load(type);
+      float[][] queries = RecallEvaluator.sampleQueries(index, 20, 1);
+      for (int parallelism : new int[] {1, 3, 7}) {
+        RecallEvaluator evaluator = new RecallEvaluator(index, ForkJoinPool.commonPool(), parallelism);
+        int[][] truth = evaluator.groundTruth(queries, 10);
+        for (int q = 0; q < queries.length; q++) {
+          List<Integer> exact = index.getNearest(queries[q], 10, 1 << 20);
+          List<Integer> found = new ArrayList<>();
+          for (int item : truth[q])
+            found.add(item);
+          assertEquals(type + " query " + q, exact, found);
+        }
+      }
+      index.close();
+    }
+  }
+
+  @Test
+  /**
+   Make sure recall grows with searchK up to 1 once every item is a
+   candidate.
+   */
+  public void testSweep() throws IOException {
+    ANNIndex index = load(IndexType.ANGULAR);
+    RecallEvaluator evaluator = new RecallEvaluator(index, ForkJoinPool.commonPool());
+    float[][] queries = RecallEvaluator.sampleQueries(index, 50, 2);
+    List<RecallEvaluator.Result> results =
+            evaluator.sweep(queries, new int[] {1, 10}, new int[] {-1, 100, 1 << 20});
+    assertEquals(6, results.size());
+    assertEquals(10 * index.getRootCount(), results.get(3).getSearchK());
+    for (int i = 0; i < results.size(); i += 3) {
+      assertTrue(results.get(i).getRecall() <= results.get(i + 2).getRecall());
+      assertEquals(1.0, results.get(i + 2).getRecall(), 0);
+    }
+    for (RecallEvaluator.Result result : results) {
+      assertTrue(result.getQueriesPerSecond() > 0);
+      assertTrue(result.getP50Micros() <= result.getP99Micros());
+    }
+    index.close();
+  }
+
+  @Test
+  /**
+   Make sure sampled items are distinct, and that each query's own item is
+   left out of its exact and approximate neighbours.
+   */
+  public void testExcludesQueryItems() throws IOException {
+    ANNIndex index = load(IndexType.ANGULAR);
+    int[] items = RecallEvaluator.sampleItems(index, 30, 3);
+    assertEquals(30, items.length);
+    IntHashSet distinct = new IntHashSet(items.length);
+    for (int item : items)
+      assertTrue(distinct.add(item));
+    assertEquals(index.getItemCount(),
+            RecallEvaluator.sampleItems(index, index.getItemCount() + 1, 3).length);
+
+    float[][] queries = RecallEvaluator.itemVectors(index, items);
+    RecallEvaluator evaluator = new RecallEvaluator(index, ForkJoinPool.commonPool(), 3);
+    int[][] truth = evaluator.groundTruth(queries, items, 10);
+    for (int q = 0; q < queries.length; q++) {
+      List<Integer> exact = new ArrayList<>(index.getNearest(queries[q], 11, 1 << 20));
+      exact.remove(Integer.valueOf(items[q]));
+      List<Integer> found = new ArrayList<>();
+      for (int item : truth[q])
+        found.add(item);
+      assertEquals("query " + q, exact.subList(0, 10), found);
+    }
+    assertEquals(1.0, evaluator.evaluate(queries, items, truth, 10, 1 << 20).getRecall(), 0);
+    index.close();
+  }
+}
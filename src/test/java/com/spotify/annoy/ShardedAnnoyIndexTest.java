@@ -0,0 +1,156 @@
+package com.spotify.annoy;
+
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.spotify.annoy.TestIndexes.DIMENSION;
+import static com.spotify.annoy.TestIndexes.DIR;
+import static com.spotify.annoy.TestIndexes.exactNearest;
+import static com.spotify.annoy.TestIndexes.points;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(JUnit4.class)
+public class ShardedAnnoyIndexTest {
+
+  private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(4);
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @AfterClass
+  public static void shutdown() {
+    EXECUTOR.shutdown();
+  }
+
+  private ANNIndex build(IndexType type, List<float[]> points, int nTrees) throws IOException {
+    return new ANNIndex(DIMENSION, TestIndexes.build(tmp.newFile(), type, points, nTrees).getPath(),
+            type);
+  }
+
+  @Test
+  /**
+   Make sure a single shard gives the results of the index itself: the two
+   rounds resume one traversal up to the same searchK.
+   */
+  public void testSingleShard() throws IOException {
+    ANNIndex index = new ANNIndex(DIMENSION, DIR + "/points.angular.annoy");
+    ShardedAnnoyIndex sharded = new ShardedAnnoyIndex(Collections.singletonList(index), EXECUTOR);
+    for (int item = 0; item < 100; item++) {
+      float[] u = index.getItemVector(item);
+      for (int searchK : new int[] {-1, 500}) {
+        List<ANNIndex.PQEntry> expected = index.getNearestPqEntries(u, 10, searchK);
+        List<ANNIndex.PQEntry> retrieved = sharded.getNearestPqEntries(u, 10, searchK);
+        assertEquals(expected.size(), retrieved.size());
+        for (int i = 0; i < expected.size(); i++) {
+          assertEquals(expected.get(i).getNodeOffset(), retrieved.get(i).getNodeOffset());
+          assertEquals(expected.get(i).getMargin(), retrieved.get(i).getMargin(), 0f);
+        }
+      }
+    }
+    sharded.close();
+  }
+
+  @Test
+  /**
+   Make sure shards of a catalog find about as many of the exact nearest
+   neighbours, by global id, as one index of the whole catalog given the
+   same total searchK.
+   */
+  public void testShards() throws IOException {
+    List<float[]> points = points();
+    int[] bounds = {0, 1000, 1001, 2500, points.size()};
+    for (IndexType type : new IndexType[] {IndexType.ANGULAR, IndexType.EUCLIDEAN}) {
+      List<ANNIndex> shards = new ArrayList<>();
+      for (int s = 0; s + 1 < bounds.length; s++)
+        shards.add(build(type, points.subList(bounds[s], bounds[s + 1]), 10));
+      ShardedAnnoyIndex sharded = new ShardedAnnoyIndex(shards, EXECUTOR);
+      ANNIndex whole = build(type, points, 10);
+
+      for (int s = 0; s + 1 < bounds.length; s++) {
+        assertEquals(bounds[s], sharded.getShardOffset(s));
+        assertEquals(s, sharded.getShard(bounds[s]));
+        assertEquals(s, sharded.getShard(bounds[s + 1] - 1));
+      }
+      for (int i = 0; i < points.size(); i += 97)
+        assertArrayEquals(points.get(i), sharded.getItemVector(i), 0f);
+
+      int foundSharded = 0, foundWhole = 0;
+      for (int i = 0; i < points.size(); i += 41) {
+        Set<Integer> exact = exactNearest(type, points, points.get(i), 10);
+        List<Integer> retrieved = sharded.getNearest(points.get(i), 10, 400);
+        assertEquals(10, new HashSet<>(retrieved).size());
+        for (int id : retrieved)
+          foundSharded += exact.contains(id) ? 1 : 0;
+        for (int id : whole.getNearest(points.get(i), 10, 400))
+          foundWhole += exact.contains(id) ? 1 : 0;
+      }
+      assertTrue(type + " recall " + foundSharded + " vs " + foundWhole,
+              foundSharded >= 0.95 * foundWhole);
+      sharded.close();
+      whole.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  /**
+   Make sure shards of different types are rejected.
+   */
+  public void testMismatchedShards() throws IOException {
+    new ShardedAnnoyIndex(Arrays.asList(
+            new ANNIndex(DIMENSION, DIR + "/points.angular.annoy"),
+            new ANNIndex(DIMENSION, DIR + "/points.euclidean.annoy", IndexType.EUCLIDEAN)),
+            EXECUTOR);
+  }
+
+  @Test
+  /**
+   Make sure a query whose shard task can't be submitted fails only once
+   the tasks already running are done with the caller's contexts.
+   */
+  public void testFailureWaitsForTasks() throws IOException {
+    ANNIndex index = new ANNIndex(DIMENSION, DIR + "/points.angular.annoy");
+    AtomicInteger submitted = new AtomicInteger();
+    Executor rejectsSecond = task -> {
+      if (submitted.incrementAndGet() > 1)
+        throw new RejectedExecutionException("full");
+      new Thread(() -> {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        task.run();
+      }).start();
+    };
+    ShardedAnnoyIndex sharded = new ShardedAnnoyIndex(Arrays.asList(index, index), rejectsSecond);
+    long start = System.nanoTime();
+    try {
+      sharded.getNearest(index.getItemVector(0), 10);
+      fail("expected the query to fail");
+    } catch (RejectedExecutionException e) {
+      assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+    index.close();
+  }
+}
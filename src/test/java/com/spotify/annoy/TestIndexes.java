@@ -0,0 +1,99 @@
+package com.spotify.annoy;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fixtures shared by the tests: the 8-dimensional points in the test
+ * resources, the indexes annoy built from them, and indexes built from them
+ * by {@link AnnoyIndexBuilder}.
+ */
+final class TestIndexes {
+
+  static final String DIR = "src/test/resources";
+  static final int DIMENSION = 8;
+  // the types of the indexes annoy built in the test resources, which are
+  // also the types the builder writes
+  static final IndexType[] ANNOY_TYPES =
+          {IndexType.ANGULAR, IndexType.EUCLIDEAN, IndexType.DOT};
+
+  private TestIndexes() {
+  }
+
+  /**
+   * @return the index annoy built of the given type
+   */
+  static ANNIndex load(IndexType type) throws IOException {
+    String ts = type.toString().toLowerCase();
+    return new ANNIndex(DIMENSION, String.format("%s/points.%s.annoy", DIR, ts), type);
+  }
+
+  /**
+   * @return the points annoy built its indexes from, in item order
+   */
+  static List<float[]> points() throws IOException {
+    List<float[]> points = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new FileReader(DIR + "/points.csv"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.trim().split(",");
+        float[] v = new float[fields.length];
+        for (int z = 0; z < v.length; z++)
+          v[z] = Float.parseFloat(fields[z]);
+        points.add(v);
+      }
+    }
+    return points;
+  }
+
+  /**
+   * Build an index of the points into file, with a fixed seed.
+   *
+   * @return file
+   */
+  static File build(File file, IndexType type, List<float[]> points, int nTrees)
+          throws IOException {
+    try (AnnoyIndexBuilder builder = new AnnoyIndexBuilder(DIMENSION, file.getPath(), type)) {
+      builder.setSeed(42);
+      for (int i = 0; i < points.size(); i++)
+        builder.addItem(i, points.get(i));
+      builder.build(nTrees, 2);
+    }
+    return file;
+  }
+
+  /**
+   * @return score of v for query u, larger for nearer points
+   */
+  static float score(IndexType type, float[] u, float[] v) {
+    switch (type) {
+      case ANGULAR:
+        return ANNIndex.cosineMargin(u, v);
+      case DOT:
+        return ANNIndex.dot(u, v);
+      default:
+        float d = 0;
+        for (int z = 0; z < u.length; z++)
+          d += (u[z] - v[z]) * (u[z] - v[z]);
+        return -d;
+    }
+  }
+
+  /**
+   * @return ids of the n points nearest to q, by brute force
+   */
+  static Set<Integer> exactNearest(IndexType type, List<float[]> points, float[] q, int n) {
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < points.size(); i++)
+      ids.add(i);
+    ids.sort((a, b) -> Float.compare(score(type, q, points.get(b)),
+            score(type, q, points.get(a))));
+    return new HashSet<>(ids.subList(0, n));
+  }
+}